@@ -0,0 +1,320 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.NetInterfaces;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapIf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Owns the listeners and capture threads started on each network interface, and releases them when closed.
+ * <p>
+ * Unlike listeners started on the shared executor, each listener here runs on its own thread. When {@link #listen()} finds a game, the
+ * interfaces that lost the race are stopped straight away with pcap's breakloop and their capture handles are closed, instead of idling
+ * until their next packet or read timeout. {@link #close()} stops every remaining interface and waits for its thread to exit.
+ * <p>
+ * {@link #prepare()} can be called ahead of time to open the capture handles and set up the decoders, so the next listen call only has
+ * to start the capture threads.
+ *
+ * @author Vincent Zhang
+ */
+public class CaptureEngine implements HearthstoneCapturer, AutoCloseable {
+
+    /**
+     * How long {@link #close()} waits for capture threads to exit, in milliseconds.
+     */
+    private static final long CLOSE_TIMEOUT = 5_000L;
+
+    private final CaptureOptions options;
+    private final List<NetInterfaceListener> listeners;
+    private final List<Thread> threads;
+    private final List<ShardedCapture> shardedCaptures;
+    /**
+     * Capture handles opened by {@link #prepare()} and not yet handed to a listener, by interface name.
+     */
+    private final Map<String, Pcap> preparedHandles;
+    private List<PcapIf> preparedDevices;
+    private boolean closed;
+
+    public CaptureEngine() {
+        this(CaptureOptions.defaults());
+    }
+
+    /**
+     * @param options Settings for the capture handles and listeners.
+     */
+    public CaptureEngine(CaptureOptions options) {
+        this.options = options.copy();
+        listeners = new ArrayList<>();
+        threads = new ArrayList<>();
+        shardedCaptures = new ArrayList<>();
+        preparedHandles = new HashMap<>();
+    }
+
+    /**
+     * Does ahead of time the work that would otherwise delay the first decoded packet: lists the network interfaces, opens and
+     * activates a capture handle on each with the search filter compiled and installed, and builds the decoder metadata of every
+     * packet type. The next listen call of any kind uses those interfaces and handles. Packets arriving in the meantime are buffered
+     * by the kernel, up to its buffer size, and processed once listening starts. Handles that are never used are closed with the
+     * engine. Capturing through {@link co.phoenixlab.hearthstone.hearthcapturelib.pcap.ForeignPcap} opens its handles when listening
+     * starts, so only the interfaces and decoders are prepared.
+     *
+     * @return The number of capture handles opened and waiting to be used.
+     */
+    public synchronized int prepare() {
+        if (closed) {
+            throw new IllegalStateException("Capture engine is closed");
+        }
+        HearthFrameDecoder.prepare();
+        //  Listeners capturing through the foreign function API can't use jNetPcap handles
+        if (preparedDevices == null) {
+            preparedDevices = NetInterfaces.getNetworkInterfaces();
+            if (!NetInterfaceListener.isForeign(options)) {
+                for (PcapIf device : preparedDevices) {
+                    try {
+                        preparedHandles.put(device.getName(), NetInterfaceListener.open(device, options));
+                    } catch (IOException e) {
+                        //  The listener tries again, and logs why, when it starts
+                        HCapUtils.logger.fine("Unable to prepare " + device.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return preparedHandles.size();
+    }
+
+    @Override
+    public CaptureQueue listen() throws InterruptedException, NoSuchElementException {
+        List<PcapIf> devices = getDevices();
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<CaptureQueue> result = new AtomicReference<>();
+        List<NetInterfaceListener> started = new ArrayList<>(devices.size());
+        for (PcapIf device : devices) {
+            started.add(start(new NetInterfaceListener(device, NetInterfaceListener.Mode.firstGame(latch, result), options)));
+        }
+        HCapUtils.logger.info("Waiting on listeners...");
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            started.forEach(NetInterfaceListener::shutdown);
+            throw e;
+        }
+        HCapUtils.logger.info("Listener found!");
+        for (NetInterfaceListener listener : started) {
+            if (!listener.isSelected()) {
+                listener.shutdown();
+            }
+        }
+        return result.get();
+    }
+
+    /**
+     * Listens on all network interfaces for Hearthstone games, one after another, keeping each interface's capture handle open between
+     * games. The listeners run until this engine is closed.
+     *
+     * @param gameListener Called with the CaptureQueue of every new game, from the capture thread of the interface the game was found on.
+     * @return The listeners for each interface.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<NetInterfaceListener> listenContinuously(Consumer<CaptureQueue> gameListener) throws NoSuchElementException {
+        List<PcapIf> devices = getDevices();
+        List<NetInterfaceListener> started = new ArrayList<>(devices.size());
+        for (PcapIf device : devices) {
+            started.add(start(new NetInterfaceListener(device, NetInterfaceListener.Mode.continuous(gameListener), options)));
+        }
+        return started;
+    }
+
+    /**
+     * Listens on all network interfaces for any number of concurrent Hearthstone games. The listeners run until this engine is closed.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from the capture thread of the interface the game was found on.
+     * @return The session managers for each interface.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<CaptureSessionManager> listenAll(Consumer<CaptureQueue> sessionListener) throws NoSuchElementException {
+        List<PcapIf> devices = getDevices();
+        List<CaptureSessionManager> managers = new ArrayList<>(devices.size());
+        for (PcapIf device : devices) {
+            CaptureSessionManager manager = new CaptureSessionManager(sessionListener);
+            if (options.isAttach()) {
+                manager.setAttach(true);
+            }
+            if (options.isPush()) {
+                manager.setPush(true);
+            }
+            start(new NetInterfaceListener(device, NetInterfaceListener.Mode.allGames(manager), options));
+            managers.add(manager);
+        }
+        return managers;
+    }
+
+    /**
+     * Listens on all network interfaces for any number of concurrent Hearthstone games, spreading the games seen on each interface over
+     * a fixed number of shard threads. The listeners and shards run until this engine is closed.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from the thread of the shard that owns it.
+     * @param shardCount      The number of shard threads per interface.
+     * @return The sharded captures for each interface.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<ShardedCapture> listenSharded(Consumer<CaptureQueue> sessionListener, int shardCount) throws NoSuchElementException {
+        List<PcapIf> devices = getDevices();
+        List<ShardedCapture> started = new ArrayList<>(devices.size());
+        for (PcapIf device : devices) {
+            ShardedCapture sharded = new ShardedCapture(sessionListener, shardCount);
+            if (options.isAttach()) {
+                sharded.setAttach(true);
+            }
+            synchronized (this) {
+                shardedCaptures.add(sharded);
+            }
+            start(new NetInterfaceListener(device, NetInterfaceListener.Mode.allGames(sharded), options));
+            started.add(sharded);
+        }
+        return started;
+    }
+
+    /**
+     * Listens on every enabled network interface through a single {@link MergedCapture}, so that segments seen on more than one
+     * interface (bridges, tunnels, mirrored loopback) only start and feed one game.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from whichever capture thread saw its handshake first.
+     * @return The merged capture all interfaces feed.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public MergedCapture listenMerged(Consumer<CaptureQueue> sessionListener) throws NoSuchElementException {
+        List<PcapIf> devices = getDevices();
+        MergedCapture merged = new MergedCapture(sessionListener, devices.size());
+        if (options.isAttach()) {
+            merged.setAttach(true);
+        }
+        if (options.isPush()) {
+            merged.setPush(true);
+        }
+        for (PcapIf device : devices) {
+            start(new NetInterfaceListener(device, NetInterfaceListener.Mode.allGames(merged), options));
+        }
+        return merged;
+    }
+
+    /**
+     * Gets the resource use of every interface listener this engine started, including ones that have stopped.
+     */
+    public synchronized List<InterfaceStatistics> getStatistics() {
+        List<InterfaceStatistics> statistics = new ArrayList<>(listeners.size());
+        for (NetInterfaceListener listener : listeners) {
+            statistics.add(listener.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Checks whether every listener this engine started has stopped and its capture thread exited, such as once {@link #listen()}'s
+     * game has ended. An engine that hasn't started any listeners isn't finished.
+     */
+    public synchronized boolean isFinished() {
+        if (threads.isEmpty()) {
+            return false;
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops every listener, closing the current games' queues, and waits up to five seconds for the capture threads to release their
+     * handles and exit.
+     */
+    @Override
+    public void close() {
+        List<Thread> toJoin;
+        List<ShardedCapture> toClose;
+        synchronized (this) {
+            closed = true;
+            listeners.forEach(NetInterfaceListener::shutdown);
+            toJoin = new ArrayList<>(threads);
+            toClose = new ArrayList<>(shardedCaptures);
+            preparedHandles.values().forEach(Pcap::close);
+            preparedHandles.clear();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        try {
+            for (Thread thread : toJoin) {
+                thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+                if (thread.isAlive()) {
+                    HCapUtils.logger.warning("Capture thread " + thread.getName() + " did not stop in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //  Only once the capture threads are done feeding them
+        toClose.forEach(ShardedCapture::close);
+    }
+
+    private synchronized NetInterfaceListener start(NetInterfaceListener listener) {
+        if (closed) {
+            throw new IllegalStateException("Capture engine is closed");
+        }
+        Pcap handle = preparedHandles.remove(listener.getStatistics().interfaceName);
+        if (handle != null) {
+            listener.adopt(handle);
+        }
+        Thread thread = new Thread(listener, "HCL capture " + listener.getStatistics().interfaceName);
+        thread.setDaemon(true);
+        listeners.add(listener);
+        threads.add(thread);
+        thread.start();
+        return listener;
+    }
+
+    private synchronized List<PcapIf> getDevices() throws NoSuchElementException {
+        //  Only the next listen call gets the prepared interfaces, later ones see any that have changed since
+        List<PcapIf> devices = preparedDevices;
+        preparedDevices = null;
+        if (devices == null || devices.isEmpty()) {
+            devices = NetInterfaces.getNetworkInterfaces();
+        }
+        if (devices.isEmpty()) {
+            throw new NoSuchElementException("No network interfaces found!");
+        }
+        return devices;
+    }
+}
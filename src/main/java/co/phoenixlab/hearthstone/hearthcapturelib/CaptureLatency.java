@@ -0,0 +1,77 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.LatencyHistogram;
+
+/**
+ * Latency histograms for each stage a packet goes through between the network and the user, shared by every capture in the process.
+ * <ul>
+ * <li>Wire to reassembled: from the capture timestamp of the TCP segment that completed a packet until the packet's bytes were read out
+ * of the stream assembler. Only live capture is recorded here; packets replayed from capture files carry their original timestamps and
+ * are left out.</li>
+ * <li>Reassembled to decoded: time spent decoding the packet.</li>
+ * <li>Decoded to consumed: time the decoded packet spent queued until the user took it with {@link PacketQueue#next()}.</li>
+ * </ul>
+ *
+ * @author Vincent Zhang
+ */
+public final class CaptureLatency {
+
+    private static final LatencyHistogram wireToReassembled = new LatencyHistogram("wire->reassembled");
+    private static final LatencyHistogram reassembledToDecoded = new LatencyHistogram("reassembled->decoded");
+    private static final LatencyHistogram decodedToConsumed = new LatencyHistogram("decoded->consumed");
+
+    private CaptureLatency() {
+    }
+
+    public static LatencyHistogram getWireToReassembled() {
+        return wireToReassembled;
+    }
+
+    public static LatencyHistogram getReassembledToDecoded() {
+        return reassembledToDecoded;
+    }
+
+    public static LatencyHistogram getDecodedToConsumed() {
+        return decodedToConsumed;
+    }
+
+    /**
+     * Clears all three histograms.
+     */
+    public static void reset() {
+        wireToReassembled.reset();
+        reassembledToDecoded.reset();
+        decodedToConsumed.reset();
+    }
+
+    /**
+     * Gets a summary of all three histograms, one per line.
+     */
+    public static String summary() {
+        return wireToReassembled + System.lineSeparator() + reassembledToDecoded + System.lineSeparator() + decodedToConsumed;
+    }
+}
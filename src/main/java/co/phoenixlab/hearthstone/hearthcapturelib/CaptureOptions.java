@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.ForeignPcap;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapRecorder;
+
+import java.nio.file.Path;
+
+/**
+ * Settings for the native capture handles opened on each network interface.
+ * <p>
+ * {@link #defaults()} matches what HCL has always used. {@link #lowLatency()} delivers packets as soon as they arrive, at the cost of
+ * more wakeups, and {@link #highThroughput()} uses a large kernel buffer and a longer timeout so bursts aren't dropped and packets are
+ * handed over in large batches.
+ *
+ * @author Vincent Zhang
+ */
+public class CaptureOptions {
+
+    /**
+     * Timeout used in immediate mode, in milliseconds. A timeout of 0 would block forever, so 1 ms is the shortest there is.
+     */
+    static final int IMMEDIATE_TIMEOUT = 1;
+
+    private int snaplen;
+    private boolean promiscuous;
+    private int timeout;
+    private int bufferSize;
+    private boolean immediate;
+    private long statisticsInterval;
+    private int batchSize;
+    private boolean attach;
+    private boolean push;
+    private boolean foreign;
+    private Path recordDirectory;
+    private int recordBufferSize;
+    private long recordFileSize;
+    private int recordFileCount;
+
+    /**
+     * Creates options with the default settings.
+     */
+    public CaptureOptions() {
+        snaplen = 65535;
+        promiscuous = false;
+        timeout = 1_000;
+        bufferSize = 0;
+        immediate = false;
+        statisticsInterval = 1_000L;
+        batchSize = Integer.getInteger("phoenixlab.hearthstone.batchsize", NetInterfaceListener.DEFAULT_BATCH_SIZE);
+        attach = false;
+        push = false;
+        foreign = false;
+        recordDirectory = null;
+        recordBufferSize = PcapRecorder.DEFAULT_BUFFER_SIZE;
+        recordFileSize = PcapRecorder.DEFAULT_FILE_SIZE;
+        recordFileCount = PcapRecorder.DEFAULT_FILE_COUNT;
+    }
+
+    /**
+     * Full packets, non-promiscuous, a one second read timeout and the platform's default kernel buffer.
+     */
+    public static CaptureOptions defaults() {
+        return new CaptureOptions();
+    }
+
+    /**
+     * Immediate delivery with a 4 MB kernel buffer.
+     */
+    public static CaptureOptions lowLatency() {
+        return new CaptureOptions().
+                setImmediate(true).
+                setBufferSize(4 * 1024 * 1024);
+    }
+
+    /**
+     * A 64 MB kernel buffer and a 250 ms read timeout.
+     */
+    public static CaptureOptions highThroughput() {
+        return new CaptureOptions().
+                setBufferSize(64 * 1024 * 1024).
+                setTimeout(250);
+    }
+
+    public int getSnaplen() {
+        return snaplen;
+    }
+
+    /**
+     * Sets the maximum number of bytes captured from each frame. Hearthstone packets span several segments, so anything less than
+     * the MTU loses data.
+     */
+    public CaptureOptions setSnaplen(int snaplen) {
+        if (snaplen < 1) {
+            throw new IllegalArgumentException("Snaplen must be positive");
+        }
+        this.snaplen = snaplen;
+        return this;
+    }
+
+    public boolean isPromiscuous() {
+        return promiscuous;
+    }
+
+    /**
+     * Sets whether or not to capture frames addressed to other machines, which is needed when watching a mirrored port.
+     */
+    public CaptureOptions setPromiscuous(boolean promiscuous) {
+        this.promiscuous = promiscuous;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long pcap waits for more packets before handing over what it has, in milliseconds. Ignored in immediate mode.
+     */
+    public CaptureOptions setTimeout(int timeout) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Timeout must be at least 1 ms");
+        }
+        this.timeout = timeout;
+        return this;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the kernel capture buffer in bytes, or 0 to use the platform's default.
+     */
+    public CaptureOptions setBufferSize(int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("Buffer size can't be negative");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public boolean isImmediate() {
+        return immediate;
+    }
+
+    /**
+     * Sets whether or not packets are delivered as soon as they arrive. jNetPcap 1.3 doesn't expose pcap_set_immediate_mode, so this
+     * uses the shortest possible read timeout instead, which bounds the delivery delay to about a millisecond.
+     */
+    public CaptureOptions setImmediate(boolean immediate) {
+        this.immediate = immediate;
+        return this;
+    }
+
+    /**
+     * Gets the read timeout actually used, in milliseconds.
+     */
+    public int getEffectiveTimeout() {
+        return immediate ? IMMEDIATE_TIMEOUT : timeout;
+    }
+
+    public long getStatisticsInterval() {
+        return statisticsInterval;
+    }
+
+    /**
+     * Sets how often each listener polls pcap for received and dropped packet counts, in milliseconds.
+     */
+    public CaptureOptions setStatisticsInterval(long statisticsInterval) {
+        if (statisticsInterval < 1) {
+            throw new IllegalArgumentException("Statistics interval must be positive");
+        }
+        this.statisticsInterval = statisticsInterval;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of packets each listener processes per native dispatch call. Larger batches mean fewer native calls
+     * under load.
+     */
+    public CaptureOptions setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public boolean isAttach() {
+        return attach;
+    }
+
+    /**
+     * Sets whether or not to pick up games already in progress when capture starts, decoding them from the first frame boundary found,
+     * instead of waiting for the next game's handshake.
+     */
+    public CaptureOptions setAttach(boolean attach) {
+        this.attach = attach;
+        return this;
+    }
+
+    public boolean isPush() {
+        return push;
+    }
+
+    /**
+     * Sets whether or not to reassemble and decode games on the capture thread, emitting each packet as soon as the segment completing
+     * it is captured, instead of on two parse threads per game that block on the reassembled streams.
+     */
+    public CaptureOptions setPush(boolean push) {
+        this.push = push;
+        return this;
+    }
+
+    public boolean isForeign() {
+        return foreign;
+    }
+
+    /**
+     * Sets whether or not to read packets from libpcap through {@link ForeignPcap} instead of jNetPcap. Interfaces fall back to jNetPcap
+     * when the runtime doesn't support it, see {@link ForeignPcap#isSupported()}, or when recording, which needs jNetPcap's frames.
+     */
+    public CaptureOptions setForeign(boolean foreign) {
+        this.foreign = foreign;
+        return this;
+    }
+
+    public Path getRecordDirectory() {
+        return recordDirectory;
+    }
+
+    /**
+     * Sets the directory to record raw captured frames into as rotating pcap files, or null to not record. See {@link PcapRecorder}.
+     */
+    public CaptureOptions setRecordDirectory(Path recordDirectory) {
+        this.recordDirectory = recordDirectory;
+        return this;
+    }
+
+    public int getRecordBufferSize() {
+        return recordBufferSize;
+    }
+
+    /**
+     * Sets the size in bytes of the ring frames are copied into before being written out. Frames are dropped from the recording when
+     * the writer falls further behind than this.
+     */
+    public CaptureOptions setRecordBufferSize(int recordBufferSize) {
+        if (recordBufferSize < 1) {
+            throw new IllegalArgumentException("Record buffer size must be positive");
+        }
+        this.recordBufferSize = recordBufferSize;
+        return this;
+    }
+
+    public long getRecordFileSize() {
+        return recordFileSize;
+    }
+
+    /**
+     * Sets the size in bytes at which recording moves on to a new file.
+     */
+    public CaptureOptions setRecordFileSize(long recordFileSize) {
+        if (recordFileSize < 1) {
+            throw new IllegalArgumentException("Record file size must be positive");
+        }
+        this.recordFileSize = recordFileSize;
+        return this;
+    }
+
+    public int getRecordFileCount() {
+        return recordFileCount;
+    }
+
+    /**
+     * Sets the number of recording files kept per interface before the oldest is deleted, or 0 to keep them all.
+     */
+    public CaptureOptions setRecordFileCount(int recordFileCount) {
+        if (recordFileCount < 0) {
+            throw new IllegalArgumentException("Record file count can't be negative");
+        }
+        this.recordFileCount = recordFileCount;
+        return this;
+    }
+
+    /**
+     * Creates a copy of these options, so listeners aren't affected by later changes.
+     */
+    public CaptureOptions copy() {
+        return new CaptureOptions().
+                setSnaplen(snaplen).
+                setPromiscuous(promiscuous).
+                setTimeout(timeout).
+                setBufferSize(bufferSize).
+                setImmediate(immediate).
+                setStatisticsInterval(statisticsInterval).
+                setBatchSize(batchSize).
+                setAttach(attach).
+                setPush(push).
+                setForeign(foreign).
+                setRecordDirectory(recordDirectory).
+                setRecordBufferSize(recordBufferSize).
+                setRecordFileSize(recordFileSize).
+                setRecordFileCount(recordFileCount);
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureOptions{" +
+                "snaplen=" + snaplen +
+                ", promiscuous=" + promiscuous +
+                ", timeout=" + timeout +
+                ", bufferSize=" + bufferSize +
+                ", immediate=" + immediate +
+                ", statisticsInterval=" + statisticsInterval +
+                ", batchSize=" + batchSize +
+                ", attach=" + attach +
+                ", push=" + push +
+                ", foreign=" + foreign +
+                ", recordDirectory=" + recordDirectory +
+                ", recordBufferSize=" + recordBufferSize +
+                ", recordFileSize=" + recordFileSize +
+                ", recordFileCount=" + recordFileCount +
+                '}';
+    }
+}
@@ -48,6 +48,14 @@ public final class CaptureQueue {
         getInboundPackets().close();
     }
 
+    /**
+     * Finishes both packet queues, letting them close once all captured packets have been consumed.
+     */
+    public void finish() {
+        getOutboundPackets().finish();
+        getInboundPackets().finish();
+    }
+
     /**
      * Checks whether or not the packet queues are closed.
      *
@@ -0,0 +1,199 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPStreamAssembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+/**
+ * A single Hearthstone game stream: the assemblers and packet queues for both directions of one TCP connection.
+ *
+ * @author Vincent Zhang
+ */
+class CaptureSession {
+
+    private final TCPConnectionInfo outboundFlow;
+    private final PacketQueue outboundQueue;
+    private final PacketQueue inboundQueue;
+    private final CaptureQueue captureQueue;
+    private final boolean push;
+    private final MemoryBudget.Account account;
+    private long lastActivity;
+    private HashedWheelTimer.Timeout idleTimeout;
+
+    /**
+     * @param outboundFlow The client to server connection, as seen on the Aurora handshake.
+     * @param startTime    The time at which the capture started.
+     */
+    CaptureSession(TCPConnectionInfo outboundFlow, long startTime) {
+        this(outboundFlow, startTime, false, null, 0L, null);
+    }
+
+    /**
+     * @param outboundFlow The client to server connection.
+     * @param startTime    The time at which the capture started.
+     * @param push         Whether to decode on the thread that accepts packets rather than on parse threads of the session's own.
+     * @param timer        The timer for reassembly hole deadlines in push mode, owned by the thread that accepts packets.
+     * @param holeTimeout  How long reassembly waits for a missing segment before skipping it, in milliseconds.
+     * @param budget       The budget to charge buffered bytes to, or null to hold any amount.
+     */
+    CaptureSession(TCPConnectionInfo outboundFlow, long startTime, boolean push, HashedWheelTimer timer, long holeTimeout,
+                   MemoryBudget budget) {
+        this.outboundFlow = outboundFlow;
+        this.push = push;
+        account = budget == null ? null : budget.open(outboundFlow.toString());
+        if (push) {
+            inboundQueue = new PushPacketQueue(false, startTime, timer, holeTimeout, account);
+            outboundQueue = new PushPacketQueue(true, startTime, timer, holeTimeout, account);
+        } else {
+            inboundQueue = new HearthPacketQueue(new TCPStreamAssembler(account, holeTimeout), false, startTime);
+            outboundQueue = new HearthPacketQueue(new TCPStreamAssembler(account, holeTimeout), true, startTime);
+        }
+        captureQueue = new CaptureQueue(outboundQueue, inboundQueue);
+        if (account != null) {
+            //  Closing drops what the consumer hasn't read and wakes it, and is safe from whichever thread ran out of budget
+            account.setEvictionHandler(captureQueue::close);
+        }
+    }
+
+    /**
+     * Starts decoding packets.
+     */
+    void start() {
+        if (push) {
+            return;
+        }
+        HearthCaptureLib.executor.execute(((HearthPacketQueue) inboundQueue)::parseLoop);
+        HearthCaptureLib.executor.execute(((HearthPacketQueue) outboundQueue)::parseLoop);
+    }
+
+    /**
+     * Makes both directions start decoding at the first frame boundary found, for a game joined part way through. Must be called
+     * before {@link #start()}.
+     */
+    @MThread("listener")
+    void resynchronize() {
+        if (push) {
+            ((PushPacketQueue) inboundQueue).resynchronize();
+            ((PushPacketQueue) outboundQueue).resynchronize();
+        } else {
+            ((HearthPacketQueue) inboundQueue).resynchronize();
+            ((HearthPacketQueue) outboundQueue).resynchronize();
+        }
+    }
+
+    /**
+     * Routes a packet of this session's connection to the queue for its direction.
+     */
+    @MThread("listener")
+    void accept(TCPPacket packet) {
+        if (packet.connectionInfo.equals(outboundFlow)) {
+            outboundQueue.put(packet);
+        } else if (packet.connectionInfo.isReverseOf(outboundFlow)) {
+            inboundQueue.put(packet);
+        }
+    }
+
+    /**
+     * Ends the session once everything already captured has been consumed.
+     */
+    @MThread("listener")
+    void finish() {
+        captureQueue.finish();
+        if (account != null) {
+            account.closeWhenEmpty();
+        }
+    }
+
+    /**
+     * Ends the session straight away, dropping everything it holds.
+     */
+    @MThread("listener")
+    void abort() {
+        captureQueue.close();
+        if (push) {
+            ((PushPacketQueue) inboundQueue).clearReassembly();
+            ((PushPacketQueue) outboundQueue).clearReassembly();
+        }
+        if (account != null) {
+            account.close();
+        }
+    }
+
+    /**
+     * Checks whether the memory budget has evicted this session.
+     */
+    boolean isEvicted() {
+        return account != null && account.isEvicted();
+    }
+
+    /**
+     * Gets the number of bytes this session holds in reassembly buffers and undelivered packets.
+     */
+    long getBytesHeld() {
+        return account == null ? 0L : account.getHeld();
+    }
+
+    /**
+     * Cancels the idle timeout of this session. Reassembly hole deadlines are cancelled when the queues finish.
+     */
+    @MThread("listener")
+    void cancelTimeouts() {
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+    }
+
+    /**
+     * Gets the capture time of the last packet seen for this session, in milliseconds since the epoch.
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    HashedWheelTimer.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(HashedWheelTimer.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    TCPConnectionInfo getOutboundFlow() {
+        return outboundFlow;
+    }
+
+    CaptureQueue getCaptureQueue() {
+        return captureQueue;
+    }
+}
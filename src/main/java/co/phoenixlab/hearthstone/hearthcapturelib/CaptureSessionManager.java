@@ -0,0 +1,358 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Tracks any number of concurrent Hearthstone games seen on a single capture handle.
+ * <p>
+ * Every Aurora handshake starts a new session keyed by its TCP connection, and the CaptureQueue for that session is handed to the
+ * session listener. Packets are routed to their session with a single map lookup, and a session is torn down when its connection
+ * is closed with a FIN or RST, or once it has been idle for longer than the session idle timeout. Connections that don't start with an
+ * Aurora handshake are ignored until they close or their ignore entry expires.
+ * <p>
+ * With {@link #setPush(boolean)} enabled, sessions are reassembled and decoded on the capture thread as packets arrive, rather than
+ * on two parse threads per session blocking on their streams.
+ * <p>
+ * With {@link #setAttach(boolean)} enabled, connections to the game server port that are already past their handshake, such as games
+ * in progress when capture started, are attached to as well. Their streams are decoded from the first frame boundary found.
+ * <p>
+ * Timeouts are kept on a {@link HashedWheelTimer} driven by capture timestamps, and by {@link #tick(long)} while no packets arrive.
+ * <p>
+ * A manager is fed by one listener thread and is not safe for use by multiple capture threads.
+ *
+ * @author Vincent Zhang
+ */
+public class CaptureSessionManager {
+
+    /**
+     * Default time after which a session that has seen no packets is ended, in milliseconds.
+     */
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT = 5L * 60L * 1000L;
+
+    /**
+     * Port of the game server end of a game connection, used to recognize games in progress.
+     */
+    static final int GAME_SERVER_PORT = 3724;
+
+    private static final int TCP_FIN = 0x01;
+    private static final int TCP_RST = 0x04;
+    private static final long TIMER_TICK = 100L;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+
+    /**
+     * Sessions keyed by both directions of their connection, so either direction is found with a single lookup.
+     */
+    private final Map<TCPConnectionInfo, CaptureSession> sessions;
+    /**
+     * Expiry of connections that aren't games, keyed by both directions.
+     */
+    private final Map<TCPConnectionInfo, HashedWheelTimer.Timeout> ignored;
+    private final Consumer<CaptureQueue> sessionListener;
+    private volatile boolean push;
+    private final long sessionIdleTimeout;
+    private final long ignoreTtl;
+    private final long holeTimeout;
+    private final MemoryBudget budget;
+    /**
+     * Created on the first packet, so that the wheel starts at capture time even when replaying old captures.
+     */
+    private HashedWheelTimer timer;
+    private long sessionsStarted;
+    private long sessionsExpired;
+    private long sessionsEvicted;
+    private long sessionsAttached;
+    private volatile boolean attach;
+
+    /**
+     * @param sessionListener Called on the capture thread with the CaptureQueue of every new game. It should return quickly.
+     */
+    public CaptureSessionManager(Consumer<CaptureQueue> sessionListener) {
+        this(sessionListener, Boolean.getBoolean("phoenixlab.hearthstone.push"));
+    }
+
+    /**
+     * @param sessionListener Called on the capture thread with the CaptureQueue of every new game. It should return quickly.
+     * @param push            Whether to reassemble and decode on the thread calling {@link #accept(TCPPacket)} instead of on two
+     *                        parse threads per session.
+     */
+    CaptureSessionManager(Consumer<CaptureQueue> sessionListener, boolean push) {
+        this.sessionListener = sessionListener;
+        this.push = push;
+        sessions = new ConcurrentHashMap<>();
+        ignored = new HashMap<>();
+        sessionIdleTimeout = Long.getLong("phoenixlab.hearthstone.session.idle", DEFAULT_SESSION_IDLE_TIMEOUT);
+        ignoreTtl = Long.getLong("phoenixlab.hearthstone.flows.ttl", NetInterfaceListener.DEFAULT_FLOW_TTL);
+        holeTimeout = Long.getLong("phoenixlab.hearthstone.hole.timeout", TCPSegmentReassembler.DEFAULT_HOLE_TIMEOUT);
+        budget = MemoryBudget.getDefault();
+        attach = Boolean.getBoolean("phoenixlab.hearthstone.attach");
+    }
+
+    /**
+     * Accepts a captured packet, routing it to its session or starting a new session if it is an Aurora handshake.
+     *
+     * @param packet The captured packet.
+     */
+    @MThread("listener")
+    public void accept(TCPPacket packet) {
+        tick(packet.packetTimeNanos / 1_000_000L);
+        TCPConnectionInfo info = packet.connectionInfo;
+        boolean closing = (packet.tcpFlags & (TCP_FIN | TCP_RST)) != 0;
+        CaptureSession session = sessions.get(info);
+        if (session != null) {
+            if (session.isEvicted()) {
+                abortSession(session);
+                return;
+            }
+            session.setLastActivity(packet.packetTimeNanos / 1_000_000L);
+            session.accept(packet);
+            if (closing) {
+                endSession(session);
+            }
+            return;
+        }
+        //  Forget ignored connections once they close since the next connection on that address might be valid
+        if (closing) {
+            HashedWheelTimer.Timeout expiry = ignored.get(info);
+            if (expiry != null) {
+                expiry.cancel();
+                unignore(info);
+            }
+            return;
+        }
+        if (packet.payloadLength == 0 || ignored.containsKey(info)) {
+            return;
+        }
+        //  Check for Aurora first byte
+        if (packet.getPayloadByte(0) == 0xA8) {
+            startSession(packet, info, false);
+        } else if (attach && (info.sourcePort == GAME_SERVER_PORT || info.destinationPort == GAME_SERVER_PORT)) {
+            //  Until a segment shows what could be a frame header, don't commit a session to it, but don't ignore what may be a game
+            byte[] payload = packet.getPayload();
+            if (FrameSynchronizer.containsCandidate(payload, 0, payload.length)) {
+                startSession(packet, info.destinationPort == GAME_SERVER_PORT ? info : info.reverse(), true);
+            }
+        } else {
+            HashedWheelTimer.Timeout expiry = timer.schedule(() -> unignore(info), packet.packetTimeNanos / 1_000_000L + ignoreTtl);
+            ignored.put(info, expiry);
+            ignored.put(info.reverse(), expiry);
+        }
+    }
+
+    private void unignore(TCPConnectionInfo info) {
+        ignored.remove(info);
+        ignored.remove(info.reverse());
+    }
+
+    /**
+     * Runs any timeouts that are due, such as ending idle sessions. Packets advance time on their own, so this only needs calling while
+     * no packets are arriving.
+     *
+     * @param now The current time in milliseconds since the epoch.
+     */
+    @MThread("listener")
+    public void tick(long now) {
+        if (timer == null) {
+            timer = new HashedWheelTimer(TIMER_TICK, TIMER_WHEEL_SIZE, now);
+        }
+        timer.advance(now);
+    }
+
+    /**
+     * @param first    The Aurora handshake, or for an attached game the first packet seen.
+     * @param info     The client to server connection.
+     * @param attached Whether the game was already in progress, so decoding has to start at a frame boundary.
+     */
+    private void startSession(TCPPacket first, TCPConnectionInfo info, boolean attached) {
+        if (attached) {
+            HCapUtils.logger.info("Attaching to game in progress, starting session for " + info.toString());
+        } else {
+            HCapUtils.logger.info("Got Aurora handshake, starting session for " + info.toString());
+        }
+        long startTime = first.packetTimeNanos / 1_000_000L;
+        CaptureSession session = new CaptureSession(info, startTime, push, timer, holeTimeout, budget);
+        if (attached) {
+            session.resynchronize();
+            sessionsAttached++;
+        }
+        session.setLastActivity(startTime);
+        scheduleIdleCheck(session, startTime + sessionIdleTimeout);
+        sessions.put(info, session);
+        sessions.put(info.reverse(), session);
+        sessionsStarted++;
+        session.accept(first);
+        session.start();
+        try {
+            sessionListener.accept(session.getCaptureQueue());
+        } catch (RuntimeException e) {
+            HCapUtils.logger.log(Level.SEVERE, "Session listener failed for " + info.toString(), e);
+        }
+    }
+
+    private void scheduleIdleCheck(CaptureSession session, long deadline) {
+        session.setIdleTimeout(timer.schedule(() -> checkIdle(session), deadline));
+    }
+
+    /**
+     * Ends a session if it hasn't seen a packet for the idle timeout. Sessions that have seen packets since the check was scheduled are
+     * checked again later, so busy sessions cost one timer entry rather than one per packet.
+     */
+    private void checkIdle(CaptureSession session) {
+        if (session.isEvicted()) {
+            abortSession(session);
+            return;
+        }
+        long idleDeadline = session.getLastActivity() + sessionIdleTimeout;
+        if (idleDeadline > session.getIdleTimeout().getDeadline()) {
+            scheduleIdleCheck(session, idleDeadline);
+            return;
+        }
+        HCapUtils.logger.info("No packets for " + sessionIdleTimeout + "ms, ending session for " + session.getOutboundFlow().toString());
+        sessionsExpired++;
+        endSession(session);
+    }
+
+    /**
+     * Drops a session the memory budget evicted. Its remaining packets are ignored like any other connection that isn't a game.
+     */
+    private void abortSession(CaptureSession session) {
+        TCPConnectionInfo info = session.getOutboundFlow();
+        HCapUtils.logger.warning("Session for " + info.toString() + " was evicted to stay within the memory budget");
+        session.cancelTimeouts();
+        sessions.remove(info);
+        sessions.remove(info.reverse());
+        session.abort();
+        sessionsEvicted++;
+    }
+
+    private void endSession(CaptureSession session) {
+        TCPConnectionInfo info = session.getOutboundFlow();
+        HCapUtils.logger.info("End of stream - FIN, ending session for " + info.toString());
+        session.cancelTimeouts();
+        sessions.remove(info);
+        sessions.remove(info.reverse());
+        session.finish();
+    }
+
+    /**
+     * Ends every active session, for example when the capture handle is closed.
+     */
+    @MThread("listener")
+    public void finishAll() {
+        for (CaptureSession session : new HashSet<>(sessions.values())) {
+            endSession(session);
+        }
+        for (HashedWheelTimer.Timeout expiry : ignored.values()) {
+            expiry.cancel();
+        }
+        ignored.clear();
+    }
+
+    /**
+     * Gets the number of games currently being captured.
+     */
+    public int getActiveSessionCount() {
+        return sessions.size() / 2;
+    }
+
+    /**
+     * Gets the total number of games that have been started by this manager.
+     */
+    @MThread("listener")
+    public long getSessionsStarted() {
+        return sessionsStarted;
+    }
+
+    /**
+     * Gets the number of sessions ended because they were idle for longer than the session idle timeout.
+     */
+    @MThread("listener")
+    public long getSessionsExpired() {
+        return sessionsExpired;
+    }
+
+    /**
+     * Gets the number of sessions dropped because the memory budget evicted them.
+     */
+    @MThread("listener")
+    public long getSessionsEvicted() {
+        return sessionsEvicted;
+    }
+
+    /**
+     * Gets the number of sessions started by attaching to a game already in progress. These are included in
+     * {@link #getSessionsStarted()}.
+     */
+    @MThread("listener")
+    public long getSessionsAttached() {
+        return sessionsAttached;
+    }
+
+    /**
+     * Sets whether or not to attach to games already in progress, such as when capture is restarted part way through a game. Without
+     * this, only games whose Aurora handshake is seen are captured. Defaults to the phoenixlab.hearthstone.attach system property.
+     */
+    public void setAttach(boolean attach) {
+        this.attach = attach;
+    }
+
+    public boolean isAttach() {
+        return attach;
+    }
+
+    /**
+     * Sets whether or not new sessions are reassembled and decoded on the thread calling {@link #accept(TCPPacket)}, emitting each packet
+     * as soon as the segment completing it arrives, instead of on two parse threads per session. Sessions already started keep their
+     * mode. Defaults to the phoenixlab.hearthstone.push system property.
+     */
+    public void setPush(boolean push) {
+        this.push = push;
+    }
+
+    public boolean isPush() {
+        return push;
+    }
+
+    /**
+     * Gets the memory budget this manager's sessions are charged to, which lists the bytes held by each session.
+     */
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+}
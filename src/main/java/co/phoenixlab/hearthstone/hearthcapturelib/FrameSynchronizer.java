@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CaptureStruct;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.encoding.HSDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Finds a packet boundary in a Hearthstone stream that was joined part way through, such as a game already in progress when capture
+ * started.
+ * <p>
+ * Stream bytes are appended until some offset is confirmed as the start of a frame: its packet id must be a
+ * {@link GameEnums.PacketType} with a packet class, its length must be plausible, the frame after it must have a plausible header too,
+ * and its body must decode. Packet ids and lengths are little endian and small, so their high bytes being zero alone rules out nearly
+ * every offset inside a body. Once confirmed, the bytes from the boundary on are handed back for normal framing.
+ *
+ * @author Vincent Zhang
+ */
+class FrameSynchronizer {
+
+    static final int HEADER_LENGTH = 8;
+    /**
+     * Largest body length considered plausible while scanning. Longer frames can't be synchronized on, but the frame after one can.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+    /**
+     * Consecutive plausible headers needed to confirm a boundary.
+     */
+    private static final int CONFIRM_FRAMES = 2;
+
+    private static final int CONFIRMED = 0;
+    private static final int REJECTED = 1;
+    private static final int NEED_MORE = 2;
+
+    private byte[] buffer;
+    /**
+     * The earliest offset in buffer that hasn't been ruled out as a boundary.
+     */
+    private int scan;
+    private int limit;
+    private boolean synced;
+    private long bytesSkipped;
+
+    FrameSynchronizer() {
+        buffer = new byte[4096];
+    }
+
+    /**
+     * Appends stream bytes and scans for a boundary.
+     *
+     * @return true once a boundary has been confirmed, after which {@link #getBuffer()}, {@link #getStart()} and {@link #getEnd()} hold
+     * the bytes from the boundary on.
+     */
+    boolean append(byte[] data, int offset, int length) {
+        if (synced) {
+            throw new IllegalStateException("Already synchronized");
+        }
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, limit, length);
+        limit += length;
+        return scan();
+    }
+
+    /**
+     * Appends a single stream byte and scans for a boundary.
+     */
+    boolean append(int b) {
+        if (synced) {
+            throw new IllegalStateException("Already synchronized");
+        }
+        ensureCapacity(1);
+        buffer[limit++] = (byte) b;
+        return scan();
+    }
+
+    private boolean scan() {
+        while (scan + HEADER_LENGTH <= limit) {
+            int result = check(scan);
+            if (result == CONFIRMED) {
+                synced = true;
+                return true;
+            }
+            //  A candidate that would need more than a maximum length frame and a header to confirm isn't a boundary
+            if (result == REJECTED || limit - scan > MAX_FRAME_LENGTH + HEADER_LENGTH * CONFIRM_FRAMES) {
+                scan++;
+                bytesSkipped++;
+            } else {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private int check(int start) {
+        int position = start;
+        for (int frames = 0; frames < CONFIRM_FRAMES; frames++) {
+            if (position + HEADER_LENGTH > limit) {
+                return NEED_MORE;
+            }
+            Class<? extends CaptureStruct> clazz = packetClass(buffer, position);
+            int length = getInt(buffer, position + 4);
+            if (clazz == null || length < 0 || length > MAX_FRAME_LENGTH) {
+                return REJECTED;
+            }
+            if (frames == 0) {
+                if (position + HEADER_LENGTH + length > limit) {
+                    return NEED_MORE;
+                }
+                if (!decodes(clazz, position + HEADER_LENGTH, length)) {
+                    return REJECTED;
+                }
+            }
+            position += HEADER_LENGTH + length;
+        }
+        return CONFIRMED;
+    }
+
+    private boolean decodes(Class<? extends CaptureStruct> clazz, int offset, int length) {
+        try {
+            HSDecoder.decode(ByteBuffer.wrap(buffer, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN), clazz);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether any offset in a range could hold a frame header, going by the header alone. Used to decide whether a connection
+     * is worth attaching to before committing a session to it.
+     */
+    static boolean containsCandidate(byte[] data, int offset, int length) {
+        for (int i = offset; i + HEADER_LENGTH <= offset + length; i++) {
+            int bodyLength = getInt(data, i + 4);
+            if (bodyLength >= 0 && bodyLength <= MAX_FRAME_LENGTH && packetClass(data, i) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Class<? extends CaptureStruct> packetClass(byte[] data, int offset) {
+        GameEnums.PacketType type = GameEnums.getById(GameEnums.PacketType.class, getInt(data, offset));
+        return type == null ? null : type.clazz;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (limit + extra <= buffer.length) {
+            return;
+        }
+        //  Bytes before the scan position can never be part of the result
+        if (scan > 0) {
+            System.arraycopy(buffer, scan, buffer, 0, limit - scan);
+            limit -= scan;
+            scan = 0;
+        }
+        if (limit + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, limit + extra));
+        }
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    boolean isSynced() {
+        return synced;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the offset of the confirmed boundary in {@link #getBuffer()}.
+     */
+    int getStart() {
+        return scan;
+    }
+
+    /**
+     * Gets the end of the buffered bytes in {@link #getBuffer()}.
+     */
+    int getEnd() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of bytes ruled out before the boundary.
+     */
+    long getBytesSkipped() {
+        return bytesSkipped;
+    }
+}
@@ -24,16 +24,14 @@
 
 package co.phoenixlab.hearthstone.hearthcapturelib;
 
-import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
-import co.phoenixlab.hearthstone.hearthcapturelib.util.NetInterfaces;
-import org.jnetpcap.PcapIf;
-
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * The primary entry point of HearthCaptureLib. Provides the means to listen for a single Hearthstone game, returning a CaptureQueue
@@ -73,34 +71,240 @@ import java.util.concurrent.atomic.AtomicReference;
  * }
  * </pre>
  * <p>The main method in this class has this as its implementation.</p>
+ * <p>Each listen call starts its own {@link CaptureEngine}. Engines whose listeners have all stopped are closed and forgotten the next
+ * time a listen call is made or statistics are read; {@link #close()} stops the ones still running.</p>
  *
  * @author Vincent Zhang
  */
-public class HearthCaptureLib implements HearthstoneCapturer {
+public class HearthCaptureLib implements HearthstoneCapturer, AutoCloseable {
 
 
     public static final Executor executor = Executors.newCachedThreadPool();
 
+    private CaptureOptions captureOptions;
+    private final List<CaptureEngine> engines;
+    /**
+     * Engine set up by {@link #prepare()} for the next listen call, or null.
+     */
+    private CaptureEngine prepared;
+    private boolean closed;
+
     public HearthCaptureLib() {
+        captureOptions = CaptureOptions.defaults();
+        engines = new ArrayList<>();
+    }
+
+    /**
+     * Gets the maximum number of packets each listener processes per native dispatch call.
+     */
+    public int getBatchSize() {
+        return captureOptions.getBatchSize();
+    }
+
+    /**
+     * Sets the maximum number of packets each listener processes per native dispatch call. Larger batches mean fewer native calls
+     * under load. Takes effect on the next call to {@link #listen()}, {@link #listenAll(Consumer)} or {@link #listenContinuously(Consumer)}.
+     *
+     * @see CaptureOptions#setBatchSize(int)
+     */
+    public void setBatchSize(int batchSize) {
+        //  Copied so the options passed to setCaptureOptions aren't changed behind the caller's back
+        captureOptions = captureOptions.copy().setBatchSize(batchSize);
+        discardPrepared();
+    }
+
+    /**
+     * Gets the settings used for the capture handles.
+     */
+    public CaptureOptions getCaptureOptions() {
+        return captureOptions;
+    }
+
+    /**
+     * Sets the settings used for the capture handles, such as {@link CaptureOptions#lowLatency()} or
+     * {@link CaptureOptions#highThroughput()}. Takes effect on the next call to {@link #listen()}, {@link #listenAll(Consumer)} or
+     * {@link #listenContinuously(Consumer)}.
+     */
+    public void setCaptureOptions(CaptureOptions captureOptions) {
+        if (captureOptions == null) {
+            throw new NullPointerException("captureOptions");
+        }
+        this.captureOptions = captureOptions;
+        discardPrepared();
+    }
 
+    /**
+     * Does ahead of time what would otherwise delay the first decoded packet of the next listen call, so it only has to start
+     * capturing: lists the network interfaces, opens a capture handle on each with its filter installed, and sets up the decoders of
+     * every packet type. JSON support isn't set up until something is converted to JSON. Changing the batch size or capture options
+     * afterwards undoes the preparation.
+     *
+     * @return The number of capture handles opened and waiting to be used.
+     * @see CaptureEngine#prepare()
+     */
+    public int prepare() {
+        CaptureEngine engine;
+        synchronized (engines) {
+            checkOpen();
+            if (prepared == null) {
+                prepared = new CaptureEngine(captureOptions);
+            }
+            engine = prepared;
+        }
+        return engine.prepare();
+    }
+
+    /**
+     * Sets up the decoders of every packet type without opening any capture handles, for decoding from sources other than network
+     * interfaces, such as {@link PcapFileCapturer} or {@link ProxyCapturer}.
+     */
+    public static void prepareDecoders() {
+        HearthFrameDecoder.prepare();
+    }
+
+    private void discardPrepared() {
+        CaptureEngine engine;
+        synchronized (engines) {
+            engine = prepared;
+            prepared = null;
+        }
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    /**
+     * Gets the resource use and pcap received/dropped counters of every interface listener started by this object that is still
+     * running.
+     */
+    public List<InterfaceStatistics> getStatistics() {
+        List<InterfaceStatistics> statistics = new ArrayList<>();
+        synchronized (engines) {
+            removeFinished();
+            for (CaptureEngine engine : engines) {
+                statistics.addAll(engine.getStatistics());
+            }
+        }
+        return statistics;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Interfaces that don't find the game are stopped and their capture handles closed as soon as a game is found. Use a
+     * {@link CaptureEngine} directly to also be able to stop the selected interface.
+     */
     @Override
     public CaptureQueue listen() throws InterruptedException, NoSuchElementException {
-        List<PcapIf> devices = NetInterfaces.getNetworkInterfaces();
-        if (devices.isEmpty()) {
-            throw new NoSuchElementException("No network interfaces found!");
+        return newEngine().listen();
+    }
+
+    /**
+     * Listens on all network interfaces for any number of concurrent Hearthstone games. Unlike {@link #listen()} this does not block and
+     * does not stop after the first game: every Aurora handshake seen on any interface produces a new CaptureQueue.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game. Calls come from the capture thread of the interface the game
+     *                        was found on, so it may be called concurrently and should return quickly.
+     * @return The session managers for each interface.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<CaptureSessionManager> listenAll(Consumer<CaptureQueue> sessionListener) throws NoSuchElementException {
+        return newEngine().listenAll(sessionListener);
+    }
+
+    /**
+     * Listens on all network interfaces for any number of concurrent Hearthstone games like {@link #listenAll(Consumer)}, but reassembles
+     * and decodes the games seen on each interface on a fixed number of shard threads instead of two threads per game. Suited to
+     * capture points that see many games at once, such as a tap or SPAN port.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from the thread of the shard that owns it. It may be
+     *                        called concurrently and should return quickly.
+     * @param shardCount      The number of shard threads per interface.
+     * @return The sharded captures for each interface.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<ShardedCapture> listenSharded(Consumer<CaptureQueue> sessionListener, int shardCount) throws NoSuchElementException {
+        return newEngine().listenSharded(sessionListener, shardCount);
+    }
+
+    /**
+     * Listens on all network interfaces for any number of concurrent Hearthstone games like {@link #listenAll(Consumer)}, but merges
+     * the interfaces and drops segments captured on more than one of them, so a game seen through a bridge or tunnel is only reported
+     * once.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game. It should return quickly.
+     * @return The merged capture all interfaces feed.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public MergedCapture listenMerged(Consumer<CaptureQueue> sessionListener) throws NoSuchElementException {
+        return newEngine().listenMerged(sessionListener);
+    }
+
+    /**
+     * Listens on all network interfaces for Hearthstone games, one after another, without stopping. Each interface keeps its capture
+     * handle open between games, so a new game is picked up as soon as its handshake is seen rather than after reopening every
+     * interface as repeated calls to {@link #listen()} would.
+     *
+     * @param gameListener Called with the CaptureQueue of every new game. Calls come from the capture thread of the interface the game
+     *                     was found on, so it may be called concurrently and should return quickly.
+     * @return The listeners for each interface, which can be stopped with {@link NetInterfaceListener#shutdown()}.
+     * @throws java.util.NoSuchElementException If there are no enabled network interfaces on the system.
+     */
+    public List<NetInterfaceListener> listenContinuously(Consumer<CaptureQueue> gameListener) throws NoSuchElementException {
+        return newEngine().listenContinuously(gameListener);
+    }
+
+    /**
+     * Stops every listener started by this object, closing the current games' queues, and releases any handles opened by
+     * {@link #prepare()}. Listen calls made afterwards throw IllegalStateException.
+     *
+     * @see CaptureEngine#close()
+     */
+    @Override
+    public void close() {
+        List<CaptureEngine> toClose;
+        synchronized (engines) {
+            closed = true;
+            toClose = new ArrayList<>(engines);
+            engines.clear();
+            if (prepared != null) {
+                toClose.add(prepared);
+                prepared = null;
+            }
         }
-        CountDownLatch latch = new CountDownLatch(1);
-        AtomicReference<CaptureQueue> result = new AtomicReference<>();
-        for (PcapIf device : devices) {
-            NetInterfaceListener listener = new NetInterfaceListener(device, latch, result);
-            executor.execute(listener);
+        toClose.forEach(CaptureEngine::close);
+    }
+
+    private CaptureEngine newEngine() {
+        synchronized (engines) {
+            checkOpen();
+            removeFinished();
+            CaptureEngine engine = prepared != null ? prepared : new CaptureEngine(captureOptions);
+            prepared = null;
+            engines.add(engine);
+            return engine;
+        }
+    }
+
+    /**
+     * Closes and forgets the engines whose listeners have all stopped. Must hold the lock on {@link #engines}.
+     */
+    private void removeFinished() {
+        Iterator<CaptureEngine> iterator = engines.iterator();
+        while (iterator.hasNext()) {
+            CaptureEngine engine = iterator.next();
+            if (engine.isFinished()) {
+                //  Every capture thread has exited, so this doesn't wait; it only closes what the engine still holds
+                engine.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("HearthCaptureLib is closed");
         }
-        HCapUtils.logger.info("Waiting on listeners...");
-        latch.await();
-        HCapUtils.logger.info("Listener found!");
-        return result.get();
     }
 
     public static void main(String[] args) throws Exception {
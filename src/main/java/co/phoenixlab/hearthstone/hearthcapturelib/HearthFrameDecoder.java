@@ -0,0 +1,307 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CaptureStruct;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.encoding.HSDecoder;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Frames and decodes Hearthstone packets from stream bytes pushed to it, without blocking or a thread of its own.
+ * <p>
+ * The 8 byte packet header is read incrementally across segment boundaries, then the body is collected and decoded as soon as its
+ * last byte arrives. Framing matches {@link HearthPacketQueue}.
+ *
+ * @author Vincent Zhang
+ */
+class HearthFrameDecoder implements TCPSegmentReassembler.Sink {
+
+    private static final int HEADER_LENGTH = 8;
+    /**
+     * Bytes dropped after a packet id with a zero low byte (some sort of protocol noise?)
+     */
+    private static final int NOISE_LENGTH = 2;
+
+    private final Consumer<CapturePacket> output;
+    private final boolean outbound;
+    private final long startTime;
+    private final byte[] header;
+    private int headerPos;
+    private int skip;
+    private int packetId;
+    private byte[] body;
+    private int bodyPos;
+    /**
+     * Looks for a frame boundary while the stream is being joined part way through, or null once framing is known.
+     */
+    private FrameSynchronizer synchronizer;
+    private long bytesSkipped;
+    private volatile long bytesLost;
+    private volatile long packetsLost;
+
+    /**
+     * @param output    Receives every decoded packet, on the thread pushing bytes.
+     * @param outbound  Whether the stream is client to server.
+     * @param startTime The time at which the capture started, in milliseconds since the epoch.
+     */
+    HearthFrameDecoder(Consumer<CapturePacket> output, boolean outbound, long startTime) {
+        this.output = output;
+        this.outbound = outbound;
+        this.startTime = startTime;
+        header = new byte[HEADER_LENGTH];
+    }
+
+    @Override
+    @MThread("listener")
+    public void accept(TCPPacket packet, int offset, int length) {
+        feed(packet, null, offset, length, packet.packetTimeNanos);
+    }
+
+    /**
+     * Pushes stream bytes that didn't come from a captured segment, such as those read from a relayed socket.
+     *
+     * @param timeNanos When the bytes were received, in nanoseconds since the epoch.
+     */
+    @MThread("listener")
+    void accept(byte[] data, int offset, int length, long timeNanos) {
+        feed(null, data, offset, length, timeNanos);
+    }
+
+    /**
+     * Frames bytes from either a segment's payload or a plain array, whichever is non-null.
+     */
+    private void feed(TCPPacket packet, byte[] data, int offset, int length, long timeNanos) {
+        if (synchronizer != null) {
+            synchronize(packet, data, offset, length, timeNanos);
+            return;
+        }
+        int end = offset + length;
+        while (offset < end && synchronizer == null) {
+            if (skip > 0) {
+                int n = Math.min(skip, end - offset);
+                skip -= n;
+                offset += n;
+            } else if (body == null) {
+                //  Stop after the packet id so noise can be checked before reading the length
+                int n = Math.min((headerPos < 4 ? 4 : HEADER_LENGTH) - headerPos, end - offset);
+                copy(packet, data, offset, header, headerPos, n);
+                headerPos += n;
+                offset += n;
+                readHeader();
+            } else {
+                int n = Math.min(body.length - bodyPos, end - offset);
+                copy(packet, data, offset, body, bodyPos, n);
+                bodyPos += n;
+                offset += n;
+            }
+            if (synchronizer != null) {
+                //  Framing was lost part way through, so look for a boundary in what's left
+                synchronize(packet, data, offset, end - offset, timeNanos);
+                return;
+            }
+            if (body != null && bodyPos == body.length) {
+                byte[] done = body;
+                body = null;
+                CapturePacket decoded = decode(packetId, done, outbound, timeNanos, HCapUtils.currentTimeNanos(), startTime, true);
+                if (decoded != null) {
+                    output.accept(decoded);
+                }
+            }
+        }
+    }
+
+    private void synchronize(TCPPacket packet, byte[] data, int offset, int length, long timeNanos) {
+        if (packet != null) {
+            data = new byte[length];
+            packet.copyPayload(offset, data, 0, length);
+            offset = 0;
+        }
+        if (!synchronizer.append(data, offset, length)) {
+            return;
+        }
+        FrameSynchronizer synced = synchronizer;
+        synchronizer = null;
+        bytesSkipped += synced.getBytesSkipped();
+        HCapUtils.logger.info("Found frame boundary" + (outbound ? " OUT" : " IN") + " after skipping " + synced.getBytesSkipped() + " bytes");
+        feed(null, synced.getBuffer(), synced.getStart(), synced.getEnd() - synced.getStart(), timeNanos);
+    }
+
+    /**
+     * Forgets any partial frame and scans the bytes that follow for the next frame boundary, for streams joined part way through.
+     */
+    @MThread("listener")
+    void resynchronize() {
+        synchronizer = new FrameSynchronizer();
+        headerPos = 0;
+        skip = 0;
+        body = null;
+    }
+
+    /**
+     * Gets whether the decoder is still looking for a frame boundary.
+     */
+    boolean isSynchronizing() {
+        return synchronizer != null;
+    }
+
+    /**
+     * Gets the number of bytes dropped while looking for frame boundaries.
+     */
+    long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    private static void copy(TCPPacket packet, byte[] data, int index, byte[] dest, int destIndex, int length) {
+        if (packet != null) {
+            packet.copyPayload(index, dest, destIndex, length);
+        } else {
+            System.arraycopy(data, index, dest, destIndex, length);
+        }
+    }
+
+    /**
+     * Stream bytes were lost, so the current frame can't be completed and there's no telling where the next one starts. The partial
+     * frame is dropped and decoding carries on from the next frame boundary found.
+     */
+    @Override
+    @MThread("listener")
+    public void gap(long length) {
+        HCapUtils.logger.warning("Lost " + length + " bytes" + (outbound ? " OUT" : " IN") + ", resynchronizing");
+        bytesLost += length;
+        packetsLost++;
+        resynchronize();
+    }
+
+    /**
+     * Gets the number of stream bytes lost to gaps.
+     */
+    long getBytesLost() {
+        return bytesLost;
+    }
+
+    /**
+     * Gets the number of packets known to be lost: one for each gap, and one for each header found to be invalid.
+     */
+    long getPacketsLost() {
+        return packetsLost;
+    }
+
+    private void readHeader() {
+        if (headerPos == 4 && (header[0] & 0xFF) == 0) {
+            //  Invalid packet id, drop it and the next 2 bytes
+            headerPos = 0;
+            skip = NOISE_LENGTH;
+            return;
+        }
+        if (headerPos < HEADER_LENGTH) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        packetId = buffer.getInt();
+        int length = buffer.getInt();
+        headerPos = 0;
+        if (length < 0 || length > FrameSynchronizer.MAX_FRAME_LENGTH) {
+            //  Garbage rather than a frame, and allocating a body for it could exhaust the heap
+            HCapUtils.logger.warning("Bad packet length " + length + " for type " + packetId + (outbound ? " OUT" : " IN") +
+                    ", resynchronizing");
+            packetsLost++;
+            resynchronize();
+            return;
+        }
+        body = new byte[length];
+        bodyPos = 0;
+    }
+
+    /**
+     * Builds the decoder metadata of every packet type and decodes an empty body of each, so that classes are loaded and reflection is
+     * set up before the first real packet arrives.
+     */
+    static void prepare() {
+        ByteBuffer empty = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        for (GameEnums.PacketType type : GameEnums.PacketType.values()) {
+            if (type.clazz == null) {
+                continue;
+            }
+            HSDecoder.prepare(type.clazz);
+            try {
+                HSDecoder.decode(empty, type.clazz);
+            } catch (IOException | RuntimeException e) {
+                //  Some packets don't make sense empty, their classes are loaded either way
+                HCapUtils.logger.log(Level.FINE, "Empty " + type + " did not decode", e);
+            }
+        }
+    }
+
+    /**
+     * Decodes a packet body and stamps it with its capture timestamps.
+     *
+     * @param packetId        The packet type id.
+     * @param body            The packet body, without the 8 byte header.
+     * @param outbound        Whether the packet was sent by the client.
+     * @param wireTime        Capture timestamp of the segment that completed the packet, in nanoseconds since the epoch.
+     * @param reassembledTime When the body was read out of the stream, in nanoseconds since the epoch.
+     * @param startTime       The time at which the capture started, in milliseconds since the epoch.
+     * @param live            Whether the wire time is from a live capture. Replayed files keep their original timestamps, which
+     *                        would swamp the live wire to reassembled latency.
+     * @return The decoded packet, or null if the type is unknown or the body could not be decoded.
+     */
+    static CapturePacket decode(int packetId, byte[] body, boolean outbound, long wireTime, long reassembledTime, long startTime,
+                                boolean live) {
+        GameEnums.PacketType type = GameEnums.getById(GameEnums.PacketType.class, packetId);
+        Class<? extends CaptureStruct> clazz = type == null ? null : type.clazz;
+        if (clazz == null) {
+            HCapUtils.logger.warning("no packet for type " + packetId + (outbound ? " OUT" : " IN"));
+            return null;
+        }
+        CapturePacket packet;
+        try {
+            packet = HSDecoder.decode(ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN), clazz);
+        } catch (IOException | RuntimeException e) {
+            HCapUtils.logger.log(Level.WARNING, "Failed to decode packet of type " + packetId + (outbound ? " OUT" : " IN"), e);
+            return null;
+        }
+        long decodedTime = HCapUtils.currentTimeNanos();
+        if (live) {
+            CaptureLatency.getWireToReassembled().record(reassembledTime - wireTime);
+        }
+        CaptureLatency.getReassembledToDecoded().record(decodedTime - reassembledTime);
+        //  Relative to when the packet was on the wire rather than when we got around to decoding it
+        return packet.
+                setInbound(!outbound).
+                setTimestamps(wireTime, reassembledTime, decodedTime).
+                setEncodedLength(HEADER_LENGTH + body.length).
+                setCaptureDeltaTime(wireTime / 1_000_000L - startTime);
+    }
+}
@@ -25,17 +25,17 @@
 package co.phoenixlab.hearthstone.hearthcapturelib;
 
 import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
-import co.phoenixlab.hearthstone.hearthcapturelib.packets.CaptureStruct;
-import co.phoenixlab.hearthstone.hearthcapturelib.packets.encoding.HSDecoder;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.StreamGapException;
 import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
 import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPStreamAssembler;
 import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.SequenceInputStream;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -54,17 +54,42 @@ class HearthPacketQueue
     private static final SignalPacket SIGNAL_PACKET = new SignalPacket();
 
     private final TCPStreamAssembler assembler;
-    private final DataInputStream inputStream;
+    private DataInputStream inputStream;
+    /**
+     * Looks for a frame boundary while the stream is being joined part way through, or null once framing is known.
+     */
+    private FrameSynchronizer synchronizer;
     private final AtomicBoolean closed;
+    private final AtomicBoolean finished;
     private final ArrayBlockingQueue<CapturePacket> packets;
     private final boolean outbound;
     private final long startTime;
+    /**
+     * Whether the segments come from a live capture, so their timestamps can be compared with the current time.
+     */
+    private final boolean live;
+    private volatile long bytesLost;
+    private volatile long packetsLost;
+    /**
+     * Reused for the two header fields.
+     */
+    private final byte[] header = new byte[4];
 
     public HearthPacketQueue(TCPStreamAssembler assembler, boolean outbound, long startTime) {
+        this(assembler, outbound, startTime, true);
+    }
+
+    /**
+     * @param live False if the segments are replayed from a file, so their capture timestamps are kept out of the process-wide
+     *             wire to reassembled latency.
+     */
+    HearthPacketQueue(TCPStreamAssembler assembler, boolean outbound, long startTime, boolean live) {
+        this.live = live;
         this.assembler = assembler;
         inputStream = new DataInputStream(assembler);
         packets = new ArrayBlockingQueue<>(1000);
         closed = new AtomicBoolean(false);
+        finished = new AtomicBoolean(false);
         this.outbound = outbound;
         this.startTime = startTime;
     }
@@ -76,8 +101,12 @@ class HearthPacketQueue
         }
         CapturePacket packet = packets.take();
         if(packet == SIGNAL_PACKET) {
+            closed.set(true);
             throw new InterruptedException();
         }
+        long now = HCapUtils.currentTimeNanos();
+        packet.setDeliveredTimeNanos(now);
+        CaptureLatency.getDecodedToConsumed().record(now - packet.getDecodedTimeNanos());
         return packet;
     }
 
@@ -88,49 +117,82 @@ class HearthPacketQueue
                 if (packet != null) {
                     packets.put(packet);
                 }
+            } catch (StreamGapException gap) {
+                //  Whatever was being read across the gap is incomplete, so drop it and look for the next frame
+                HCapUtils.logger.warning("Lost " + gap.getLength() + " bytes" + (outbound ? " OUT" : " IN") + ", resynchronizing");
+                bytesLost += gap.getLength();
+                packetsLost++;
+                inputStream = new DataInputStream(assembler);
+                resynchronize();
             } catch (EOFException eof) {
+                //  Stream was finished, signal the consumer once it has drained what we've decoded
+                if (finished.get()) {
+                    putSignal();
+                }
                 break;
             } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
             }
         }
+        //  Nothing more will be read, so let go of any buffers still held
+        assembler.close();
     }
 
     private CapturePacket readPacket() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        byte[] data = new byte[4];
-        inputStream.readFully(data);
-        buffer.put(data);
-        buffer.flip();
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        int packetId = buffer.getInt();
+        if (synchronizer != null) {
+            synchronize();
+        }
+        inputStream.readFully(header);
+        int packetId = FrameSynchronizer.getInt(header, 0);
         //  If we have an invalid packetId drop the next 2 bytes
         //  (some sort of protocol noise?)
         if ((packetId & 0xFF) == 0) {
             inputStream.skipBytes(2);
             return null;
         }
-        buffer.flip();
-        inputStream.readFully(data);
-        buffer.put(data);
-        buffer.flip();
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        int length = buffer.getInt();
-        ByteBuffer dataBuffer = ByteBuffer.allocate(length);
-        data = new byte[length];
-        inputStream.readFully(data);
-        dataBuffer.put(data);
-        dataBuffer.flip();
-        dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        Class<? extends CaptureStruct> clazz = GameEnums.getById(GameEnums.PacketType.class, packetId).clazz;
-        if (clazz == null) {
-            HCapUtils.logger.warning("no packet for type " + packetId + (outbound ? " OUT" : " IN"));
+        inputStream.readFully(header);
+        int length = FrameSynchronizer.getInt(header, 0);
+        if (length < 0 || length > FrameSynchronizer.MAX_FRAME_LENGTH) {
+            HCapUtils.logger.warning("Bad packet length " + length + " for type " + packetId + (outbound ? " OUT" : " IN") +
+                    ", resynchronizing");
+            packetsLost++;
+            resynchronize();
             return null;
         }
-        CapturePacket packet = HSDecoder.decode(dataBuffer, clazz);
-        return packet.
-                setInbound(!outbound).
-                setCaptureDeltaTime(System.currentTimeMillis() - startTime);
+        //  Whole runs of each TCP segment are copied at once
+        byte[] data = new byte[length];
+        inputStream.readFully(data);
+        long wireTime = assembler.getLastByteTimeNanos();
+        long reassembledTime = HCapUtils.currentTimeNanos();
+        return HearthFrameDecoder.decode(packetId, data, outbound, wireTime, reassembledTime, startTime, live);
+    }
+
+    /**
+     * Reads until a frame boundary is found, then carries on reading from the boundary.
+     */
+    @MThread("user")
+    private void synchronize() throws IOException {
+        int b;
+        do {
+            b = inputStream.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+        } while (!synchronizer.append(b));
+        FrameSynchronizer synced = synchronizer;
+        synchronizer = null;
+        HCapUtils.logger.info("Found frame boundary" + (outbound ? " OUT" : " IN") + " after skipping " + synced.getBytesSkipped() + " bytes");
+        //  The frames used to confirm the boundary have already been read from the assembler
+        inputStream = new DataInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(synced.getBuffer(), synced.getStart(), synced.getEnd() - synced.getStart()), assembler));
+    }
+
+    /**
+     * Starts decoding at the next frame boundary found rather than at the first byte, for a game joined part way through. Must be
+     * called before {@link #parseLoop()} starts, after which the parse thread calls it itself when a gap is skipped.
+     */
+    void resynchronize() {
+        synchronizer = new FrameSynchronizer();
     }
 
     @Override
@@ -160,6 +222,20 @@ class HearthPacketQueue
     @Override
     public void close() {
         closed.set(true);
+        //  Wake the parse thread and let go of anything it hadn't read yet
+        assembler.abort();
+        //  Make room for the signal even if the consumer has stopped reading
+        packets.clear();
+        putSignal();
+    }
+
+    @Override
+    public void finish() {
+        finished.set(true);
+        assembler.finish();
+    }
+
+    private void putSignal() {
         boolean cleared = false;
         while (!cleared) {
             try {
@@ -174,4 +250,14 @@ class HearthPacketQueue
     public long getCaptureStartTime() {
         return startTime;
     }
+
+    @Override
+    public long getBytesLost() {
+        return bytesLost;
+    }
+
+    @Override
+    public long getPacketsLost() {
+        return packetsLost;
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+/**
+ * A snapshot of the resources used by the listener on one network interface.
+ *
+ * @author Vincent Zhang
+ */
+public class InterfaceStatistics {
+
+    /**
+     * The name of the network interface.
+     */
+    public final String interfaceName;
+    public final String description;
+    /**
+     * Whether or not the native capture handle is still open.
+     */
+    public final boolean open;
+    /**
+     * Whether or not this interface won the race to capture a single game.
+     */
+    public final boolean selected;
+    /**
+     * The number of packets handed to the listener by pcap.
+     */
+    public final long packets;
+    /**
+     * The number of captured bytes handed to the listener by pcap, including link layer headers.
+     */
+    public final long bytes;
+    /**
+     * The CPU time used by the capture thread, in nanoseconds.
+     */
+    public final long cpuNanos;
+    /**
+     * The number of packets received by the kernel's capture filter, as reported by pcap.
+     */
+    public final long kernelReceived;
+    /**
+     * The number of packets dropped because the kernel buffer was full, as reported by pcap.
+     */
+    public final long kernelDropped;
+    /**
+     * The number of packets dropped by the network interface or its driver, as reported by pcap.
+     */
+    public final long interfaceDropped;
+
+    public InterfaceStatistics(String interfaceName, String description, boolean open, boolean selected, long packets, long bytes,
+                               long cpuNanos, long kernelReceived, long kernelDropped, long interfaceDropped) {
+        this.interfaceName = interfaceName;
+        this.description = description;
+        this.open = open;
+        this.selected = selected;
+        this.packets = packets;
+        this.bytes = bytes;
+        this.cpuNanos = cpuNanos;
+        this.kernelReceived = kernelReceived;
+        this.kernelDropped = kernelDropped;
+        this.interfaceDropped = interfaceDropped;
+    }
+
+    @Override
+    public String toString() {
+        return "InterfaceStatistics{" +
+                "interfaceName='" + interfaceName + '\'' +
+                ", open=" + open +
+                ", selected=" + selected +
+                ", packets=" + packets +
+                ", bytes=" + bytes +
+                ", cpuMillis=" + cpuNanos / 1_000_000L +
+                ", kernelReceived=" + kernelReceived +
+                ", kernelDropped=" + kernelDropped +
+                ", interfaceDropped=" + interfaceDropped +
+                '}';
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.SegmentDeduplicator;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+import java.util.function.Consumer;
+
+/**
+ * A session manager fed by the listeners of several network interfaces at once, which drops segments already seen on another
+ * interface before they reach the games.
+ * <p>
+ * On hosts with bridges, VPN tunnels or loopback mirroring the same segment can be captured on more than one interface. Listening on
+ * each interface separately would then start one game per interface, while feeding them all to one manager would hand the reassembler
+ * every segment several times. Merging the interfaces here and removing duplicates with a {@link SegmentDeduplicator} means each game
+ * is reassembled once.
+ * <p>
+ * Calls from the different capture threads are serialized, so the wrapped manager still only sees one thread at a time.
+ *
+ * @author Vincent Zhang
+ */
+public class MergedCapture extends CaptureSessionManager {
+
+    private final CaptureSessionManager delegate;
+    private final SegmentDeduplicator deduplicator;
+    private final Object lock = new Object();
+    private int openSources;
+
+    /**
+     * Creates a merged capture that starts its own sessions.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from the capture thread of whichever interface saw its
+     *                        handshake first. It should return quickly.
+     * @param sources         The number of listeners that will feed this capture. Sessions are finished once all of them have stopped.
+     */
+    public MergedCapture(Consumer<CaptureQueue> sessionListener, int sources) {
+        this(new CaptureSessionManager(sessionListener), sources);
+    }
+
+    /**
+     * Creates a merged capture that hands deduplicated packets to another manager, such as a {@link ShardedCapture}.
+     *
+     * @param delegate The manager to hand deduplicated packets to.
+     * @param sources  The number of listeners that will feed this capture. Sessions are finished once all of them have stopped.
+     */
+    public MergedCapture(CaptureSessionManager delegate, int sources) {
+        super(null);
+        if (sources < 1) {
+            throw new IllegalArgumentException("Sources must be at least 1");
+        }
+        this.delegate = delegate;
+        deduplicator = new SegmentDeduplicator(Integer.getInteger("phoenixlab.hearthstone.dedupe.slots", SegmentDeduplicator.DEFAULT_SLOTS),
+                Long.getLong("phoenixlab.hearthstone.dedupe.window", SegmentDeduplicator.DEFAULT_WINDOW));
+        openSources = sources;
+    }
+
+    @Override
+    @MThread("listener")
+    public void accept(TCPPacket packet) {
+        synchronized (lock) {
+            if (!deduplicator.isDuplicate(packet)) {
+                delegate.accept(packet);
+            }
+        }
+    }
+
+    @Override
+    @MThread("listener")
+    public void tick(long now) {
+        synchronized (lock) {
+            delegate.tick(now);
+        }
+    }
+
+    /**
+     * Called by each listener as it stops. Sessions are finished when the last one does, since the others may still be capturing them.
+     */
+    @Override
+    @MThread("listener")
+    public void finishAll() {
+        synchronized (lock) {
+            if (openSources > 0 && --openSources == 0) {
+                delegate.finishAll();
+            }
+        }
+    }
+
+    @Override
+    public int getActiveSessionCount() {
+        return delegate.getActiveSessionCount();
+    }
+
+    @Override
+    public long getSessionsStarted() {
+        synchronized (lock) {
+            return delegate.getSessionsStarted();
+        }
+    }
+
+    @Override
+    public long getSessionsExpired() {
+        synchronized (lock) {
+            return delegate.getSessionsExpired();
+        }
+    }
+
+    @Override
+    public long getSessionsEvicted() {
+        synchronized (lock) {
+            return delegate.getSessionsEvicted();
+        }
+    }
+
+    @Override
+    public long getSessionsAttached() {
+        synchronized (lock) {
+            return delegate.getSessionsAttached();
+        }
+    }
+
+    @Override
+    public void setAttach(boolean attach) {
+        delegate.setAttach(attach);
+    }
+
+    @Override
+    public boolean isAttach() {
+        return delegate.isAttach();
+    }
+
+    @Override
+    public void setPush(boolean push) {
+        delegate.setPush(push);
+    }
+
+    @Override
+    public boolean isPush() {
+        return delegate.isPush();
+    }
+
+    @Override
+    public MemoryBudget getBudget() {
+        return delegate.getBudget();
+    }
+
+    /**
+     * Gets the number of segments dropped because another interface had already captured them.
+     */
+    public long getDuplicatesDropped() {
+        synchronized (lock) {
+            return deduplicator.getDuplicates();
+        }
+    }
+
+    /**
+     * Gets the number of segments checked for duplicates.
+     */
+    public long getSegmentsChecked() {
+        synchronized (lock) {
+            return deduplicator.getChecked();
+        }
+    }
+
+    /**
+     * Gets the manager deduplicated packets are handed to.
+     */
+    public CaptureSessionManager getDelegate() {
+        return delegate;
+    }
+}
@@ -24,60 +24,282 @@
 
 package co.phoenixlab.hearthstone.hearthcapturelib;
 
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.ForeignPcap;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.LinkLayer;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapRecorder;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.AddressClassifier;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.FlowTable;
 import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPAddressPortPair;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser;
 import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
 import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPStreamAssembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
 import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+import org.jnetpcap.JBufferHandler;
 import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapAddr;
 import org.jnetpcap.PcapBpfProgram;
+import org.jnetpcap.PcapHeader;
 import org.jnetpcap.PcapIf;
-import org.jnetpcap.nio.JMemory;
-import org.jnetpcap.packet.PcapPacket;
+import org.jnetpcap.PcapSockAddr;
+import org.jnetpcap.PcapStat;
+import org.jnetpcap.nio.JBuffer;
 import org.jnetpcap.packet.format.FormatUtils;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 /**
  * Captures packets from the network interface, filters out non-Hearthstone packets, and sends the remaining packets for parsing.
+ * <p>
+ * Packets are read in batches of up to {@link #getBatchSize()} per native call with pcap dispatch. The IPv4 and TCP headers are
+ * parsed straight from the captured bytes without jNetPcap's protocol decoding, and only the TCP payload of packets that are kept is
+ * copied out of the capture buffer, into a buffer from the default {@link BufferPool}.
+ * <p>
+ * When capturing a single game, the capture filter is narrowed to the game's connection once the handshake is seen, so other traffic
+ * on the Hearthstone ports is dropped in the kernel instead of being handed to Java. The broad filter is restored when the game ends.
+ * <p>
+ * With {@link CaptureOptions#setForeign(boolean)}, packets are read through {@link ForeignPcap} instead of jNetPcap on runtimes that
+ * support it. ForeignPcap parses the headers itself and copies payloads into the same pool, and kernel drop counts aren't reported.
+ * <p>
+ * With {@link CaptureOptions#setPush(boolean)}, games are reassembled and decoded on the capture thread as packets are captured, instead
+ * of on two parse threads per game.
+ * <p>
+ * In continuous mode the listener goes back to looking for a handshake after each game instead of exiting, so the capture handle stays
+ * open and the next game is picked up as soon as it starts.
  *
  * @author Vincent Zhang
  */
 public class NetInterfaceListener implements Runnable {
 
+    /**
+     * What a listener does with the games it finds.
+     */
+    public static final class Mode {
+
+        private final CountDownLatch latch;
+        private final AtomicReference<CaptureQueue> result;
+        private final CaptureSessionManager sessionManager;
+        private final Consumer<CaptureQueue> gameListener;
+
+        private Mode(CountDownLatch latch, AtomicReference<CaptureQueue> result, CaptureSessionManager sessionManager,
+                     Consumer<CaptureQueue> gameListener) {
+            this.latch = latch;
+            this.result = result;
+            this.sessionManager = sessionManager;
+            this.gameListener = gameListener;
+        }
+
+        /**
+         * Captures the first Hearthstone game seen, unless another listener sharing the same result finds one first.
+         *
+         * @param latch  Counted down once a game is found.
+         * @param result Set to the CaptureQueue of the game by whichever listener finds one first.
+         */
+        public static Mode firstGame(CountDownLatch latch, AtomicReference<CaptureQueue> result) {
+            return new Mode(latch, result, null, null);
+        }
+
+        /**
+         * Captures one game at a time without stopping, handing the CaptureQueue of each game to the game listener.
+         *
+         * @param gameListener Called from the capture thread with the CaptureQueue of each new game. It should return quickly.
+         */
+        public static Mode continuous(Consumer<CaptureQueue> gameListener) {
+            return new Mode(null, null, null, gameListener);
+        }
+
+        /**
+         * Captures every Hearthstone game on the interface, handing each packet to the session manager.
+         */
+        public static Mode allGames(CaptureSessionManager sessionManager) {
+            return new Mode(null, null, sessionManager, null);
+        }
+    }
+
+    /**
+     * Default maximum number of packets processed per native dispatch call.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    /**
+     * Number of packets between reports of the capture thread's CPU usage.
+     */
+    private static final int CPU_REPORT_INTERVAL = 100_000;
+    /**
+     * Filter matching all Hearthstone traffic, used while looking for a game.
+     */
+    private static final String BROAD_FILTER = "tcp port 3724 or tcp port 1119";
+    /**
+     * Default maximum number of connections remembered while looking for a game.
+     */
+    public static final int DEFAULT_FLOW_TABLE_CAPACITY = 4096;
+    /**
+     * Default time after which an idle connection is forgotten, in milliseconds.
+     */
+    public static final long DEFAULT_FLOW_TTL = 10L * 60L * 1000L;
+    private static final long TIMER_TICK = 100L;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+
     private final PcapIf netInterface;
-    private final Set<TCPAddressPortPair> blacklist;
+    /**
+     * Connections seen while looking for a game, by remote address.
+     */
+    private final FlowTable flows;
     private final String cachedInterfaceDescription;
     private final CountDownLatch latch;
     private final AtomicReference<CaptureQueue> result;
     private final boolean logRawPackets;
-    private Pcap pcap;
+    private final CaptureSessionManager sessionManager;
+    private final Consumer<CaptureQueue> gameListener;
+    private final int batchSize;
+    private final CaptureOptions options;
+    private final long gameIdleTimeout;
+    private final long holeTimeout;
+    /**
+     * Runs timeouts on the capture thread, created when capture starts.
+     */
+    private HashedWheelTimer timer;
+    private volatile Pcap pcap;
+    /**
+     * The handle used instead of the jNetPcap one when capturing through {@link ForeignPcap}, or null.
+     */
+    private volatile ForeignPcap foreign;
+    /**
+     * Guards the pcap handle so it isn't closed while another thread is breaking its loop.
+     */
+    private final Object handleLock = new Object();
+    private int linkType;
+    /**
+     * Records every captured frame when recording is enabled, or null.
+     */
+    private PcapRecorder recorder;
+    /**
+     * Payload buffers for captured segments.
+     */
+    private final BufferPool pool;
+    private volatile boolean stopped;
+    private volatile boolean selected;
+    /**
+     * Filter to install once the current dispatch call returns, or null if the filter doesn't need to change.
+     */
+    private String pendingFilter;
+    //  Single game state
+    private TCPAddressPortPair serverAddress;
+    private CaptureQueue captureQueue;
+    private PacketQueue inboundQueue;
+    private PacketQueue outboundQueue;
+    private DebugDumper outDumper;
+    private DebugDumper inDumper;
+    private long lastGameActivity;
+    private HashedWheelTimer.Timeout gameIdleCheck;
+    private MemoryBudget.Account gameAccount;
+    //  CPU accounting
+    private final ThreadMXBean threadMXBean;
+    private long packetCount;
+    private long reportCpuTime;
+    private volatile long cpuNanosPerReportInterval;
+    //  Statistics, published from the capture thread
+    private final PcapStat pcapStat = new PcapStat();
+    private long lastStatisticsTime;
+    private volatile long totalPackets;
+    private volatile long totalBytes;
+    private volatile long cpuNanos;
+    private volatile long kernelReceived;
+    private volatile long kernelDropped;
+    private volatile long interfaceDropped;
 
-    public NetInterfaceListener(PcapIf netInterface, CountDownLatch latch, AtomicReference<CaptureQueue> result) {
+    /**
+     * @param netInterface The interface to capture on.
+     * @param mode         What to do with the games found.
+     * @param options      Settings for the capture handle and the listener.
+     */
+    public NetInterfaceListener(PcapIf netInterface, Mode mode, CaptureOptions options) {
         this.netInterface = netInterface;
-        blacklist = new HashSet<>();
+        flows = new FlowTable(Integer.getInteger("phoenixlab.hearthstone.flows.capacity", DEFAULT_FLOW_TABLE_CAPACITY),
+                Long.getLong("phoenixlab.hearthstone.flows.ttl", DEFAULT_FLOW_TTL));
         cachedInterfaceDescription = Optional.ofNullable(netInterface.getDescription()).orElse("<no desc>");
-        this.result = result;
-        this.latch = latch;
+        this.result = mode.result;
+        this.latch = mode.latch;
+        this.sessionManager = mode.sessionManager;
+        this.gameListener = mode.gameListener;
+        this.options = options.copy();
+        batchSize = this.options.getBatchSize();
+        pool = BufferPool.getDefault();
+        gameIdleTimeout = Long.getLong("phoenixlab.hearthstone.session.idle", CaptureSessionManager.DEFAULT_SESSION_IDLE_TIMEOUT);
+        holeTimeout = Long.getLong("phoenixlab.hearthstone.hole.timeout", TCPSegmentReassembler.DEFAULT_HOLE_TIMEOUT);
         logRawPackets = !"false".equalsIgnoreCase(System.getProperty("phoenixlab.hearthstone.lograw", "false"));
+        threadMXBean = ManagementFactory.getThreadMXBean();
     }
 
     private String logString(String s) {
         return netInterface.getName() + "/" + cachedInterfaceDescription + ": " + s;
     }
 
+    /**
+     * Gets the maximum number of packets processed per native dispatch call.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the CPU time the capture thread spent per 100,000 packets over the most recent 100,000 packets, in nanoseconds, or 0 if
+     * not measured yet. Comparing this between batch sizes shows the CPU saved by batching.
+     */
+    public long getCpuNanosPer100kPackets() {
+        return cpuNanosPerReportInterval;
+    }
+
+    /**
+     * Stops the listener from another thread. The current game's queues are closed and the capture thread exits shortly after.
+     */
+    public void shutdown() {
+        stopped = true;
+        synchronized (handleLock) {
+            if (pcap != null) {
+                pcap.breakloop();
+            }
+            if (foreign != null) {
+                foreign.breakLoop();
+            }
+        }
+    }
+
+    /**
+     * Checks whether or not this listener won the race to capture a single game.
+     */
+    public boolean isSelected() {
+        return selected;
+    }
+
+    /**
+     * Gets this listener's resource use. Counters are refreshed by the capture thread about once a second and when it exits.
+     */
+    public InterfaceStatistics getStatistics() {
+        return new InterfaceStatistics(netInterface.getName(), cachedInterfaceDescription, pcap != null || foreign != null, selected, totalPackets,
+                totalBytes, cpuNanos, kernelReceived, kernelDropped, interfaceDropped);
+    }
+
     @Override
     public void run() {
         try {
@@ -86,144 +308,667 @@ public class NetInterfaceListener implements Runnable {
             listen();
         } catch (Exception e) {
             HCapUtils.logger.log(Level.SEVERE, logString("Exception during listen"), e);
+        } finally {
+            closeHandle();
+        }
+    }
+
+    /**
+     * Releases the native capture handle.
+     */
+    private void closeHandle() {
+        synchronized (handleLock) {
+            if (pcap != null) {
+                pcap.close();
+                pcap = null;
+            }
+            if (foreign != null) {
+                foreign.close();
+                foreign = null;
+            }
+        }
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                HCapUtils.logger.log(Level.WARNING, logString("Unable to close recording"), e);
+            }
+            HCapUtils.logger.info(logString("Closed " + recorder.toString()));
+            recorder = null;
         }
+        HCapUtils.logger.info(logString("Closed " + getStatistics().toString()));
     }
 
     private void setUp() throws Exception {
+        if (pcap == null && useForeign()) {
+            ForeignPcap handle = openForeign();
+            synchronized (handleLock) {
+                foreign = handle;
+            }
+            linkType = handle.getLinkType();
+            return;
+        }
+        if (pcap == null) {
+            Pcap handle = open(netInterface, options);
+            synchronized (handleLock) {
+                pcap = handle;
+            }
+        } else {
+            HCapUtils.logger.fine(logString("Using prepared handle"));
+        }
+        linkType = pcap.datalink();
+        if (options.getRecordDirectory() != null) {
+            recorder = new PcapRecorder(options.getRecordDirectory(), netInterface.getName(), linkType, options.getSnaplen(),
+                    options.getRecordBufferSize(), options.getRecordFileSize(), options.getRecordFileCount());
+            HCapUtils.logger.info(logString("Recording to " + options.getRecordDirectory()));
+        }
+    }
+
+    /**
+     * Checks whether or not this listener should capture through {@link ForeignPcap}, logging why not if it was asked to.
+     */
+    private boolean useForeign() {
+        if (!options.isForeign()) {
+            return false;
+        }
+        if (options.getRecordDirectory() != null) {
+            HCapUtils.logger.warning(logString("Recording needs jNetPcap's frames, capturing with jNetPcap"));
+            return false;
+        }
+        if (!ForeignPcap.isSupported()) {
+            HCapUtils.logger.warning(logString("libpcap can't be called through the foreign function API here, capturing with jNetPcap"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether or not listeners with these options capture through {@link ForeignPcap}, whose handles can't be opened ahead of time.
+     */
+    static boolean isForeign(CaptureOptions options) {
+        return options.isForeign() && options.getRecordDirectory() == null && ForeignPcap.isSupported();
+    }
+
+    private ForeignPcap openForeign() throws IOException {
+        ForeignPcap handle = ForeignPcap.openLive(netInterface.getName(), options);
+        if (!handle.setFilter(BROAD_FILTER)) {
+            handle.close();
+            throw new IOException("Unable to install filter " + BROAD_FILTER);
+        }
+        HCapUtils.logger.fine(logString("Opened through the foreign function API with " + options.toString()));
+        return handle;
+    }
+
+    /**
+     * Hands this listener a capture handle opened ahead of time with {@link #open(PcapIf, CaptureOptions)}, which it uses instead of
+     * opening its own. Must be called before the listener runs.
+     */
+    void adopt(Pcap handle) {
+        synchronized (handleLock) {
+            if (pcap != null) {
+                throw new IllegalStateException("Already has a capture handle");
+            }
+            pcap = handle;
+        }
+    }
+
+    /**
+     * Opens, configures and activates a capture handle on an interface, and installs the filter used while looking for games.
+     *
+     * @throws IOException If the handle could not be opened or the filter could not be installed.
+     */
+    static Pcap open(PcapIf netInterface, CaptureOptions options) throws IOException {
+        String prefix = netInterface.getName() + "/" + Optional.ofNullable(netInterface.getDescription()).orElse("<no desc>") + ": ";
         //  Open the device
         StringBuilder errorBuilder = new StringBuilder();
-        pcap = Pcap.openLive(netInterface.getName(), 65535, Pcap.MODE_NON_PROMISCUOUS, 1_000, errorBuilder);
-        if (pcap == null || errorBuilder.length() != 0) {
+        Pcap pcap = Pcap.create(netInterface.getName(), errorBuilder);
+        if (pcap == null) {
             String err = errorBuilder.toString();
-            HCapUtils.logger.severe(logString(String.format("Failed to open: %s",
-                                                            err)));
+            HCapUtils.logger.severe(prefix + String.format("Failed to open: %s",
+                                                           err));
             throw new IOException(err);
         }
+        try {
+            //  Settings can only be changed between create and activate
+            if (pcap.setSnaplen(options.getSnaplen()) != Pcap.OK ||
+                    pcap.setPromisc(options.isPromiscuous() ? Pcap.MODE_PROMISCUOUS : Pcap.MODE_NON_PROMISCUOUS) != Pcap.OK ||
+                    pcap.setTimeout(options.getEffectiveTimeout()) != Pcap.OK ||
+                    (options.getBufferSize() > 0 && pcap.setBufferSize(options.getBufferSize()) != Pcap.OK)) {
+                String err = pcap.getErr();
+                HCapUtils.logger.severe(prefix + String.format("Failed to configure: %s", err));
+                throw new IOException(err);
+            }
+            int activated = pcap.activate();
+            if (activated < 0) {
+                String err = pcap.getErr();
+                HCapUtils.logger.severe(prefix + String.format("Failed to activate: %s", err));
+                throw new IOException(err);
+            } else if (activated > 0) {
+                //  Activated, but something like promiscuous mode wasn't available
+                HCapUtils.logger.warning(prefix + String.format("Activated with warning %d: %s", activated, pcap.getErr()));
+            }
+            HCapUtils.logger.fine(prefix + "Opened with " + options.toString());
+            if (!installFilter(pcap, BROAD_FILTER, prefix)) {
+                throw new IOException(pcap.getErr());
+            }
+        } catch (IOException | RuntimeException e) {
+            pcap.close();
+            throw e;
+        }
+        return pcap;
+    }
+
+    /**
+     * Gets a classifier that treats this interface's own addresses as local, so that direction is detected correctly when the machine
+     * has a public address, such as on some VPNs.
+     */
+    private AddressClassifier interfaceClassifier() {
+        List<Integer> addresses = new ArrayList<>();
+        if (netInterface.getAddresses() != null) {
+            for (PcapAddr address : netInterface.getAddresses()) {
+                PcapSockAddr sockAddr = address.getAddr();
+                if (sockAddr != null && sockAddr.getFamily() == PcapSockAddr.AF_INET) {
+                    addresses.add(IP4Utils.ipToInt(sockAddr.getData()));
+                }
+            }
+        }
+        AddressClassifier classifier = AddressClassifier.getDefault().withLocalAddresses(addresses);
+        HCapUtils.logger.fine(logString("Using " + classifier.toString()));
+        return classifier;
+    }
+
+    /**
+     * Compiles and installs a capture filter.
+     *
+     * @return true if the filter was installed, false if it could not be compiled or set, in which case the previous filter stays.
+     */
+    private boolean installFilter(String expression) {
+        if (foreign != null) {
+            return foreign.setFilter(expression);
+        }
+        return installFilter(pcap, expression, logString(""));
+    }
+
+    private static boolean installFilter(Pcap pcap, String expression, String prefix) {
         //  Compile filter
         PcapBpfProgram filter = new PcapBpfProgram();
-        if (pcap.compile(filter, "tcp port 3724 or tcp port 1119", 1, 0) == -1) {
-            String err = pcap.getErr();
-            HCapUtils.logger.severe(logString(String.format("Failed to compile filter on: %s", err)));
-            throw new IOException(err);
+        if (pcap.compile(filter, expression, 1, 0) == -1) {
+            HCapUtils.logger.severe(prefix + String.format("Failed to compile filter \"%s\": %s", expression, pcap.getErr()));
+            return false;
         }
         //  Set filter
-        if (pcap.setFilter(filter) == -1) {
-            String err = pcap.getErr();
-            HCapUtils.logger.severe(logString(String.format("Failed to set filter: %s", err)));
-            throw new IOException(err);
+        try {
+            if (pcap.setFilter(filter) == -1) {
+                HCapUtils.logger.severe(prefix + String.format("Failed to set filter \"%s\": %s", expression, pcap.getErr()));
+                return false;
+            }
+        } finally {
+            //  The kernel keeps its own copy of the program
+            Pcap.freecode(filter);
         }
+        HCapUtils.logger.fine(prefix + "Filter set to " + expression);
+        return true;
+    }
+
+    /**
+     * Builds a filter matching only the given connection, in both directions.
+     */
+    static String connectionFilter(TCPConnectionInfo info) {
+        String source = IP4Utils.intToIp(info.sourceIPAddr);
+        String destination = IP4Utils.intToIp(info.destinationIPAddr);
+        return String.format("tcp and ((src host %s and src port %d and dst host %s and dst port %d) or " +
+                        "(src host %s and src port %d and dst host %s and dst port %d))",
+                source, info.sourcePort, destination, info.destinationPort,
+                destination, info.destinationPort, source, info.sourcePort);
     }
 
     private void listen() {
         //  Start reading
-        PcapPacket pcapPacket = new PcapPacket(JMemory.Type.POINTER);
-        HCapUtils.logger.info(logString("Read start"));
+        PacketHandler handler = new PacketHandler();
+        SegmentHandler segments = new SegmentHandler();
+        AddressClassifier classifier = interfaceClassifier();
+        handler.parser.setClassifier(classifier);
+        if (foreign != null) {
+            foreign.setClassifier(classifier);
+        }
+        HCapUtils.logger.info(logString(sessionManager != null ? "Read start, capturing all games" :
+                gameListener != null ? "Read start, capturing continuously" : "Read start"));
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            reportCpuTime = threadMXBean.getCurrentThreadCpuTime();
+        }
+        long start = System.currentTimeMillis();
+        timer = new HashedWheelTimer(TIMER_TICK, TIMER_WHEEL_SIZE, start);
+        //  The flow table only sweeps when flows are added, so make sure expired entries go even when no new connections show up
+        long sweepInterval = flows.getTtlMillis();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                flows.evictExpired(now);
+                timer.schedule(this, now + sweepInterval);
+            }
+        }, start + sweepInterval);
         try {
-            while (true) {
-                if (result.get() != null) {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                if (sessionManager == null && gameListener == null && captureQueue == null && result.get() != null) {
                     break;
                 }
-                if (pcap.nextEx(pcapPacket) != Pcap.NEXT_EX_OK) {
-                    continue;
+                //  Blocks until at least one packet arrives or the read timeout expires, then handles the whole buffer at once
+                int count = foreign != null ? foreign.dispatch(batchSize, segments) : pcap.dispatch(batchSize, handler, this);
+                if (handler.error != null) {
+                    throw handler.error;
                 }
-                PcapPacket copy = new PcapPacket(pcapPacket);
-                TCPPacket packet = new TCPPacket(copy);
-                TCPAddressPortPair remoteAddress = packet.connectionInfo.getRemoteAddress();
-                //  FIN - Clear from blacklist (since the next connection on that address might be valid
-                if ((packet.tcpFlags & 0x01) != 0) {
-                    blacklist.remove(remoteAddress);
-                    continue;
+                if (segments.error != null) {
+                    throw segments.error;
                 }
-                if (blacklist.contains(remoteAddress)) {
-                    continue;
+                //  Changing the filter from inside the dispatch callback isn't safe, so it happens between batches
+                if (pendingFilter != null) {
+                    installFilter(pendingFilter);
+                    pendingFilter = null;
                 }
-                if (packet.payload.length == 0) {
-                    HCapUtils.logger.info(logString("Skipping 0 len " + packet.connectionInfo.toString()));
-                    continue;
-                }
-                //  Check for Aurora first byte
-                if (packet.payload[0] == (byte) 0xA8) {
-                    final TCPAddressPortPair serverAddress = remoteAddress;
-                    HCapUtils.logger.info(logString("Got Aurora handshake"));
-                    final TCPStreamAssembler inboundAssembler = new TCPStreamAssembler();
-                    final TCPStreamAssembler outboundAssembler = new TCPStreamAssembler();
-                    long startTime = System.currentTimeMillis();
-                    final HearthPacketQueue inboundQueue = new HearthPacketQueue(inboundAssembler, false, startTime);
-                    final HearthPacketQueue outboundQueue = new HearthPacketQueue(outboundAssembler, true, startTime);
-                    final CaptureQueue captureQueue = new CaptureQueue(outboundQueue, inboundQueue);
-                    //  DEBUG DUMPING
-                    DebugDumper outDumper = null;
-                    DebugDumper inDumper = null;
-                    if (result.compareAndSet(null, captureQueue)) {
-                        //  OK!
-                        latch.countDown();
-                        //  Handle our Aurora Handshake
-                        outboundQueue.put(packet);
-                        HearthCaptureLib.executor.execute(inboundQueue::parseLoop);
-                        HearthCaptureLib.executor.execute(outboundQueue::parseLoop);
-                        if (logRawPackets) {
-                            outDumper = new DebugDumper(Paths.get("txt/dump-" + remoteAddress.ip + " " + remoteAddress.port + "-OUT"));
-                            inDumper = new DebugDumper(Paths.get("txt/dump-" + remoteAddress.ip + " " + remoteAddress.port + "-IN"));
-                            outDumper.writeRawPacketToDump(packet);
-                        }
-                        //  PACKET LOOP
-                        try {
-                            while (true) {
-                                if (pcap.nextEx(pcapPacket) != Pcap.NEXT_EX_OK) {
-                                    continue;
-                                }
-                                copy = new PcapPacket(pcapPacket);
-                                TCPPacket tcpPacket = new TCPPacket(copy);
-                                remoteAddress = tcpPacket.connectionInfo.getRemoteAddress();
-                                if (!serverAddress.equals(remoteAddress)) {
-                                    continue;
-                                }
-                                if (tcpPacket.connectionInfo.isDestinationRemote()) {
-                                    //  DEBUG DUMPING
-                                    if (outDumper != null) {
-                                        outDumper.writeRawPacketToDump(tcpPacket);
-                                    }
-                                    outboundQueue.put(tcpPacket);
-                                } else if (tcpPacket.connectionInfo.isSourceRemote()) {
-                                    //  DEBUG DUMPING
-                                    if (inDumper != null) {
-                                        inDumper.writeRawPacketToDump(tcpPacket);
-                                    }
-                                    inboundQueue.put(tcpPacket);
-                                }
-                                //  FIN
-                                if ((tcpPacket.tcpFlags & 0x01) != 0) {
-                                    HCapUtils.logger.info(logString("End of stream - FIN"));
-                                    break;
-                                }
-                            }
-                        } catch (Exception e) {
-                            HCapUtils.logger.log(Level.SEVERE, logString("Critical inner error"), e);
-                        } finally {
-                            if (outDumper != null) {
-                                outDumper.close();
-                            }
-                            if (inDumper != null) {
-                                inDumper.close();
-                            }
-                            captureQueue.close();
-                        }
-                    } else {
-                        HCapUtils.logger.severe(logString("Other thread beat us or there are multiple Hearthstone clients open?"));
-                        return;
+                if (count < 0) {
+                    if (!stopped) {
+                        HCapUtils.logger.severe(logString("Dispatch failed" + (pcap != null ? ": " + pcap.getErr() : "")));
                     }
-                } else {
-                    HCapUtils.logger.info(logString("Not an Aurora :( Blacklisting " + remoteAddress.toString()));
-                    blacklist.add(remoteAddress);
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                timer.advance(now);
+                if (sessionManager != null) {
+                    sessionManager.tick(now);
+                }
+                accountCpu(count);
+                if (count > 0) {
+                    totalPackets += count;
+                    totalBytes = foreign != null ? foreign.getBytesRead() : handler.bytes;
                 }
+                updateStatistics(false);
             }
         } catch (Exception e) {
             HCapUtils.logger.log(Level.SEVERE, logString("Exception in packet reading."), e);
+        } finally {
+            finishCapture();
         }
         HCapUtils.logger.info(logString("Finished"));
     }
 
+    /**
+     * Checks whether or not a parsed packet could be of interest, before any objects are created for it.
+     */
+    private boolean wantsPacket(TCPHeaderParser parser) {
+        return captureQueue == null || parser.hasEndpoint(serverAddress.ip, serverAddress.port);
+    }
 
+    private void handlePacket(TCPPacket packet) throws IOException {
+        if (sessionManager != null) {
+            sessionManager.accept(packet);
+        } else if (captureQueue == null) {
+            searchPacket(packet);
+        } else {
+            capturePacket(packet);
+        }
+    }
+
+    private void searchPacket(TCPPacket packet) throws IOException {
+        long remoteKey = packet.connectionInfo.getRemoteAddressKey();
+        long now = packet.packetTimeNanos / 1_000_000L;
+        //  FIN - Clear from blacklist (since the next connection on that address might be valid
+        if ((packet.tcpFlags & 0x01) != 0) {
+            flows.remove(remoteKey);
+            return;
+        }
+        if (flows.get(remoteKey, now) == FlowTable.BLACKLISTED) {
+            return;
+        }
+        if (packet.payloadLength == 0) {
+            HCapUtils.logger.info(logString("Skipping 0 len " + packet.connectionInfo.toString()));
+            return;
+        }
+        //  Check for Aurora first byte
+        TCPAddressPortPair remoteAddress = packet.connectionInfo.getRemoteAddress();
+        boolean attached = false;
+        if (packet.getPayloadByte(0) != 0xA8) {
+            TCPConnectionInfo info = packet.connectionInfo;
+            if (!options.isAttach() ||
+                    (info.sourcePort != CaptureSessionManager.GAME_SERVER_PORT &&
+                            info.destinationPort != CaptureSessionManager.GAME_SERVER_PORT)) {
+                HCapUtils.logger.info(logString("Not an Aurora :( Blacklisting " + remoteAddress.toString()));
+                flows.put(remoteKey, FlowTable.BLACKLISTED, now);
+                return;
+            }
+            //  Could be a game in progress - wait for a segment that looks like it holds a frame header
+            byte[] payload = packet.getPayload();
+            if (!FrameSynchronizer.containsCandidate(payload, 0, payload.length)) {
+                return;
+            }
+            attached = true;
+            HCapUtils.logger.info(logString("Attaching to game in progress"));
+        } else {
+            HCapUtils.logger.info(logString("Got Aurora handshake"));
+        }
+        final MemoryBudget.Account account = MemoryBudget.getDefault().open(packet.connectionInfo.toString());
+        long startTime = packet.packetTimeNanos / 1_000_000L;
+        final PacketQueue inbound;
+        final PacketQueue outbound;
+        if (options.isPush()) {
+            //  Reassembled and decoded right here as packets are captured
+            inbound = new PushPacketQueue(false, startTime, timer, holeTimeout, account);
+            outbound = new PushPacketQueue(true, startTime, timer, holeTimeout, account);
+        } else {
+            inbound = new HearthPacketQueue(new TCPStreamAssembler(account, holeTimeout), false, startTime);
+            outbound = new HearthPacketQueue(new TCPStreamAssembler(account, holeTimeout), true, startTime);
+        }
+        final CaptureQueue queue = new CaptureQueue(outbound, inbound);
+        if (gameListener == null && !result.compareAndSet(null, queue)) {
+            account.close();
+            HCapUtils.logger.severe(logString("Other thread beat us or there are multiple Hearthstone clients open?"));
+            stop();
+            return;
+        }
+        //  OK!
+        flows.put(remoteKey, FlowTable.ACTIVE, now);
+        serverAddress = remoteAddress;
+        captureQueue = queue;
+        gameAccount = account;
+        //  Closing is safe from whichever thread ran out of budget. The game itself is ended by the next packet or idle check.
+        account.setEvictionHandler(queue::close);
+        inboundQueue = inbound;
+        outboundQueue = outbound;
+        if (latch != null) {
+            selected = true;
+            latch.countDown();
+        }
+        //  Only this game's connection is of interest from now on. Packets already buffered under the broad filter are still
+        //  checked against the server address.
+        pendingFilter = connectionFilter(packet.connectionInfo);
+        lastGameActivity = startTime;
+        scheduleGameIdleCheck(startTime + gameIdleTimeout);
+        if (attached) {
+            resynchronize(inboundQueue);
+            resynchronize(outboundQueue);
+        }
+        //  Handle our Aurora Handshake, or whichever segment we attached on
+        if (packet.connectionInfo.isDestinationRemote()) {
+            outboundQueue.put(packet);
+        } else {
+            inboundQueue.put(packet);
+        }
+        if (!options.isPush()) {
+            HearthCaptureLib.executor.execute(((HearthPacketQueue) inboundQueue)::parseLoop);
+            HearthCaptureLib.executor.execute(((HearthPacketQueue) outboundQueue)::parseLoop);
+        }
+        //  DEBUG DUMPING
+        if (logRawPackets) {
+            outDumper = new DebugDumper(Paths.get("txt/dump-" + remoteAddress.ip + " " + remoteAddress.port + "-OUT"));
+            inDumper = new DebugDumper(Paths.get("txt/dump-" + remoteAddress.ip + " " + remoteAddress.port + "-IN"));
+            outDumper.writeRawPacketToDump(packet);
+        }
+        if (gameListener != null) {
+            gameListener.accept(queue);
+        }
+    }
+
+    private static void resynchronize(PacketQueue queue) {
+        if (queue instanceof PushPacketQueue) {
+            ((PushPacketQueue) queue).resynchronize();
+        } else {
+            ((HearthPacketQueue) queue).resynchronize();
+        }
+    }
+
+    private void capturePacket(TCPPacket tcpPacket) throws IOException {
+        TCPAddressPortPair remoteAddress = tcpPacket.connectionInfo.getRemoteAddress();
+        if (!serverAddress.equals(remoteAddress)) {
+            return;
+        }
+        if (gameAccount.isEvicted()) {
+            HCapUtils.logger.warning(logString("Game was evicted to stay within the memory budget"));
+            endGame();
+            return;
+        }
+        lastGameActivity = Math.max(lastGameActivity, tcpPacket.packetTimeNanos / 1_000_000L);
+        if (tcpPacket.connectionInfo.isDestinationRemote()) {
+            //  DEBUG DUMPING
+            if (outDumper != null) {
+                outDumper.writeRawPacketToDump(tcpPacket);
+            }
+            outboundQueue.put(tcpPacket);
+        } else if (tcpPacket.connectionInfo.isSourceRemote()) {
+            //  DEBUG DUMPING
+            if (inDumper != null) {
+                inDumper.writeRawPacketToDump(tcpPacket);
+            }
+            inboundQueue.put(tcpPacket);
+        }
+        //  FIN
+        if ((tcpPacket.tcpFlags & 0x01) != 0) {
+            HCapUtils.logger.info(logString("End of stream - FIN"));
+            endGame();
+        }
+    }
+
+    private void scheduleGameIdleCheck(long deadline) {
+        gameIdleCheck = timer.schedule(this::checkGameIdle, deadline);
+    }
+
+    /**
+     * Ends the current game if it hasn't seen a packet for the idle timeout, for games whose FIN was never seen.
+     */
+    private void checkGameIdle() {
+        if (gameAccount.isEvicted()) {
+            HCapUtils.logger.warning(logString("Game was evicted to stay within the memory budget"));
+            endGame();
+            return;
+        }
+        long idleDeadline = lastGameActivity + gameIdleTimeout;
+        if (idleDeadline > gameIdleCheck.getDeadline()) {
+            scheduleGameIdleCheck(idleDeadline);
+            return;
+        }
+        HCapUtils.logger.info(logString("No packets for " + gameIdleTimeout + "ms, ending game"));
+        endGame();
+    }
+
+    /**
+     * Ends capture of the current game, putting back the broad filter. The game's queues are finished so the user can read everything
+     * that was captured. In continuous mode the listener then looks for the next game, otherwise it stops.
+     */
+    private void endGame() {
+        if (gameIdleCheck != null) {
+            gameIdleCheck.cancel();
+            gameIdleCheck = null;
+        }
+        pendingFilter = BROAD_FILTER;
+        flows.remove(FlowTable.key(serverAddress.ip, serverAddress.port));
+        closeDumpers();
+        captureQueue.finish();
+        gameAccount.closeWhenEmpty();
+        gameAccount = null;
+        serverAddress = null;
+        captureQueue = null;
+        inboundQueue = null;
+        outboundQueue = null;
+        if (gameListener == null) {
+            stop();
+        } else {
+            HCapUtils.logger.info(logString("Waiting for next game"));
+        }
+    }
+
+    /**
+     * Stops the capture loop, skipping the rest of the current batch.
+     */
+    private void stop() {
+        stopped = true;
+        if (foreign != null) {
+            foreign.breakLoop();
+        } else {
+            pcap.breakloop();
+        }
+    }
+
+    private void finishCapture() {
+        HCapUtils.logger.info(logString("Flow table " + flows.toString()));
+        updateStatistics(true);
+        if (sessionManager != null) {
+            sessionManager.finishAll();
+        }
+        closeDumpers();
+        if (captureQueue != null) {
+            captureQueue.close();
+            gameAccount.close();
+        }
+    }
+
+    private void closeDumpers() {
+        try {
+            if (outDumper != null) {
+                outDumper.close();
+            }
+            if (inDumper != null) {
+                inDumper.close();
+            }
+        } catch (IOException e) {
+            HCapUtils.logger.log(Level.WARNING, logString("Unable to close debug dump"), e);
+        }
+        outDumper = null;
+        inDumper = null;
+    }
+
+    /**
+     * Refreshes the published statistics if they're older than the statistics interval, warning if packets were dropped since the last
+     * refresh.
+     */
+    private void updateStatistics(boolean force) {
+        long now = System.nanoTime();
+        if (!force && now - lastStatisticsTime < options.getStatisticsInterval() * 1_000_000L) {
+            return;
+        }
+        lastStatisticsTime = now;
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            cpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        }
+        //  ForeignPcap doesn't read the kernel's counters
+        if (pcap != null && pcap.stats(pcapStat) == Pcap.OK) {
+            long dropped = pcapStat.getDrop();
+            long ifDropped = pcapStat.getIfDrop();
+            if (dropped > kernelDropped || ifDropped > interfaceDropped) {
+                HCapUtils.logger.warning(logString(String.format("Dropped %d packets in the kernel and %d in the interface since last check",
+                        dropped - kernelDropped, ifDropped - interfaceDropped)));
+            }
+            kernelReceived = pcapStat.getRecv();
+            kernelDropped = dropped;
+            interfaceDropped = ifDropped;
+        }
+    }
+
+    /**
+     * Logs the capture thread's CPU time for every 100k packets, to compare batch sizes.
+     */
+    private void accountCpu(int count) {
+        if (count <= 0 || !threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return;
+        }
+        packetCount += count;
+        if (packetCount >= CPU_REPORT_INTERVAL) {
+            long cpuTime = threadMXBean.getCurrentThreadCpuTime();
+            cpuNanosPerReportInterval = (cpuTime - reportCpuTime) * CPU_REPORT_INTERVAL / packetCount;
+            HCapUtils.logger.info(logString(String.format("Capture CPU time %.3f ms per %,d packets (batch size %d)",
+                    cpuNanosPerReportInterval / 1_000_000D, CPU_REPORT_INTERVAL, batchSize)));
+            reportCpuTime = cpuTime;
+            packetCount = 0L;
+        }
+    }
+
+    /**
+     * Handler for segments read through {@link ForeignPcap}, which has already parsed them and releases each one once this returns.
+     */
+    private class SegmentHandler implements Consumer<TCPPacket> {
+
+        private Exception error;
+
+        @Override
+        public void accept(TCPPacket packet) {
+            //  Rethrown once dispatch returns, as PacketHandler's are
+            if (stopped || error != null) {
+                return;
+            }
+            try {
+                handlePacket(packet);
+            } catch (Exception e) {
+                error = e;
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Reusable handler for dispatched packets. The start of each frame is copied into a scratch buffer and parsed in place, so
+     * packets that are filtered out cost no allocations.
+     */
+    private static class PacketHandler implements JBufferHandler<NetInterfaceListener> {
+
+        private final byte[] headers = new byte[LinkLayer.MAX_HEADER_BYTES];
+        /**
+         * Whole frames, only used when recording.
+         */
+        private byte[] frame = new byte[LinkLayer.MAX_HEADER_BYTES];
+        private final TCPHeaderParser parser = new TCPHeaderParser();
+        private Exception error;
+        private long bytes;
+
+        @Override
+        public void nextPacket(PcapHeader header, JBuffer buffer, NetInterfaceListener listener) {
+            //  Exceptions can't be allowed to escape into native code, so they're rethrown once dispatch returns
+            if (listener.stopped || error != null) {
+                return;
+            }
+            try {
+                int capturedBytes = header.caplen();
+                bytes += capturedBytes;
+                int headerBytes = Math.min(capturedBytes, LinkLayer.MAX_HEADER_BYTES);
+                byte[] parsed = headers;
+                if (listener.recorder != null) {
+                    //  Record before filtering so the recording shows exactly what the handle delivered
+                    if (frame.length < capturedBytes) {
+                        frame = new byte[Math.max(capturedBytes, frame.length * 2)];
+                    }
+                    buffer.getByteArray(0, frame, 0, capturedBytes);
+                    listener.recorder.record(header.timestampInNanos(), frame, 0, capturedBytes, header.wirelen());
+                    parsed = frame;
+                } else {
+                    buffer.getByteArray(0, headers, 0, headerBytes);
+                }
+                //  The filter also matches IPv6, which Hearthstone doesn't use
+                int ip4Offset = LinkLayer.ip4Offset(listener.linkType, parsed, headerBytes);
+                if (ip4Offset < 0 || !parser.parse(parsed, ip4Offset, headerBytes - ip4Offset, capturedBytes - ip4Offset) ||
+                        !listener.wantsPacket(parser)) {
+                    return;
+                }
+                int payloadLength = parser.getPayloadLength();
+                if (payloadLength == 0) {
+                    listener.handlePacket(parser.toPacket(TCPPacket.NO_PAYLOAD, 0, header.timestampInNanos()));
+                    return;
+                }
+                BufferPool.Buffer payload = listener.pool.acquire(payloadLength);
+                if (parsed == frame) {
+                    System.arraycopy(frame, parser.getPayloadOffset(), payload.array(), 0, payloadLength);
+                } else {
+                    buffer.getByteArray(parser.getPayloadOffset(), payload.array(), 0, payloadLength);
+                }
+                TCPPacket packet = parser.toPacket(payload, 0, header.timestampInNanos());
+                try {
+                    listener.handlePacket(packet);
+                } finally {
+                    //  Anything that kept the packet has retained it
+                    packet.release();
+                }
+            } catch (Exception e) {
+                error = e;
+                listener.stop();
+            }
+        }
+    }
 }
 
 class DebugDumper {
@@ -238,8 +983,8 @@ class DebugDumper {
     }
 
     void writeRawPacketToDump(TCPPacket packet) throws IOException {
-        writer.write(String.format("SEQ: %08X NXT: %08X LEN: %08X FLG: %08X%n", packet.seqNumber, packet.nextExpectedSeqNumber(), packet.payload.length, packet.tcpFlags));
-        writer.write(FormatUtils.hexdump(packet.payload));
+        writer.write(String.format("SEQ: %08X NXT: %08X LEN: %08X FLG: %08X%n", packet.seqNumber, packet.nextExpectedSeqNumber(), packet.payloadLength, packet.tcpFlags));
+        writer.write(FormatUtils.hexdump(packet.getPayload()));
         writer.flush();
     }
 
@@ -83,9 +83,33 @@ public interface PacketQueue {
     @MThread("listener")
     void close();
 
+    /**
+     * Indicates that no more raw packets will be added. Packets that have already been added are still processed, and the queue
+     * closes once the consumer has read all of them. Queues that don't process packets in the background simply close.
+     */
+    @MThread("listener")
+    default void finish() {
+        close();
+    }
+
     /**
      * Get the time at which this packet queue was opened.
      */
     long getCaptureStartTime();
 
+    /**
+     * Gets the number of stream bytes that were never captured and were skipped after the reassembly hole deadline.
+     */
+    default long getBytesLost() {
+        return 0L;
+    }
+
+    /**
+     * Gets the number of packets known to be lost to gaps in the stream. Each gap breaks at least one packet and decoding carries on from
+     * the next packet boundary found after it. Packets lying wholly inside a gap can't be counted.
+     */
+    default long getPacketsLost() {
+        return 0L;
+    }
+
 }
@@ -0,0 +1,327 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.LinkLayer;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapFileReader;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapRecord;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPStreamAssembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+
+/**
+ * Replays a recorded pcap or pcapng capture file instead of listening on a live network interface.
+ * <p>
+ * Frames are read with a memory mapped {@link PcapFileReader} and fed through the same TCPStreamAssembler and HearthPacketQueue
+ * pipeline as a live capture, as fast as they can be processed. This allows recorded games to be reprocessed, the pipeline to be
+ * benchmarked, and reassembly to be regression tested, all without the jNetPcap native library.
+ *
+ * @author Vincent Zhang
+ */
+public class PcapFileCapturer implements HearthstoneCapturer {
+
+    private static final int STATISTICS_INTERVAL = 1024;
+
+    private final Path captureFile;
+    private final TCPHeaderParser parser = new TCPHeaderParser();
+    private long frames;
+    private long bytes;
+    private volatile long framesRead;
+    private volatile long bytesRead;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    public PcapFileCapturer(Path captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    /**
+     * Scans the capture file for the first Hearthstone game and starts replaying it.
+     *
+     * @return A CaptureQueue bound to the first Hearthstone game in the capture file. It closes once every packet of the game has been consumed.
+     * @throws java.lang.InterruptedException   If the thread was interrupted.
+     * @throws java.util.NoSuchElementException If the capture file does not contain a Hearthstone game.
+     * @throws java.io.UncheckedIOException     If the capture file could not be read.
+     */
+    @Override
+    public CaptureQueue listen() throws InterruptedException, NoSuchElementException {
+        frames = 0L;
+        bytes = 0L;
+        endTime = 0L;
+        startTime = System.nanoTime();
+        publishStatistics();
+        PcapFileReader reader;
+        try {
+            reader = new PcapFileReader(captureFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open capture file " + captureFile, e);
+        }
+        PcapRecord record = new PcapRecord();
+        Set<TCPConnectionInfo> blacklist = new HashSet<>();
+        boolean replaying = false;
+        try {
+            TCPPacket packet;
+            while ((packet = nextPacket(reader, record)) != null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                TCPConnectionInfo flow = canonicalFlow(packet.connectionInfo);
+                //  FIN - Clear from blacklist (since the next connection on that address might be valid
+                if ((packet.tcpFlags & 0x01) != 0) {
+                    blacklist.remove(flow);
+                    continue;
+                }
+                if (packet.payloadLength == 0 || blacklist.contains(flow)) {
+                    continue;
+                }
+                //  Check for Aurora first byte
+                if (packet.getPayloadByte(0) != 0xA8) {
+                    blacklist.add(flow);
+                    continue;
+                }
+                HCapUtils.logger.info("Got Aurora handshake " + packet.connectionInfo.toString());
+                //  Segments the recording missed are skipped by capture time, however fast the file is read
+                long holeTimeout = Long.getLong("phoenixlab.hearthstone.hole.timeout", TCPSegmentReassembler.DEFAULT_HOLE_TIMEOUT);
+                final TCPStreamAssembler inboundAssembler = new TCPStreamAssembler(null, holeTimeout);
+                final TCPStreamAssembler outboundAssembler = new TCPStreamAssembler(null, holeTimeout);
+                long captureStartTime = packet.packetTimeNanos / 1_000_000L;
+                //  Not live, so the recording's timestamps stay out of the wire latency
+                final HearthPacketQueue inboundQueue = new HearthPacketQueue(inboundAssembler, false, captureStartTime, false);
+                final HearthPacketQueue outboundQueue = new HearthPacketQueue(outboundAssembler, true, captureStartTime, false);
+                final CaptureQueue captureQueue = new CaptureQueue(outboundQueue, inboundQueue);
+                final TCPConnectionInfo outboundFlow = packet.connectionInfo;
+                outboundQueue.put(packet);
+                HearthCaptureLib.executor.execute(inboundQueue::parseLoop);
+                HearthCaptureLib.executor.execute(outboundQueue::parseLoop);
+                HearthCaptureLib.executor.execute(() -> replay(reader, record, outboundFlow, captureQueue));
+                replaying = true;
+                return captureQueue;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading capture file " + captureFile, e);
+        } finally {
+            if (!replaying) {
+                finishStatistics();
+                closeQuietly(reader);
+            }
+        }
+        throw new NoSuchElementException("No Hearthstone game found in " + captureFile);
+    }
+
+    private void replay(PcapFileReader reader, PcapRecord record, TCPConnectionInfo outboundFlow, CaptureQueue captureQueue) {
+        PacketQueue outboundQueue = captureQueue.getOutboundPackets();
+        PacketQueue inboundQueue = captureQueue.getInboundPackets();
+        try {
+            TCPPacket packet;
+            while ((packet = nextPacket(reader, record)) != null) {
+                TCPConnectionInfo info = packet.connectionInfo;
+                if (info.equals(outboundFlow)) {
+                    outboundQueue.put(packet);
+                } else if (info.isReverseOf(outboundFlow)) {
+                    inboundQueue.put(packet);
+                } else {
+                    continue;
+                }
+                //  FIN
+                if ((packet.tcpFlags & 0x01) != 0) {
+                    HCapUtils.logger.info("End of stream - FIN");
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            HCapUtils.logger.log(Level.SEVERE, "Error replaying capture file " + captureFile, e);
+        } finally {
+            finishStatistics();
+            closeQuietly(reader);
+            captureQueue.finish();
+            HCapUtils.logger.info(String.format("Replayed %,d packets (%.1f MB) in %.3f s: %,.0f packets/s, %.1f MB/s",
+                    getPacketsRead(), getBytesRead() / 1_000_000D, getElapsedNanos() / 1_000_000_000D,
+                    getPacketsPerSecond(), getMegabytesPerSecond()));
+        }
+    }
+
+    /**
+     * Reads frames until one carries a Hearthstone TCP segment.
+     *
+     * @return The next Hearthstone TCP segment, or null if the end of the file was reached.
+     */
+    private TCPPacket nextPacket(PcapFileReader reader, PcapRecord record) throws IOException {
+        while (reader.next(record)) {
+            frames++;
+            bytes += record.getCapturedLength();
+            if (frames % STATISTICS_INTERVAL == 0) {
+                publishStatistics();
+            }
+            int ip4Offset = LinkLayer.ip4Offset(record.getLinkType(), record.getData(), record.getCapturedLength());
+            if (ip4Offset < 0) {
+                continue;
+            }
+            int datagramLength = record.getCapturedLength() - ip4Offset;
+            //  Only frames that pass the header checks get a TCPPacket and a copy of their payload
+            if (parser.parse(record.getData(), ip4Offset, datagramLength, datagramLength) &&
+                    (isHearthstonePort(parser.getSourcePort()) || isHearthstonePort(parser.getDestinationPort()))) {
+                return parser.copyPacket(record.getData(), record.getTimestampNanos());
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHearthstonePort(int port) {
+        //  Same ports as the live capture filter
+        return port == 3724 || port == 1119;
+    }
+
+    /**
+     * Gets a direction independent key for the connection, since a recorded capture might not have been taken on the client and so
+     * local/remote address detection can't be relied on.
+     */
+    private static TCPConnectionInfo canonicalFlow(TCPConnectionInfo info) {
+        long source = ((info.sourceIPAddr & 0xFFFFFFFFL) << 16) | info.sourcePort;
+        long destination = ((info.destinationIPAddr & 0xFFFFFFFFL) << 16) | info.destinationPort;
+        if (source <= destination) {
+            return info;
+        }
+        return info.reverse();
+    }
+
+    private void publishStatistics() {
+        framesRead = frames;
+        bytesRead = bytes;
+    }
+
+    private void finishStatistics() {
+        publishStatistics();
+        endTime = System.nanoTime();
+    }
+
+    private void closeQuietly(PcapFileReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            HCapUtils.logger.log(Level.WARNING, "Unable to close capture file " + captureFile, e);
+        }
+    }
+
+    /**
+     * Gets whether or not the whole game has been read from the capture file.
+     */
+    public boolean isFinished() {
+        return endTime != 0L;
+    }
+
+    /**
+     * Gets the number of frames read from the capture file so far.
+     */
+    public long getPacketsRead() {
+        return framesRead;
+    }
+
+    /**
+     * Gets the number of captured bytes read from the capture file so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Gets the time spent replaying, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        long end = endTime;
+        return (end != 0L ? end : System.nanoTime()) - startTime;
+    }
+
+    /**
+     * Gets the average number of frames read per second.
+     */
+    public double getPacketsPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0L ? 0D : getPacketsRead() * 1_000_000_000D / elapsed;
+    }
+
+    /**
+     * Gets the average number of captured megabytes (10^6 bytes) read per second.
+     */
+    public double getMegabytesPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed <= 0L ? 0D : getBytesRead() * 1_000D / elapsed;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                Path path = Paths.get(args[0]);
+                PcapFileCapturer capturer = new PcapFileCapturer(path);
+                final CaptureQueue queue = capturer.listen();
+                CountDownLatch latch = new CountDownLatch(2);
+                HearthCaptureLib.executor.execute(() -> {
+                    try {
+                        while (!queue.getInboundPackets().isClosed()) {
+                            System.out.println(queue.getInboundPackets().next().toJSON());
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                    latch.countDown();
+                });
+                HearthCaptureLib.executor.execute(() -> {
+                    try {
+                        while (!queue.getOutboundPackets().isClosed()) {
+                            System.err.println(queue.getOutboundPackets().next().toJSON());
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                    latch.countDown();
+                });
+                latch.await();
+                HCapUtils.logger.info("Replay complete!");
+            } catch (InvalidPathException e) {
+                HCapUtils.logger.severe("Invalid path specified: " + e.getLocalizedMessage());
+            } catch (UncheckedIOException e) {
+                HCapUtils.logger.log(Level.SEVERE, "Unable to read capture file.", e);
+            } catch (NoSuchElementException e) {
+                HCapUtils.logger.severe(e.getMessage());
+            } catch (InterruptedException e) {
+                HCapUtils.logger.warning("Program interrupted.");
+            }
+        } else {
+            HCapUtils.logger.severe("Usage: java -cp HearthCaptureLib.jar co.phoenixlab.hearthstone.hearthcapturelib.PcapFileCapturer PCAP_FILE_TO_REPLAY");
+        }
+        HCapUtils.logger.info("Application terminated.");
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Captures a game by relaying it instead of sniffing it: the client is pointed at a local port (through the hosts file or a port
+ * forward) and every connection made to it is relayed to the real game server.
+ * <p>
+ * The relay sees the exact byte streams in each direction, so they are framed and decoded directly with no packet capture, TCP
+ * segment objects or reassembly, and none of the stalls that lost or reordered segments cause. Each direction's relay thread forwards
+ * the bytes it reads and hands a copy to a decoder thread of its own, so a slow decode doesn't delay the game. Forwarding only waits
+ * if decoding falls more than {@link #DECODE_BACKLOG} reads behind.
+ *
+ * @author Vincent Zhang
+ */
+public class ProxyCapturer implements HearthstoneCapturer, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * How many reads of each direction may wait to be decoded before forwarding waits for the decoder.
+     */
+    private static final int DECODE_BACKLOG = 256;
+    /**
+     * How often a blocked {@link #listen()} checks whether its thread was interrupted, in milliseconds.
+     */
+    private static final int ACCEPT_POLL = 250;
+
+    private final ServerSocket serverSocket;
+    private final InetSocketAddress serverAddress;
+    private final AtomicLong outboundBytes;
+    private final AtomicLong inboundBytes;
+    private final AtomicInteger activeConnections;
+    private volatile boolean closed;
+
+    /**
+     * Binds the local port the client will connect to.
+     *
+     * @param listenAddress The local address and port to accept the client on. Port 0 picks a free port, see {@link #getLocalPort()}.
+     * @param serverAddress The game server to relay connections to.
+     * @throws java.io.IOException If the local port could not be bound.
+     */
+    public ProxyCapturer(InetSocketAddress listenAddress, InetSocketAddress serverAddress) throws IOException {
+        this.serverAddress = serverAddress;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(listenAddress);
+        serverSocket.setSoTimeout(ACCEPT_POLL);
+        outboundBytes = new AtomicLong();
+        inboundBytes = new AtomicLong();
+        activeConnections = new AtomicInteger();
+    }
+
+    /**
+     * Waits for the client to connect, connects to the game server and starts relaying.
+     *
+     * @return A CaptureQueue for the relayed connection. It closes once both sides have closed their end of the connection.
+     * @throws java.lang.InterruptedException   If the thread was interrupted.
+     * @throws java.util.NoSuchElementException If this capturer was closed.
+     * @throws java.io.UncheckedIOException     If the client could not be accepted or the game server could not be reached.
+     */
+    @Override
+    public CaptureQueue listen() throws InterruptedException, NoSuchElementException {
+        Socket client = accept();
+        Socket server = new Socket();
+        try {
+            server.connect(serverAddress);
+            client.setTcpNoDelay(true);
+            server.setTcpNoDelay(true);
+        } catch (IOException e) {
+            closeQuietly(client);
+            closeQuietly(server);
+            throw new UncheckedIOException("Unable to connect to " + serverAddress, e);
+        }
+        HCapUtils.logger.info("Relaying " + client.getRemoteSocketAddress() + " to " + serverAddress);
+        long startTime = System.currentTimeMillis();
+        MemoryBudget.Account account = MemoryBudget.getDefault().open(client.getRemoteSocketAddress() + " -> " + serverAddress);
+        PushPacketQueue outbound = new PushPacketQueue(true, startTime, null, 0L, account);
+        PushPacketQueue inbound = new PushPacketQueue(false, startTime, null, 0L, account);
+        CaptureQueue queue = new CaptureQueue(outbound, inbound);
+        //  Only decoding stops when the budget runs out, the game itself keeps being relayed
+        account.setEvictionHandler(queue::close);
+        Connection connection = new Connection(client, server, account);
+        activeConnections.incrementAndGet();
+        Decoder outboundDecoder = new Decoder(outbound, connection);
+        Decoder inboundDecoder = new Decoder(inbound, connection);
+        HearthCaptureLib.executor.execute(outboundDecoder);
+        HearthCaptureLib.executor.execute(inboundDecoder);
+        HearthCaptureLib.executor.execute(() -> relay(client, server, outboundDecoder, outboundBytes, connection));
+        HearthCaptureLib.executor.execute(() -> relay(server, client, inboundDecoder, inboundBytes, connection));
+        return queue;
+    }
+
+    private Socket accept() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new NoSuchElementException("Proxy is closed");
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            try {
+                return serverSocket.accept();
+            } catch (SocketTimeoutException poll) {
+                //  Check for interrupts and try again
+            } catch (IOException e) {
+                if (closed) {
+                    throw new NoSuchElementException("Proxy is closed");
+                }
+                throw new UncheckedIOException("Unable to accept a connection", e);
+            }
+        }
+    }
+
+    private void relay(Socket from, Socket to, Decoder decoder, AtomicLong counter, Connection connection) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                long now = HCapUtils.currentTimeNanos();
+                out.write(buffer, 0, read);
+                counter.addAndGet(read);
+                decoder.write(buffer, read, now);
+            }
+            //  Pass the half close on so the other direction can finish normally
+            to.shutdownOutput();
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                HCapUtils.logger.log(Level.FINE, "Relay from " + from.getRemoteSocketAddress() + " ended", e);
+            }
+            connection.close();
+        } finally {
+            decoder.finish();
+            connection.directionFinished();
+        }
+    }
+
+    /**
+     * Gets the local port the client should connect to.
+     */
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the game server connections are relayed to.
+     */
+    public InetSocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Gets the number of bytes relayed from the client to the server so far.
+     */
+    public long getOutboundBytes() {
+        return outboundBytes.get();
+    }
+
+    /**
+     * Gets the number of bytes relayed from the server to the client so far.
+     */
+    public long getInboundBytes() {
+        return inboundBytes.get();
+    }
+
+    /**
+     * Gets the number of connections still being relayed.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Stops accepting new connections. Connections already being relayed carry on until either side closes them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Decodes the bytes relayed in one direction on its own thread. The relay thread reuses its read buffer, so each read is copied
+     * into a pooled buffer first.
+     */
+    private static class Decoder implements Runnable {
+
+        private static final Chunk END = new Chunk(null, 0, 0L);
+
+        private final PushPacketQueue queue;
+        private final Connection connection;
+        private final ArrayBlockingQueue<Chunk> chunks;
+        private final BufferPool pool;
+
+        Decoder(PushPacketQueue queue, Connection connection) {
+            this.queue = queue;
+            this.connection = connection;
+            chunks = new ArrayBlockingQueue<>(DECODE_BACKLOG);
+            pool = BufferPool.getDefault();
+        }
+
+        @MThread("relay")
+        void write(byte[] data, int length, long timeNanos) {
+            BufferPool.Buffer copy = pool.acquire(length);
+            System.arraycopy(data, 0, copy.array(), 0, length);
+            put(new Chunk(copy, length, timeNanos));
+        }
+
+        /**
+         * Finishes the queue once every read before this one has been decoded.
+         */
+        @MThread("relay")
+        void finish() {
+            put(END);
+        }
+
+        private void put(Chunk chunk) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    chunks.put(chunk);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (chunk == END) {
+                    queue.finish();
+                    connection.decoderFinished();
+                    return;
+                }
+                try {
+                    queue.write(chunk.buffer.array(), 0, chunk.length, chunk.timeNanos);
+                } catch (RuntimeException e) {
+                    //  Keep taking reads so the relay never waits on a decoder that has stopped
+                    HCapUtils.logger.log(Level.WARNING, "Failed to decode relayed bytes", e);
+                } finally {
+                    chunk.buffer.release();
+                }
+            }
+        }
+    }
+
+    private static class Chunk {
+
+        private final BufferPool.Buffer buffer;
+        private final int length;
+        /**
+         * When the bytes were read from the socket, in nanoseconds since the epoch.
+         */
+        private final long timeNanos;
+
+        Chunk(BufferPool.Buffer buffer, int length, long timeNanos) {
+            this.buffer = buffer;
+            this.length = length;
+            this.timeNanos = timeNanos;
+        }
+    }
+
+    /**
+     * The two sockets of a relayed connection, closed once both directions are done or either fails, and the memory account of its
+     * queues, closed once both directions are decoded.
+     */
+    private class Connection {
+
+        private final Socket client;
+        private final Socket server;
+        private final MemoryBudget.Account account;
+        private final CountDownLatch directions = new CountDownLatch(2);
+        private final CountDownLatch decoders = new CountDownLatch(2);
+        private volatile boolean closed;
+
+        Connection(Socket client, Socket server, MemoryBudget.Account account) {
+            this.client = client;
+            this.server = server;
+            this.account = account;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+
+        void directionFinished() {
+            directions.countDown();
+            if (directions.getCount() == 0L) {
+                close();
+                activeConnections.decrementAndGet();
+                HCapUtils.logger.info("Relay of " + client.getRemoteSocketAddress() + " finished");
+            }
+        }
+
+        void decoderFinished() {
+            decoders.countDown();
+            if (decoders.getCount() == 0L) {
+                //  Decoding can lag behind the relay, and packets decoded after the account closed would be dropped
+                account.closeWhenEmpty();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            HCapUtils.logger.severe("Usage: java -cp HearthCaptureLib.jar co.phoenixlab.hearthstone.hearthcapturelib.ProxyCapturer " +
+                    "LOCAL_PORT SERVER_HOST SERVER_PORT");
+            return;
+        }
+        try (ProxyCapturer capturer = new ProxyCapturer(new InetSocketAddress(Integer.parseInt(args[0])),
+                new InetSocketAddress(args[1], Integer.parseInt(args[2])))) {
+            HCapUtils.logger.info("Waiting for the client on port " + capturer.getLocalPort());
+            final CaptureQueue queue = capturer.listen();
+            CountDownLatch latch = new CountDownLatch(2);
+            HearthCaptureLib.executor.execute(() -> {
+                try {
+                    while (!queue.getInboundPackets().isClosed()) {
+                        System.out.println(queue.getInboundPackets().next().toJSON());
+                    }
+                } catch (InterruptedException ignored) {
+                }
+                latch.countDown();
+            });
+            HearthCaptureLib.executor.execute(() -> {
+                try {
+                    while (!queue.getOutboundPackets().isClosed()) {
+                        System.err.println(queue.getOutboundPackets().next().toJSON());
+                    }
+                } catch (InterruptedException ignored) {
+                }
+                latch.countDown();
+            });
+            latch.await();
+        } catch (IOException | UncheckedIOException e) {
+            HCapUtils.logger.log(Level.SEVERE, "Unable to relay.", e);
+        } catch (InterruptedException e) {
+            HCapUtils.logger.warning("Program interrupted.");
+        }
+        HCapUtils.logger.info("Application terminated.");
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Implements a PacketQueue that reassembles and decodes on the thread that puts raw packets, instead of on a parse thread of its own.
+ * <p>
+ * The decoded packet queue never blocks the producing thread. Instead, decoded packets waiting for the consumer are charged to the
+ * session's memory budget account by their encoded length, so a consumer that stops reading is dealt with by the budget's policy.
+ *
+ * @author Vincent Zhang
+ */
+class PushPacketQueue
+        implements PacketQueue {
+
+    private static final HearthPacketQueue.SignalPacket SIGNAL_PACKET = new HearthPacketQueue.SignalPacket();
+
+    private final TCPSegmentReassembler reassembler;
+    private final HearthFrameDecoder decoder;
+    private final LinkedBlockingQueue<CapturePacket> packets;
+    private final AtomicBoolean closed;
+    private final long startTime;
+    private final MemoryBudget.Account account;
+
+    public PushPacketQueue(boolean outbound, long startTime) {
+        this(outbound, startTime, null, 0L, null);
+    }
+
+    /**
+     * @param timer       The timer for reassembly hole deadlines, owned by the thread that puts raw packets, or null to wait for missing
+     *                    segments forever.
+     * @param holeTimeout How long to wait for a missing segment before skipping it, in milliseconds.
+     * @param account     The account to charge held segments and undelivered packets to, or null to hold any amount.
+     */
+    public PushPacketQueue(boolean outbound, long startTime, HashedWheelTimer timer, long holeTimeout, MemoryBudget.Account account) {
+        packets = new LinkedBlockingQueue<>();
+        decoder = new HearthFrameDecoder(this::offer, outbound, startTime);
+        reassembler = new TCPSegmentReassembler(decoder, timer, holeTimeout, account);
+        closed = new AtomicBoolean(false);
+        this.startTime = startTime;
+        this.account = account;
+    }
+
+    @MThread("listener")
+    private void offer(CapturePacket packet) {
+        if (account == null || account.reserve(packet.getEncodedLength(), this::dropOldest)) {
+            packets.add(packet);
+        }
+    }
+
+    /**
+     * Drops the oldest packet the consumer hasn't taken yet, for when the memory budget runs out.
+     */
+    @MThread("listener")
+    private long dropOldest() {
+        CapturePacket oldest = packets.peek();
+        if (oldest == null || oldest == SIGNAL_PACKET || !packets.remove(oldest)) {
+            return 0L;
+        }
+        account.release(oldest.getEncodedLength());
+        return oldest.getEncodedLength();
+    }
+
+    @Override
+    public CapturePacket next() throws InterruptedException {
+        if (closed.get()) {
+            return null;
+        }
+        CapturePacket packet = packets.take();
+        if (packet == SIGNAL_PACKET) {
+            closed.set(true);
+            throw new InterruptedException();
+        }
+        if (account != null) {
+            account.release(packet.getEncodedLength());
+        }
+        long now = HCapUtils.currentTimeNanos();
+        packet.setDeliveredTimeNanos(now);
+        CaptureLatency.getDecodedToConsumed().record(now - packet.getDecodedTimeNanos());
+        return packet;
+    }
+
+    @Override
+    public CapturePacket peek() {
+        if (closed.get()) {
+            return null;
+        }
+        CapturePacket packet = packets.peek();
+        return packet == SIGNAL_PACKET ? null : packet;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void put(TCPPacket packet) {
+        if (!closed.get()) {
+            reassembler.accept(packet);
+        }
+    }
+
+    /**
+     * Frames and decodes bytes of an already ordered stream, such as one read from a socket, bypassing reassembly.
+     *
+     * @param timeNanos When the bytes were received, in nanoseconds since the epoch.
+     */
+    @MThread("listener")
+    void write(byte[] data, int offset, int length, long timeNanos) {
+        if (!closed.get()) {
+            decoder.accept(data, offset, length, timeNanos);
+        }
+    }
+
+    /**
+     * Starts decoding at the next frame boundary found rather than at the first byte, for a game joined part way through.
+     */
+    @MThread("listener")
+    void resynchronize() {
+        decoder.resynchronize();
+    }
+
+    /**
+     * Closes the queue, dropping any packets the consumer hasn't taken. Unlike the other methods this may be called from any thread,
+     * such as when the memory budget evicts the session.
+     */
+    @Override
+    public void close() {
+        closed.set(true);
+        CapturePacket dropped;
+        while ((dropped = packets.poll()) != null) {
+            if (account != null && dropped != SIGNAL_PACKET) {
+                account.release(dropped.getEncodedLength());
+            }
+        }
+        packets.add(SIGNAL_PACKET);
+    }
+
+    /**
+     * Drops any held segments and cancels any pending reassembly hole deadline.
+     */
+    @MThread("listener")
+    void clearReassembly() {
+        reassembler.clear();
+    }
+
+    @Override
+    public void finish() {
+        //  Everything put so far has already been decoded, so the consumer only has to drain the queue
+        if (reassembler.getPendingSegments() > 0) {
+            HCapUtils.logger.warning("Stream finished with " + reassembler.getPendingBytes() + " bytes missing a preceding segment");
+        }
+        reassembler.clear();
+        packets.add(SIGNAL_PACKET);
+    }
+
+    @Override
+    public long getCaptureStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getBytesLost() {
+        return decoder.getBytesLost();
+    }
+
+    @Override
+    public long getPacketsLost() {
+        return decoder.getPacketsLost();
+    }
+}
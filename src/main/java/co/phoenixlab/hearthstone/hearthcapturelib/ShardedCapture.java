@@ -0,0 +1,410 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.FlowTable;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * A session manager that spreads games over a fixed number of single threaded shards, for capture points such as a tap or SPAN port
+ * that see many games at once.
+ * <p>
+ * Packets are routed by a hash of their connection that is the same in both directions, so each shard sees every packet of its
+ * connections and owns their reassembly and decoding outright, without locks. Decoding happens on the shard thread as segments
+ * arrive, so the thread count is fixed at one per shard plus the capture thread no matter how many games are in progress, instead
+ * of two parse threads per game.
+ * <p>
+ * If a shard falls behind, its inbox fills and {@link #accept(TCPPacket)} blocks, which shows up as kernel drops in the capture
+ * statistics rather than as silently broken streams.
+ *
+ * @author Vincent Zhang
+ */
+public class ShardedCapture extends CaptureSessionManager implements AutoCloseable {
+
+    /**
+     * Default number of packets each shard can have waiting before the capture thread blocks.
+     */
+    public static final int DEFAULT_INBOX_CAPACITY = 4096;
+    /**
+     * Maximum number of packets a shard takes from its inbox at once.
+     */
+    private static final int DRAIN_BATCH = 256;
+    private static final long CLOSE_TIMEOUT = 5_000L;
+    /**
+     * How often an idle shard runs its timeouts, in milliseconds.
+     */
+    private static final long IDLE_TICK = 250L;
+
+    private static final TCPConnectionInfo NO_CONNECTION = new TCPConnectionInfo(0, 0, 0, 0);
+    /**
+     * Asks a shard to end all of its sessions.
+     */
+    private static final TCPPacket FINISH_ALL = new TCPPacket(0L, NO_CONNECTION, 0L, 0L, 0, TCPPacket.NO_PAYLOAD);
+    /**
+     * Asks a shard to end all of its sessions and exit.
+     */
+    private static final TCPPacket POISON = new TCPPacket(0L, NO_CONNECTION, 0L, 0L, 0, TCPPacket.NO_PAYLOAD);
+
+    private final Shard[] shards;
+    /**
+     * Held while handing anything to the shards, so nothing can be put in an inbox after the shard has been told to exit.
+     */
+    private final Object inboxLock;
+    private volatile boolean closed;
+
+    /**
+     * Creates a sharded capture with one shard per available processor.
+     *
+     * @param sessionListener Called with the CaptureQueue of every new game, from the thread of the shard that owns it. It should
+     *                        return quickly.
+     */
+    public ShardedCapture(Consumer<CaptureQueue> sessionListener) {
+        this(sessionListener, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param sessionListener Called with the CaptureQueue of every new game, from the thread of the shard that owns it. It should
+     *                        return quickly.
+     * @param shardCount      The number of shard threads.
+     */
+    public ShardedCapture(Consumer<CaptureQueue> sessionListener, int shardCount) {
+        this(sessionListener, shardCount, Integer.getInteger("phoenixlab.hearthstone.shards.inbox", DEFAULT_INBOX_CAPACITY));
+    }
+
+    /**
+     * @param sessionListener Called with the CaptureQueue of every new game, from the thread of the shard that owns it. It should
+     *                        return quickly.
+     * @param shardCount      The number of shard threads.
+     * @param inboxCapacity   The number of packets each shard can have waiting before the capture thread blocks.
+     */
+    public ShardedCapture(Consumer<CaptureQueue> sessionListener, int shardCount, int inboxCapacity) {
+        //  Shards always decode on their own thread
+        super(sessionListener, true);
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        if (inboxCapacity < 1) {
+            throw new IllegalArgumentException("Inbox capacity must be at least 1");
+        }
+        inboxLock = new Object();
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, new CaptureSessionManager(sessionListener, true), inboxCapacity);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Hands a captured packet to the shard that owns its connection. Blocks if that shard's inbox is full.
+     *
+     * @param packet The captured packet.
+     */
+    @Override
+    @MThread("listener")
+    public void accept(TCPPacket packet) {
+        synchronized (inboxLock) {
+            if (closed) {
+                return;
+            }
+            //  Held in the shard's inbox after this returns
+            shards[shardOf(packet.connectionInfo, shards.length)].put(packet.retain());
+        }
+    }
+
+    /**
+     * Picks the shard for a connection. Both directions of a connection map to the same shard.
+     */
+    static int shardOf(TCPConnectionInfo info, int shardCount) {
+        long a = FlowTable.key(info.sourceIPAddr, info.sourcePort);
+        long b = FlowTable.key(info.destinationIPAddr, info.destinationPort);
+        long h = FlowTable.mix(Math.min(a, b) * 0x9E3779B97F4A7C15L + Math.max(a, b));
+        return (int) ((h & Long.MAX_VALUE) % shardCount);
+    }
+
+    /**
+     * Ends every active session on every shard, once each shard has processed the packets already handed to it.
+     */
+    @Override
+    @MThread("listener")
+    public void finishAll() {
+        synchronized (inboxLock) {
+            if (closed) {
+                return;
+            }
+            for (Shard shard : shards) {
+                shard.put(FINISH_ALL);
+            }
+        }
+    }
+
+    /**
+     * Does nothing, since shards always reassemble and decode on their own threads.
+     */
+    @Override
+    public void setPush(boolean push) {
+    }
+
+    @Override
+    public void setAttach(boolean attach) {
+        super.setAttach(attach);
+        for (Shard shard : shards) {
+            shard.manager.setAttach(attach);
+        }
+    }
+
+    /**
+     * Gets the number of sessions started by attaching to games in progress across all shards.
+     */
+    @Override
+    public long getSessionsAttached() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.sessionsAttached;
+        }
+        return count;
+    }
+
+    /**
+     * Does nothing, as each shard runs its own timeouts.
+     */
+    @Override
+    @MThread("listener")
+    public void tick(long now) {
+    }
+
+    @Override
+    public int getActiveSessionCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.manager.getActiveSessionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the total number of games that have been started across all shards, as of each shard's most recent batch.
+     */
+    @Override
+    public long getSessionsStarted() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.sessionsStarted;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of sessions ended for being idle across all shards, as of each shard's most recent batch or idle tick.
+     */
+    @Override
+    public long getSessionsExpired() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.sessionsExpired;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of sessions the memory budget evicted across all shards, as of each shard's most recent batch or idle tick.
+     */
+    @Override
+    public long getSessionsEvicted() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.sessionsEvicted;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the number of packets each shard has processed, indexed by shard.
+     */
+    public long[] getShardPacketCounts() {
+        long[] counts = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            counts[i] = shards[i].packets;
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of packets waiting in each shard's inbox, indexed by shard.
+     */
+    public int[] getShardBacklogs() {
+        int[] backlogs = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            backlogs[i] = shards[i].inbox.size();
+        }
+        return backlogs;
+    }
+
+    /**
+     * Ends every active session and stops the shard threads, waiting up to five seconds for them to process what they've been given
+     * and exit.
+     */
+    @Override
+    public void close() {
+        synchronized (inboxLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            //  Always the last thing put in each inbox, since accept checks closed under the same lock
+            for (Shard shard : shards) {
+                shard.put(POISON);
+            }
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        try {
+            for (Shard shard : shards) {
+                shard.thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+                if (shard.thread.isAlive()) {
+                    HCapUtils.logger.warning("Shard thread " + shard.thread.getName() + " did not stop in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Shard implements Runnable {
+
+        private final CaptureSessionManager manager;
+        private final ArrayBlockingQueue<TCPPacket> inbox;
+        private final Thread thread;
+        private volatile long packets;
+        private volatile long sessionsStarted;
+        private volatile long sessionsAttached;
+        private volatile long sessionsExpired;
+        private volatile long sessionsEvicted;
+
+        Shard(int index, CaptureSessionManager manager, int inboxCapacity) {
+            this.manager = manager;
+            inbox = new ArrayBlockingQueue<>(inboxCapacity);
+            thread = new Thread(this, "HCL shard " + index);
+            thread.setDaemon(true);
+        }
+
+        @MThread("listener")
+        void put(TCPPacket packet) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    inbox.put(packet);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<TCPPacket> batch = new ArrayList<>(DRAIN_BATCH);
+            long count = 0;
+            while (true) {
+                TCPPacket first;
+                try {
+                    first = inbox.poll(IDLE_TICK, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (first == null) {
+                    manager.tick(System.currentTimeMillis());
+                    publish(count);
+                    continue;
+                }
+                batch.add(first);
+                inbox.drainTo(batch, DRAIN_BATCH - 1);
+                for (int i = 0; i < batch.size(); i++) {
+                    TCPPacket packet = batch.get(i);
+                    if (packet == POISON) {
+                        manager.finishAll();
+                        publish(count);
+                        //  Nothing should follow the poison, but don't leave pooled buffers checked out if anything did
+                        releaseAll(batch.subList(i + 1, batch.size()));
+                        batch.clear();
+                        inbox.drainTo(batch);
+                        releaseAll(batch);
+                        return;
+                    } else if (packet == FINISH_ALL) {
+                        manager.finishAll();
+                    } else {
+                        count++;
+                        try {
+                            manager.accept(packet);
+                        } catch (RuntimeException e) {
+                            HCapUtils.logger.log(Level.WARNING, "Shard failed to process packet for " + packet.connectionInfo, e);
+                        } finally {
+                            packet.release();
+                        }
+                    }
+                }
+                batch.clear();
+                publish(count);
+            }
+        }
+
+        /**
+         * Copies the manager's counters, which only this thread may read, to where other threads can see them.
+         */
+        private void publish(long count) {
+            packets = count;
+            sessionsStarted = manager.getSessionsStarted();
+            sessionsAttached = manager.getSessionsAttached();
+            sessionsExpired = manager.getSessionsExpired();
+            sessionsEvicted = manager.getSessionsEvicted();
+        }
+
+        private static void releaseAll(List<TCPPacket> packets) {
+            for (TCPPacket packet : packets) {
+                packet.release();
+            }
+        }
+    }
+}
@@ -21,6 +21,26 @@ public class CapturePacket extends CaptureStruct {
      * Whether or not this packet is an inbound packet or not (outbound).
      */
     private boolean inbound;
+    /**
+     * Capture timestamp of the TCP segment that completed this packet, in nanoseconds since the epoch.
+     */
+    private transient long wireTimeNanos;
+    /**
+     * When this packet's bytes were read out of the stream assembler, in nanoseconds since the epoch.
+     */
+    private transient long reassembledTimeNanos;
+    /**
+     * When this packet finished decoding, in nanoseconds since the epoch.
+     */
+    private transient long decodedTimeNanos;
+    /**
+     * When this packet was handed to the user, in nanoseconds since the epoch, or 0 if it hasn't been yet.
+     */
+    private transient long deliveredTimeNanos;
+    /**
+     * The number of bytes this packet took up in the TCP stream, including its header.
+     */
+    private transient int encodedLength;
 
     public CapturePacket setInbound(boolean inbound) {
         this.inbound = inbound;
@@ -46,4 +66,56 @@ public class CapturePacket extends CaptureStruct {
         this.captureDeltaTime = captureDeltaTime;
         return this;
     }
+
+    /**
+     * Gets the capture timestamp of the TCP segment that completed this packet, in nanoseconds since the epoch, or 0 if unknown.
+     */
+    public long getWireTimeNanos() {
+        return wireTimeNanos;
+    }
+
+    /**
+     * Gets when this packet's bytes were read out of the stream assembler, in nanoseconds since the epoch, or 0 if unknown.
+     */
+    public long getReassembledTimeNanos() {
+        return reassembledTimeNanos;
+    }
+
+    /**
+     * Gets when this packet finished decoding, in nanoseconds since the epoch, or 0 if unknown.
+     */
+    public long getDecodedTimeNanos() {
+        return decodedTimeNanos;
+    }
+
+    /**
+     * Gets when this packet was handed to the user, in nanoseconds since the epoch, or 0 if it hasn't been yet.
+     */
+    public long getDeliveredTimeNanos() {
+        return deliveredTimeNanos;
+    }
+
+    public CapturePacket setTimestamps(long wireTimeNanos, long reassembledTimeNanos, long decodedTimeNanos) {
+        this.wireTimeNanos = wireTimeNanos;
+        this.reassembledTimeNanos = reassembledTimeNanos;
+        this.decodedTimeNanos = decodedTimeNanos;
+        return this;
+    }
+
+    public CapturePacket setDeliveredTimeNanos(long deliveredTimeNanos) {
+        this.deliveredTimeNanos = deliveredTimeNanos;
+        return this;
+    }
+
+    /**
+     * Gets the number of bytes this packet took up in the TCP stream, including its header, or 0 if unknown.
+     */
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    public CapturePacket setEncodedLength(int encodedLength) {
+        this.encodedLength = encodedLength;
+        return this;
+    }
 }
@@ -37,15 +37,6 @@ import java.time.Instant;
  */
 public abstract class CaptureStruct {
 
-    protected static final ThreadLocal<Gson> gson;
-
-    static {
-        gson = ThreadLocal.withInitial(() -> new GsonBuilder().
-                setPrettyPrinting().
-                registerTypeAdapter(Instant.class, new InstantTypeAdapter()).
-                create());
-    }
-
     public final String _structName;
 
 
@@ -55,7 +46,7 @@ public abstract class CaptureStruct {
 
 
     public String toJSON() {
-        return toJSON(gson.get());
+        return toJSON(Json.GSON.get());
     }
 
     public String toJSON(Gson g) {
@@ -65,4 +56,16 @@ public abstract class CaptureStruct {
     public void postRead() {
 
     }
+
+    /**
+     * Holds the shared Gson setup, so that it's only built once something is actually converted to JSON rather than whenever a packet
+     * is decoded.
+     */
+    private static final class Json {
+
+        static final ThreadLocal<Gson> GSON = ThreadLocal.withInitial(() -> new GsonBuilder().
+                setPrettyPrinting().
+                registerTypeAdapter(Instant.class, new InstantTypeAdapter()).
+                create());
+    }
 }
@@ -29,6 +29,7 @@ import co.phoenixlab.hearthstone.hearthcapturelib.packets.CaptureStruct;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
@@ -44,7 +45,41 @@ import java.util.*;
 @SuppressWarnings("unchecked")
 public class HSDecoder {
 
-    private static final Map<String, Class<?>> ARRAY_CLASS_CACHE = new HashMap<>();
+    /**
+     * Field numbers are the top five bits of the field key byte.
+     */
+    private static final int MAX_FIELD_NUMBER = 31;
+
+    /**
+     * Reflection results for each struct class, built the first time the class is decoded or prepared.
+     */
+    private static final ClassValue<StructLayout> LAYOUTS = new ClassValue<StructLayout>() {
+        @Override
+        protected StructLayout computeValue(Class<?> type) {
+            return new StructLayout((Class<? extends CaptureStruct>) type);
+        }
+    };
+
+    /**
+     * Builds the reflection metadata for a CaptureStruct and every struct it contains ahead of time, so that the first decode of the
+     * class doesn't pay for it. Decoding works without preparing first.
+     *
+     * @param clazz The CaptureStruct to prepare.
+     */
+    public static void prepare(Class<? extends CaptureStruct> clazz) {
+        prepare(clazz, new HashSet<>());
+    }
+
+    private static void prepare(Class<? extends CaptureStruct> clazz, Set<Class<?>> prepared) {
+        if (!prepared.add(clazz)) {
+            return;
+        }
+        for (FieldLayout field : LAYOUTS.get(clazz).fields) {
+            if (field != null && field.structClass != null) {
+                prepare(field.structClass, prepared);
+            }
+        }
+    }
 
     /**
      * Decodes a CaptureStruct from the given buffer.
@@ -55,64 +90,67 @@ public class HSDecoder {
      * @throws IOException If there was an error reading the struct.
      */
     public static <T extends CaptureStruct> T decode(ByteBuffer buffer, Class<? extends CaptureStruct> clazz) throws IOException {
-        Field[] fields = clazz.getDeclaredFields();
-        HashMap<Integer, Field> fieldMap = new HashMap<>();
-        for (Field field : fields) {
-            FieldNumber order = field.getAnnotation(FieldNumber.class);
-            if (order != null) {
-                fieldMap.put(order.value(), field);
-            }
-        }
+        StructLayout layout = LAYOUTS.get(clazz);
         T ret;
         try {
-            ret = (T) clazz.getDeclaredConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            ret = (T) layout.constructor.newInstance();
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
             throw new RuntimeException("Unable to instantiate CaptureStruct " + clazz.getName(), e);
         }
-        HashMap<Field, List> workingArrays = new HashMap<>();
-        while (!fieldMap.isEmpty() && buffer.remaining() > 0) {
-            processNextField(buffer, clazz, fieldMap, ret, workingArrays);
+        //  Fields that aren't arrays are only read once, and decoding stops once every field has been read
+        int remaining = layout.fieldCount;
+        int read = 0;
+        List[] workingArrays = null;
+        while (remaining > 0 && buffer.remaining() > 0) {
+            int i = Byte.toUnsignedInt(buffer.get());
+            int fieldNumber = i >> 3;
+            FieldLayout field = layout.fields[fieldNumber];
+            if (field == null || (read & (1 << fieldNumber)) != 0) {
+                throw new IOException("Unknown field " + fieldNumber + " in " + clazz.getName() + ", " + remaining + " remaining " +
+                        layout.describeRemaining(read) + "\n contents " + ret.toJSON());
+            }
+            if (!field.array) {
+                read |= 1 << fieldNumber;
+                remaining--;
+            } else if (workingArrays == null) {
+                workingArrays = new List[MAX_FIELD_NUMBER + 1];
+            }
+            List list = null;
+            if (field.array) {
+                list = workingArrays[fieldNumber];
+                if (list == null) {
+                    list = new ArrayList<>();
+                    workingArrays[fieldNumber] = list;
+                }
+            }
+            processNextField(buffer, clazz, field, i & 0x07, ret, list);
         }
         //  Process our arrays
-        for (Map.Entry<Field, List> entry : workingArrays.entrySet()) {
-            try {
-                handleArray(ret, entry);
-            } catch (Exception e) {
-                throw new RuntimeException("Error processing arrays for " + clazz.getName() + " for field " + entry.getKey().getName(), e);
+        if (workingArrays != null) {
+            for (int fieldNumber = 0; fieldNumber <= MAX_FIELD_NUMBER; fieldNumber++) {
+                if (workingArrays[fieldNumber] == null) {
+                    continue;
+                }
+                Field field = layout.fields[fieldNumber].field;
+                try {
+                    handleArray(ret, field, workingArrays[fieldNumber]);
+                } catch (Exception e) {
+                    throw new RuntimeException("Error processing arrays for " + clazz.getName() + " for field " + field.getName(), e);
+                }
             }
         }
         ret.postRead();
         return ret;
     }
 
-    private static <T extends CaptureStruct> void processNextField(ByteBuffer buffer, Class<? extends CaptureStruct> clazz, HashMap<Integer, Field> fieldMap, T ret, HashMap<Field, List> workingArrays) throws
-            IOException {
-        int i = Byte.toUnsignedInt(buffer.get());
-        int fieldNumber = i >> 3;
-        int type = i & 0x07;
-        Field field = fieldMap.get(fieldNumber);
-        if (field == null) {
-            throw new IOException("Unknown field " + fieldNumber + " in " + clazz.getName() + ", " + fieldMap.size() + " remaining " + fieldMap.toString() + "\n contents " + ret.toJSON());
-        }
-        String fieldName = field.getName();
-        field.setAccessible(true);
-        FieldType fType = field.getAnnotation(FieldType.class);
-        if (fType == null) {
-            throw new IOException("Missing field type for " + field.getDeclaringClass().getName() + "#" + fieldName);
-        }
-        GameEnums.DataType dataType = fType.value();
-        boolean isArray = field.getType().isArray();
-        if (!isArray) {
-            fieldMap.remove(fieldNumber);
-        }
-        List list = null;
-        if (isArray) {
-            list = workingArrays.get(field);
-            if (list == null) {
-                list = new ArrayList<>();
-                workingArrays.put(field, list);
-            }
+    private static <T extends CaptureStruct> void processNextField(ByteBuffer buffer, Class<? extends CaptureStruct> clazz, FieldLayout fieldLayout,
+                                                                   int type, T ret, List list) throws IOException {
+        Field field = fieldLayout.field;
+        GameEnums.DataType dataType = fieldLayout.dataType;
+        if (dataType == null) {
+            throw new IOException("Missing field type for " + field.getDeclaringClass().getName() + "#" + field.getName());
         }
+        boolean isArray = fieldLayout.array;
         try {
             switch (dataType) {
                 case STRING: {
@@ -142,17 +180,7 @@ public class HSDecoder {
                     long length = readUnsignedVarInt(buffer);
                     byte[] data = new byte[(int) length];
                     buffer.get(data);
-                    StructHandler handler = field.getAnnotation(StructHandler.class);
-                    Class<? extends CaptureStruct> handlerClazz;
-                    if (handler == null || handler.value() == null) {
-                        if (field.getType().isArray()) {
-                            handlerClazz = (Class<? extends CaptureStruct>) field.getType().getComponentType();
-                        } else {
-                            handlerClazz = (Class<? extends CaptureStruct>) field.getType();
-                        }
-                    } else {
-                        handlerClazz = handler.value();
-                    }
+                    Class<? extends CaptureStruct> handlerClazz = fieldLayout.structClass;
                     ByteBuffer dataBuffer = ByteBuffer.allocate((int) length);
                     dataBuffer.put(data);
                     dataBuffer.flip();
@@ -259,9 +287,7 @@ public class HSDecoder {
         }
     }
 
-    private static <T extends CaptureStruct> void handleArray(T ret, Map.Entry<Field, List> entry) throws IllegalAccessException {
-        Field field = entry.getKey();
-        List list = entry.getValue();
+    private static <T extends CaptureStruct> void handleArray(T ret, Field field, List list) throws IllegalAccessException {
         Class<?> type = field.getType();
         if (!type.isArray()) {
             throw new IllegalArgumentException("Field " + field.getName() + " is not an array!");
@@ -329,12 +355,7 @@ public class HSDecoder {
                 field.set(ret, arr);
             }
         } else {
-            Class arrayClass = ARRAY_CLASS_CACHE.get(componentType.getName());
-            if (arrayClass == null) {
-                arrayClass = Array.newInstance(componentType, 0).getClass();
-                ARRAY_CLASS_CACHE.put(componentType.getName(), arrayClass);
-            }
-            field.set(ret, list.toArray(Arrays.copyOf(new Object[size], size, arrayClass)));
+            field.set(ret, list.toArray((Object[]) Array.newInstance(componentType, size)));
         }
     }
 
@@ -375,4 +396,78 @@ public class HSDecoder {
         }
         return value | (b << i);
     }
+
+    /**
+     * The decodable fields of a struct class, indexed by field number.
+     */
+    private static final class StructLayout {
+
+        final Constructor<?> constructor;
+        final FieldLayout[] fields;
+        /**
+         * The number of distinct field numbers declared, including ones too large to ever be read.
+         */
+        final int fieldCount;
+
+        StructLayout(Class<? extends CaptureStruct> clazz) {
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Unable to instantiate CaptureStruct " + clazz.getName(), e);
+            }
+            fields = new FieldLayout[MAX_FIELD_NUMBER + 1];
+            Set<Integer> numbers = new HashSet<>();
+            for (Field field : clazz.getDeclaredFields()) {
+                FieldNumber order = field.getAnnotation(FieldNumber.class);
+                if (order == null) {
+                    continue;
+                }
+                numbers.add(order.value());
+                if (order.value() >= 0 && order.value() <= MAX_FIELD_NUMBER) {
+                    fields[order.value()] = new FieldLayout(field);
+                }
+            }
+            fieldCount = numbers.size();
+        }
+
+        String describeRemaining(int read) {
+            StringJoiner joiner = new StringJoiner(", ", "{", "}");
+            for (int i = 0; i <= MAX_FIELD_NUMBER; i++) {
+                if (fields[i] != null && (read & (1 << i)) == 0) {
+                    joiner.add(i + "=" + fields[i].field);
+                }
+            }
+            return joiner.toString();
+        }
+    }
+
+    private static final class FieldLayout {
+
+        final Field field;
+        final GameEnums.DataType dataType;
+        final boolean array;
+        /**
+         * The struct to decode the field's value as, or null if it isn't a struct.
+         */
+        final Class<? extends CaptureStruct> structClass;
+
+        FieldLayout(Field field) {
+            this.field = field;
+            field.setAccessible(true);
+            FieldType fType = field.getAnnotation(FieldType.class);
+            dataType = fType == null ? null : fType.value();
+            array = field.getType().isArray();
+            if (dataType == GameEnums.DataType.STRUCT) {
+                StructHandler handler = field.getAnnotation(StructHandler.class);
+                if (handler == null || handler.value() == null) {
+                    structClass = (Class<? extends CaptureStruct>) (array ? field.getType().getComponentType() : field.getType());
+                } else {
+                    structClass = handler.value();
+                }
+            } else {
+                structClass = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.CaptureOptions;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.AddressClassifier;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * A libpcap capture handle called through the Foreign Function &amp; Memory API instead of jNetPcap, which avoids a JNI transition per
+ * packet and the {@code PcapPacket}/{@code JBuffer} wrappers. As in {@code NetInterfaceListener}, the start of each frame is copied out
+ * of libpcap's buffer into a scratch array and parsed with {@link LinkLayer} and
+ * {@link co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser}, and each payload is copied once, straight into a buffer from
+ * the default {@link co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool}.
+ * <p>
+ * The implementation lives in the Java 22 section of the multi-release jar. This class is what older runtimes, and anything run from
+ * {@code target/classes} rather than the jar, see: {@link #isSupported()} returns false and the factory methods throw.
+ *
+ * @author Vincent Zhang
+ */
+public final class ForeignPcap implements AutoCloseable {
+
+    private ForeignPcap() {
+    }
+
+    /**
+     * Gets whether this backend can be used, which needs Java 22 or later, native access enabled and libpcap (or Npcap) installed.
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Opens a pcap or pcapng file with {@code pcap_open_offline}.
+     *
+     * @param file The capture file.
+     * @throws java.io.IOException                    If libpcap could not open the file.
+     * @throws java.lang.UnsupportedOperationException If this backend is not supported on this runtime.
+     */
+    public static ForeignPcap openOffline(Path file) throws IOException {
+        throw unsupported();
+    }
+
+    /**
+     * Opens and activates a network interface with the given options.
+     *
+     * @param device  The libpcap name of the interface.
+     * @param options The snapshot length, promiscuous mode, read timeout and kernel buffer size to use.
+     * @throws java.io.IOException                    If the interface could not be opened or activated.
+     * @throws java.lang.UnsupportedOperationException If this backend is not supported on this runtime.
+     */
+    public static ForeignPcap openLive(String device, CaptureOptions options) throws IOException {
+        throw unsupported();
+    }
+
+    /**
+     * Compiles and installs a capture filter.
+     *
+     * @return true if the filter was installed, false if it could not be compiled or set, in which case the previous filter stays.
+     */
+    public boolean setFilter(String expression) {
+        throw unsupported();
+    }
+
+    /**
+     * Sets the classifier used to decide which end of each connection is remote.
+     */
+    public void setClassifier(AddressClassifier classifier) {
+        throw unsupported();
+    }
+
+    /**
+     * Reads up to maxPackets frames, handing every IPv4 TCP segment among them to the sink. Returns early when the read timeout expires.
+     *
+     * @param maxPackets The maximum number of frames to read.
+     * @param sink       Called with each TCP segment, on the calling thread. The payload is in a pooled buffer that is released once the
+     *                   sink returns, so a sink that keeps the segment must {@link TCPPacket#retain() retain} it.
+     * @return The number of frames read, or -1 if the end of the file was reached or {@link #breakLoop()} was called.
+     * @throws java.io.IOException If libpcap reported an error.
+     */
+    public int dispatch(int maxPackets, Consumer<TCPPacket> sink) throws IOException {
+        throw unsupported();
+    }
+
+    /**
+     * Makes a {@link #dispatch(int, Consumer)} in progress on another thread return -1 as soon as possible.
+     */
+    public void breakLoop() {
+        throw unsupported();
+    }
+
+    /**
+     * Gets the link layer header type of the handle, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     */
+    public int getLinkType() {
+        throw unsupported();
+    }
+
+    /**
+     * Gets the number of frames read so far.
+     */
+    public long getPacketsRead() {
+        throw unsupported();
+    }
+
+    /**
+     * Gets the number of captured bytes read so far.
+     */
+    public long getBytesRead() {
+        throw unsupported();
+    }
+
+    /**
+     * Closes the native handle. Must not be called while another thread is in {@link #dispatch(int, Consumer)}.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("The libpcap foreign function backend requires Java 22 or later");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+/**
+ * Locates the network layer within captured frames of the link types that appear in Hearthstone captures.
+ *
+ * @author Vincent Zhang
+ */
+public final class LinkLayer {
+
+    /**
+     * Enough of the start of a frame for the largest link layer header we handle plus maximum length IPv4 and TCP headers.
+     */
+    public static final int MAX_HEADER_BYTES = 160;
+
+    private static final int ETHERTYPE_IP4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    private static final int AF_INET = 2;
+
+    private LinkLayer() {
+    }
+
+    /**
+     * Gets the offset of the IPv4 header within a frame.
+     *
+     * @param linkType The link layer header type, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     * @param frame    The frame bytes.
+     * @param length   The number of valid bytes in frame.
+     * @return The offset of the IPv4 header, or -1 if the frame does not carry IPv4 or the link type is not supported.
+     */
+    public static int ip4Offset(int linkType, byte[] frame, int length) {
+        switch (linkType) {
+            case PcapFileReader.LINKTYPE_ETHERNET: {
+                int offset = 12;
+                while (offset + 2 <= length) {
+                    int etherType = getUShort(frame, offset);
+                    if (etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) {
+                        offset += 4;
+                        continue;
+                    }
+                    return etherType == ETHERTYPE_IP4 ? offset + 2 : -1;
+                }
+                return -1;
+            }
+            case PcapFileReader.LINKTYPE_NULL: {
+                //  Address family in the byte order of the host that captured it
+                if (length < 4) {
+                    return -1;
+                }
+                int family = getInt(frame, 0);
+                return family == AF_INET || Integer.reverseBytes(family) == AF_INET ? 4 : -1;
+            }
+            case PcapFileReader.LINKTYPE_LOOP:
+                return length >= 4 && getInt(frame, 0) == AF_INET ? 4 : -1;
+            case PcapFileReader.LINKTYPE_LINUX_SLL:
+                return length >= 16 && getUShort(frame, 14) == ETHERTYPE_IP4 ? 16 : -1;
+            case PcapFileReader.LINKTYPE_RAW:
+            case PcapFileReader.LINKTYPE_IPV4:
+                return length >= 1 && (frame[0] & 0xF0) == 0x40 ? 0 : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static int getUShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pure Java reader for libpcap (.pcap) and pcapng (.pcapng) capture files.
+ * <p>
+ * The file is memory mapped and read one record at a time into a reusable {@link PcapRecord}, so reading a capture
+ * does not need the jNetPcap native library and does not allocate per record.
+ *
+ * @author Vincent Zhang
+ */
+public class PcapFileReader implements Closeable {
+
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LOOP = 108;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+
+    static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+    static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+    static final int PCAPNG_SECTION_HEADER = 0x0A0D0D0A;
+    static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    static final int PCAPNG_INTERFACE_DESCRIPTION = 0x00000001;
+    static final int PCAPNG_OBSOLETE_PACKET = 0x00000002;
+    static final int PCAPNG_SIMPLE_PACKET = 0x00000003;
+    static final int PCAPNG_ENHANCED_PACKET = 0x00000006;
+    private static final int PCAPNG_OPTION_END = 0;
+    private static final int PCAPNG_OPTION_IF_TSRESOL = 9;
+
+    /**
+     * Files larger than this are mapped in windows of this size.
+     */
+    private static final long MAP_WINDOW_SIZE = 1L << 28;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final boolean pcapng;
+    private final List<PcapngInterface> interfaces;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+    private long position;
+    private ByteOrder order;
+    //  Classic pcap only
+    private int linkType;
+    private boolean nanosecondTimestamps;
+
+    public PcapFileReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        fileSize = channel.size();
+        interfaces = new ArrayList<>();
+        windowStart = -1L;
+        windowEnd = -1L;
+        try {
+            if (fileSize < 4) {
+                throw new IOException("Not a pcap file: too short");
+            }
+            order = ByteOrder.BIG_ENDIAN;
+            int magic = getInt(0);
+            if (magic == PCAPNG_SECTION_HEADER) {
+                pcapng = true;
+                position = 0L;
+            } else {
+                pcapng = false;
+                readPcapHeader(magic);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readPcapHeader(int magic) throws IOException {
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException(String.format("Not a pcap file: unknown magic %08X", magic));
+        }
+        if (fileSize < 24) {
+            throw new IOException("Truncated pcap file header");
+        }
+        nanosecondTimestamps = magic == PCAP_MAGIC_NANOS;
+        linkType = getInt(20) & 0xFFFF;
+        position = 24L;
+    }
+
+    /**
+     * Gets whether or not the file is in pcapng format.
+     */
+    public boolean isPcapng() {
+        return pcapng;
+    }
+
+    /**
+     * Gets the total size of the capture file in bytes.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Reads the next captured frame into the given record, reusing its storage.
+     *
+     * @param record The record to fill.
+     * @return true if a frame was read, false if the end of the file was reached.
+     * @throws IOException If the file is malformed.
+     */
+    public boolean next(PcapRecord record) throws IOException {
+        return pcapng ? nextPcapng(record) : nextPcap(record);
+    }
+
+    private boolean nextPcap(PcapRecord record) throws IOException {
+        if (position + 16 > fileSize) {
+            return false;
+        }
+        long seconds = getInt(position) & 0xFFFFFFFFL;
+        long fraction = getInt(position + 4) & 0xFFFFFFFFL;
+        int capturedLength = getInt(position + 8);
+        int originalLength = getInt(position + 12);
+        if (capturedLength < 0 || position + 16 + capturedLength > fileSize) {
+            //  Truncated final record, usually from a capture that was killed mid-write
+            return false;
+        }
+        record.timestampNanos = seconds * 1_000_000_000L + (nanosecondTimestamps ? fraction : fraction * 1_000L);
+        record.linkType = linkType;
+        record.originalLength = originalLength;
+        copyData(position + 16, capturedLength, record);
+        position += 16 + capturedLength;
+        return true;
+    }
+
+    private boolean nextPcapng(PcapRecord record) throws IOException {
+        while (position + 12 <= fileSize) {
+            int blockType = getInt(position);
+            if (blockType == PCAPNG_SECTION_HEADER) {
+                readSectionHeader();
+            }
+            int blockLength = getInt(position + 4);
+            if (blockLength < 12 || (blockLength & 3) != 0) {
+                throw new IOException(String.format("Invalid pcapng block length %d at offset %d", blockLength, position));
+            }
+            if (position + blockLength > fileSize) {
+                return false;
+            }
+            long block = position;
+            position += blockLength;
+            switch (blockType) {
+                case PCAPNG_INTERFACE_DESCRIPTION:
+                    readInterfaceDescription(block, blockLength);
+                    break;
+                case PCAPNG_ENHANCED_PACKET:
+                    readPacketBlock(block, getInt(block + 8), record);
+                    return true;
+                case PCAPNG_OBSOLETE_PACKET:
+                    readPacketBlock(block, getShort(block + 8), record);
+                    return true;
+                case PCAPNG_SIMPLE_PACKET: {
+                    PcapngInterface pcapngInterface = getInterface(0);
+                    int originalLength = getInt(block + 8);
+                    int capturedLength = Math.min(originalLength, blockLength - 16);
+                    if (pcapngInterface.snapLength > 0) {
+                        capturedLength = Math.min(capturedLength, pcapngInterface.snapLength);
+                    }
+                    record.timestampNanos = 0L;
+                    record.linkType = pcapngInterface.linkType;
+                    record.originalLength = originalLength;
+                    copyData(block + 12, capturedLength, record);
+                    return true;
+                }
+                default:
+                    //  Name resolution, statistics, custom blocks, etc. are of no interest to us
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private void readSectionHeader() throws IOException {
+        order = ByteOrder.BIG_ENDIAN;
+        int byteOrderMagic = getInt(position + 8);
+        if (byteOrderMagic == Integer.reverseBytes(PCAPNG_BYTE_ORDER_MAGIC)) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (byteOrderMagic != PCAPNG_BYTE_ORDER_MAGIC) {
+            throw new IOException(String.format("Invalid pcapng byte order magic %08X", byteOrderMagic));
+        }
+        //  Interface IDs are scoped to their section
+        interfaces.clear();
+    }
+
+    private void readInterfaceDescription(long block, int blockLength) {
+        PcapngInterface pcapngInterface = new PcapngInterface();
+        pcapngInterface.linkType = getShort(block + 8);
+        pcapngInterface.snapLength = getInt(block + 12);
+        long optionEnd = block + blockLength - 4;
+        long option = block + 16;
+        while (option + 4 <= optionEnd) {
+            int code = getShort(option);
+            int length = getShort(option + 2);
+            if (code == PCAPNG_OPTION_END) {
+                break;
+            }
+            if (code == PCAPNG_OPTION_IF_TSRESOL && length >= 1) {
+                pcapngInterface.timestampResolution = getByte(option + 4);
+            }
+            option += 4 + ((length + 3) & ~3);
+        }
+        interfaces.add(pcapngInterface);
+    }
+
+    private void readPacketBlock(long block, int interfaceId, PcapRecord record) throws IOException {
+        PcapngInterface pcapngInterface = getInterface(interfaceId);
+        long timestamp = ((getInt(block + 12) & 0xFFFFFFFFL) << 32) | (getInt(block + 16) & 0xFFFFFFFFL);
+        int capturedLength = getInt(block + 20);
+        if (capturedLength < 0 || capturedLength > getInt(block + 4) - 32) {
+            throw new IOException(String.format("Invalid pcapng captured length %d at offset %d", capturedLength, block));
+        }
+        record.timestampNanos = pcapngInterface.toNanos(timestamp);
+        record.linkType = pcapngInterface.linkType;
+        record.originalLength = getInt(block + 24);
+        copyData(block + 28, capturedLength, record);
+    }
+
+    private PcapngInterface getInterface(int interfaceId) throws IOException {
+        if (interfaceId < 0 || interfaceId >= interfaces.size()) {
+            throw new IOException("Packet references undefined pcapng interface " + interfaceId);
+        }
+        return interfaces.get(interfaceId);
+    }
+
+    private void copyData(long offset, int length, PcapRecord record) throws IOException {
+        map(offset, length);
+        byte[] data = record.ensureCapacity(length);
+        window.position((int) (offset - windowStart));
+        window.get(data, 0, length);
+        record.capturedLength = length;
+    }
+
+    private int getByte(long offset) {
+        mapUnchecked(offset, 1);
+        return Byte.toUnsignedInt(window.get((int) (offset - windowStart)));
+    }
+
+    private int getShort(long offset) {
+        mapUnchecked(offset, 2);
+        return Short.toUnsignedInt(window.order(order).getShort((int) (offset - windowStart)));
+    }
+
+    private int getInt(long offset) {
+        mapUnchecked(offset, 4);
+        return window.order(order).getInt((int) (offset - windowStart));
+    }
+
+    private void mapUnchecked(long offset, int length) {
+        try {
+            map(offset, length);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map capture file", e);
+        }
+    }
+
+    /**
+     * Makes sure the region [offset, offset + length) is covered by the current mapped window.
+     */
+    private void map(long offset, int length) throws IOException {
+        if (offset >= windowStart && offset + length <= windowEnd) {
+            return;
+        }
+        long size = Math.min(Math.max(MAP_WINDOW_SIZE, length), fileSize - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowStart = offset;
+        windowEnd = offset + size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private static class PcapngInterface {
+
+        private int linkType;
+        private int snapLength;
+        /**
+         * if_tsresol: high bit clear is a negative power of 10, high bit set is a negative power of 2. Defaults to microseconds.
+         */
+        private int timestampResolution = 6;
+
+        private long toNanos(long timestamp) {
+            int exponent = timestampResolution & 0x7F;
+            if ((timestampResolution & 0x80) != 0) {
+                long seconds = timestamp >>> exponent;
+                long fraction = timestamp & ((1L << exponent) - 1);
+                return seconds * 1_000_000_000L + ((fraction * 1_000_000_000L) >>> exponent);
+            }
+            if (exponent <= 9) {
+                for (int i = exponent; i < 9; i++) {
+                    timestamp *= 10;
+                }
+                return timestamp;
+            }
+            for (int i = 9; i < exponent; i++) {
+                timestamp /= 10;
+            }
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+/**
+ * A single frame read from a capture file. Instances are reused by {@link PcapFileReader#next(PcapRecord)}, so the data array
+ * is only valid until the next call.
+ *
+ * @author Vincent Zhang
+ */
+public class PcapRecord {
+
+    long timestampNanos;
+    int linkType;
+    int capturedLength;
+    int originalLength;
+    private byte[] data;
+
+    public PcapRecord() {
+        data = new byte[2048];
+    }
+
+    byte[] ensureCapacity(int length) {
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+        return data;
+    }
+
+    /**
+     * The time at which the frame was captured, in nanoseconds since the epoch.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * The link layer header type of the frame, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     */
+    public int getLinkType() {
+        return linkType;
+    }
+
+    /**
+     * The number of bytes of the frame that were captured and are available in {@link #getData()}.
+     */
+    public int getCapturedLength() {
+        return capturedLength;
+    }
+
+    /**
+     * The length of the frame on the wire, which may be larger than the captured length if the snapshot length was exceeded.
+     */
+    public int getOriginalLength() {
+        return originalLength;
+    }
+
+    /**
+     * The captured frame bytes. Only the first {@link #getCapturedLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Records raw captured frames into a rotating set of pcap files, for replaying reassembly or decoding problems offline with
+ * {@link PcapFileReader}.
+ * <p>
+ * The capture thread copies each frame into a preallocated ring, already laid out as a pcap record, and returns. A dedicated writer
+ * thread drains the ring to disk, starting a new file once the current one reaches the file size and deleting the oldest file once
+ * there are more than the file count. If the writer falls behind and the ring fills up, frames are dropped and counted instead of
+ * holding up capture. Nothing is allocated per frame, so recording can be left on.
+ * <p>
+ * Files are named {@code <prefix>-<start time>-<sequence>.pcap} and use nanosecond timestamps.
+ *
+ * @author Vincent Zhang
+ */
+public class PcapRecorder implements Closeable {
+
+    /**
+     * Default ring size, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+    /**
+     * Default size at which a new file is started, in bytes.
+     */
+    public static final long DEFAULT_FILE_SIZE = 64L * 1024L * 1024L;
+    /**
+     * Default number of files kept.
+     */
+    public static final int DEFAULT_FILE_COUNT = 8;
+    private static final int FILE_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    /**
+     * How long the writer sleeps when the ring is empty, in nanoseconds.
+     */
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    private final Path directory;
+    private final String prefix;
+    private final int linkType;
+    private final int snaplen;
+    private final long fileSize;
+    private final int fileCount;
+    private final byte[] ring;
+    private final int mask;
+    private final Thread writer;
+    /**
+     * Ring position up to which records have been published by the capture thread.
+     */
+    private volatile long head;
+    /**
+     * Ring position up to which records have been written out by the writer thread.
+     */
+    private volatile long tail;
+    private volatile boolean closed;
+    private volatile boolean failed;
+    //  Capture thread counters
+    private volatile long framesRecorded;
+    private volatile long framesDropped;
+    //  Writer thread state
+    private final ArrayDeque<Path> files;
+    private final String startTime;
+    private FileChannel channel;
+    private long channelSize;
+    private int fileSequence;
+    private volatile long bytesWritten;
+
+    /**
+     * Creates a recorder with the default ring size, file size and file count.
+     *
+     * @param directory The directory to write files into. It is created if it doesn't exist.
+     * @param prefix    The start of each file's name, such as the interface name.
+     * @param linkType  The link layer header type of the recorded frames, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     * @param snaplen   The snapshot length frames were captured with.
+     */
+    public PcapRecorder(Path directory, String prefix, int linkType, int snaplen) throws IOException {
+        this(directory, prefix, linkType, snaplen, DEFAULT_BUFFER_SIZE, DEFAULT_FILE_SIZE, DEFAULT_FILE_COUNT);
+    }
+
+    /**
+     * @param directory  The directory to write files into. It is created if it doesn't exist.
+     * @param prefix     The start of each file's name, such as the interface name.
+     * @param linkType   The link layer header type of the recorded frames, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     * @param snaplen    The snapshot length frames were captured with.
+     * @param bufferSize The size of the ring in bytes, rounded up to a power of two.
+     * @param fileSize   The size at which a new file is started, in bytes.
+     * @param fileCount  The number of files to keep, or 0 to keep every file.
+     */
+    public PcapRecorder(Path directory, String prefix, int linkType, int snaplen, int bufferSize, long fileSize, int fileCount)
+            throws IOException {
+        if (bufferSize < 1 || bufferSize > 1 << 30) {
+            throw new IllegalArgumentException("Buffer size must be between 1 and 2^30 bytes");
+        }
+        if (fileSize <= FILE_HEADER_LENGTH) {
+            throw new IllegalArgumentException("File size is too small");
+        }
+        if (fileCount < 0) {
+            throw new IllegalArgumentException("File count must not be negative");
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.prefix = prefix.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.linkType = linkType;
+        this.snaplen = snaplen;
+        this.fileSize = fileSize;
+        this.fileCount = fileCount;
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        ring = new byte[capacity];
+        mask = capacity - 1;
+        files = new ArrayDeque<>();
+        startTime = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        openNextFile();
+        writer = new Thread(this::writeLoop, "HCL recorder " + this.prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Copies a frame into the ring for writing. Must only be called from one thread at a time.
+     *
+     * @param timeNanos      The time at which the frame was captured, in nanoseconds since the epoch.
+     * @param frame          The captured bytes of the frame.
+     * @param offset         The offset of the frame within the array.
+     * @param length         The number of captured bytes.
+     * @param originalLength The length of the frame on the wire.
+     * @return true if the frame was recorded, false if it was dropped because the ring is full or the recorder is closed.
+     */
+    @MThread("listener")
+    public boolean record(long timeNanos, byte[] frame, int offset, int length, int originalLength) {
+        if (closed || failed) {
+            return false;
+        }
+        long position = head;
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength > ring.length - (position - tail)) {
+            framesDropped++;
+            return false;
+        }
+        putInt(position, (int) (timeNanos / 1_000_000_000L));
+        putInt(position + 4, (int) (timeNanos % 1_000_000_000L));
+        putInt(position + 8, length);
+        putInt(position + 12, originalLength);
+        int start = (int) (position + RECORD_HEADER_LENGTH) & mask;
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(frame, offset, ring, start, first);
+        System.arraycopy(frame, offset + first, ring, 0, length - first);
+        //  Publishes the record to the writer
+        head = position + recordLength;
+        framesRecorded++;
+        return true;
+    }
+
+    private void putInt(long position, int value) {
+        //  Little endian, like the file header
+        ring[(int) position & mask] = (byte) value;
+        ring[(int) (position + 1) & mask] = (byte) (value >>> 8);
+        ring[(int) (position + 2) & mask] = (byte) (value >>> 16);
+        ring[(int) (position + 3) & mask] = (byte) (value >>> 24);
+    }
+
+    private int getInt(long position) {
+        return (ring[(int) position & mask] & 0xFF) |
+                (ring[(int) (position + 1) & mask] & 0xFF) << 8 |
+                (ring[(int) (position + 2) & mask] & 0xFF) << 16 |
+                (ring[(int) (position + 3) & mask] & 0xFF) << 24;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                long end = head;
+                long start = tail;
+                if (start == end) {
+                    if (closed) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                //  Take as many whole records as fit in the current file. A record too big for any file still gets one to itself.
+                boolean empty = channelSize == FILE_HEADER_LENGTH;
+                long position = start;
+                while (position < end) {
+                    long recordEnd = position + RECORD_HEADER_LENGTH + getInt(position + 8);
+                    if (channelSize + (recordEnd - start) > fileSize && !(empty && position == start)) {
+                        break;
+                    }
+                    position = recordEnd;
+                }
+                if (position > start) {
+                    write(start, position);
+                    tail = position;
+                }
+                if (position < end || channelSize >= fileSize) {
+                    openNextFile();
+                }
+            }
+        } catch (IOException e) {
+            failed = true;
+            HCapUtils.logger.log(Level.SEVERE, "Recording to " + directory + " failed, no more frames will be recorded", e);
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void write(long start, long end) throws IOException {
+        int from = (int) start & mask;
+        int length = (int) (end - start);
+        int first = Math.min(length, ring.length - from);
+        ByteBuffer[] buffers = {ByteBuffer.wrap(ring, from, first), ByteBuffer.wrap(ring, 0, length - first)};
+        while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+            channel.write(buffers);
+        }
+        channelSize += length;
+        bytesWritten += length;
+    }
+
+    private void openNextFile() throws IOException {
+        closeFile();
+        Path file = directory.resolve(String.format("%s-%s-%04d.pcap", prefix, startTime, fileSequence++));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PcapFileReader.PCAP_MAGIC_NANOS).
+                putShort((short) 2).
+                putShort((short) 4).
+                putInt(0).
+                putInt(0).
+                putInt(snaplen).
+                putInt(linkType);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channelSize = FILE_HEADER_LENGTH;
+        files.addLast(file);
+        while (fileCount > 0 && files.size() > fileCount) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                HCapUtils.logger.log(Level.WARNING, "Unable to close recording", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Gets the number of frames copied into the ring.
+     */
+    public long getFramesRecorded() {
+        return framesRecorded;
+    }
+
+    /**
+     * Gets the number of frames dropped because the ring was full.
+     */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * Gets the number of record bytes written to disk, not counting file headers.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Gets whether or not writing failed, after which nothing more is recorded.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Stops recording, waiting for the writer to write out everything already in the ring.
+     */
+    @Override
+    @MThread("listener")
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PcapRecorder{" +
+                "directory=" + directory +
+                ", framesRecorded=" + framesRecorded +
+                ", framesDropped=" + framesDropped +
+                ", bytesWritten=" + bytesWritten +
+                ", failed=" + failed +
+                '}';
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Classifies IPv4 addresses as local or remote using precomputed CIDR ranges, so classifying an address is a few integer operations.
+ * <p>
+ * Private (RFC 1918), loopback, link local, carrier grade NAT and unspecified addresses are always local. More local ranges can be added,
+ * for example a VPN's public address range, and remote ranges can be added for servers that sit inside a local range, for example behind
+ * a NAT or a proxy on the LAN. Remote ranges take priority over local ones.
+ * <p>
+ * Extra ranges for the default classifier can be given as comma separated CIDR lists in the {@code phoenixlab.hearthstone.localnets} and
+ * {@code phoenixlab.hearthstone.remotenets} system properties.
+ *
+ * @author Vincent Zhang
+ */
+public final class AddressClassifier {
+
+    private static final String[] BUILT_IN_LOCAL_RANGES = {
+            "10.0.0.0/8",
+            "172.16.0.0/12",
+            "192.168.0.0/16",
+            "127.0.0.0/8",
+            "169.254.0.0/16",
+            "100.64.0.0/10",
+            "0.0.0.0/32"
+    };
+
+    private static volatile AddressClassifier defaultClassifier = new AddressClassifier(
+            concat(BUILT_IN_LOCAL_RANGES, System.getProperty("phoenixlab.hearthstone.localnets", "")),
+            concat(new String[0], System.getProperty("phoenixlab.hearthstone.remotenets", "")));
+
+    private final int[] localNetworks;
+    private final int[] localMasks;
+    private final int[] remoteNetworks;
+    private final int[] remoteMasks;
+
+    private AddressClassifier(int[] localNetworks, int[] localMasks, int[] remoteNetworks, int[] remoteMasks) {
+        this.localNetworks = localNetworks;
+        this.localMasks = localMasks;
+        this.remoteNetworks = remoteNetworks;
+        this.remoteMasks = remoteMasks;
+    }
+
+    private AddressClassifier(List<String> localRanges, List<String> remoteRanges) {
+        this(new int[localRanges.size()], new int[localRanges.size()], new int[remoteRanges.size()], new int[remoteRanges.size()]);
+        parseRanges(localRanges, localNetworks, localMasks);
+        parseRanges(remoteRanges, remoteNetworks, remoteMasks);
+    }
+
+    /**
+     * Gets the classifier used for connections that aren't given one explicitly.
+     */
+    public static AddressClassifier getDefault() {
+        return defaultClassifier;
+    }
+
+    /**
+     * Sets the classifier used for connections that aren't given one explicitly. Connections that were already created keep their
+     * classification.
+     */
+    public static void setDefault(AddressClassifier classifier) {
+        if (classifier == null) {
+            throw new NullPointerException("classifier");
+        }
+        defaultClassifier = classifier;
+    }
+
+    /**
+     * Creates a classifier with only the built in local ranges.
+     */
+    public static AddressClassifier builtIn() {
+        return new AddressClassifier(Arrays.asList(BUILT_IN_LOCAL_RANGES), new ArrayList<>());
+    }
+
+    /**
+     * Creates a copy of this classifier with extra local ranges.
+     *
+     * @param ranges CIDR ranges such as "25.0.0.0/8". A plain address is treated as a /32.
+     * @throws IllegalArgumentException If a range is malformed.
+     */
+    public AddressClassifier withLocalRanges(String... ranges) {
+        int[] networks = Arrays.copyOf(localNetworks, localNetworks.length + ranges.length);
+        int[] masks = Arrays.copyOf(localMasks, localMasks.length + ranges.length);
+        for (int i = 0; i < ranges.length; i++) {
+            parseRange(ranges[i], networks, masks, localNetworks.length + i);
+        }
+        return new AddressClassifier(networks, masks, remoteNetworks, remoteMasks);
+    }
+
+    /**
+     * Creates a copy of this classifier with extra remote ranges, which are treated as remote even if they are in a local range.
+     *
+     * @param ranges CIDR ranges such as "192.168.1.10/32". A plain address is treated as a /32.
+     * @throws IllegalArgumentException If a range is malformed.
+     */
+    public AddressClassifier withRemoteRanges(String... ranges) {
+        int[] networks = Arrays.copyOf(remoteNetworks, remoteNetworks.length + ranges.length);
+        int[] masks = Arrays.copyOf(remoteMasks, remoteMasks.length + ranges.length);
+        for (int i = 0; i < ranges.length; i++) {
+            parseRange(ranges[i], networks, masks, remoteNetworks.length + i);
+        }
+        return new AddressClassifier(localNetworks, localMasks, networks, masks);
+    }
+
+    /**
+     * Creates a copy of this classifier that also treats the given addresses as local, such as the addresses of the capture interface.
+     *
+     * @param addresses IPv4 addresses in 32-bit integers, network endian.
+     */
+    public AddressClassifier withLocalAddresses(Collection<Integer> addresses) {
+        int[] networks = Arrays.copyOf(localNetworks, localNetworks.length + addresses.size());
+        int[] masks = Arrays.copyOf(localMasks, localMasks.length + addresses.size());
+        int index = localNetworks.length;
+        for (int address : addresses) {
+            networks[index] = address;
+            masks[index] = -1;
+            ++index;
+        }
+        return new AddressClassifier(networks, masks, remoteNetworks, remoteMasks);
+    }
+
+    /**
+     * Checks if a given IP address represents a remote location.
+     *
+     * @param ip An IPv4 address in a 32-bit integer, network endian.
+     * @return true if the address is remote, false if it is in a local range and not in a remote range.
+     */
+    public boolean isRemote(int ip) {
+        for (int i = 0; i < remoteNetworks.length; i++) {
+            if ((ip & remoteMasks[i]) == remoteNetworks[i]) {
+                return true;
+            }
+        }
+        for (int i = 0; i < localNetworks.length; i++) {
+            if ((ip & localMasks[i]) == localNetworks[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> concat(String[] ranges, String extra) {
+        List<String> list = new ArrayList<>(Arrays.asList(ranges));
+        for (String range : extra.split(",")) {
+            if (!range.trim().isEmpty()) {
+                list.add(range.trim());
+            }
+        }
+        return list;
+    }
+
+    private static void parseRanges(List<String> ranges, int[] networks, int[] masks) {
+        for (int i = 0; i < ranges.size(); i++) {
+            parseRange(ranges.get(i), networks, masks, i);
+        }
+    }
+
+    private static void parseRange(String range, int[] networks, int[] masks, int index) {
+        try {
+            int slash = range.indexOf('/');
+            int prefix = slash < 0 ? 32 : Integer.parseInt(range.substring(slash + 1).trim());
+            if (prefix < 0 || prefix > 32) {
+                throw new IllegalArgumentException("Invalid prefix length in " + range);
+            }
+            int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            masks[index] = mask;
+            networks[index] = IP4Utils.ipToInt((slash < 0 ? range : range.substring(0, slash)).trim()) & mask;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid CIDR range " + range, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("AddressClassifier{local=[");
+        appendRanges(builder, localNetworks, localMasks);
+        builder.append("], remote=[");
+        appendRanges(builder, remoteNetworks, remoteMasks);
+        return builder.append("]}").toString();
+    }
+
+    private static void appendRanges(StringBuilder builder, int[] networks, int[] masks) {
+        for (int i = 0; i < networks.length; i++) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(IP4Utils.intToIp(networks[i])).append('/').append(Integer.bitCount(masks[i]));
+        }
+    }
+}
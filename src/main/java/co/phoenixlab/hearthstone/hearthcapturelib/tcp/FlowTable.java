@@ -0,0 +1,327 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing table of flow states keyed by remote address and port, packed into a long with {@link #key(int, int)}.
+ * <p>
+ * Lookups don't allocate. Entries that haven't been seen for longer than the time to live are evicted, and once the table is at capacity
+ * a clock hand picks an entry to make room for new ones, so the table stays bounded even when connections die without a FIN. The hand
+ * approximates least recently seen: entries seen again since they were added, or since the hand last passed them, get a second chance,
+ * so flows that are only seen once, such as a scan, make room first. Each insert into a full table only moves the hand as far as the
+ * next entry to evict, rather than scanning the whole table.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Vincent Zhang
+ */
+public class FlowTable {
+
+    /**
+     * State of flows that are not in the table.
+     */
+    public static final int UNKNOWN = 0;
+    /**
+     * State of flows that are known not to be Hearthstone games.
+     */
+    public static final int BLACKLISTED = 1;
+    /**
+     * State of flows that carry a game being captured.
+     */
+    public static final int ACTIVE = 2;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final int mask;
+    private final long[] keys;
+    private final long[] lastSeen;
+    /**
+     * Flow state per slot, where UNKNOWN marks an empty slot.
+     */
+    private final byte[] states;
+    /**
+     * Whether each slot's entry has been seen since it was added or the clock hand last passed it.
+     */
+    private final boolean[] referenced;
+    private int hand;
+    private int size;
+    private long lastSweep;
+    private long expiredEvictions;
+    private long capacityEvictions;
+
+    /**
+     * Creates a flow table.
+     *
+     * @param capacity  The maximum number of flows held at once.
+     * @param ttlMillis How long a flow is kept after it was last seen, in milliseconds.
+     */
+    public FlowTable(int capacity, long ttlMillis) {
+        if (capacity < 1 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^29");
+        }
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL must be positive");
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        //  Keep the load factor at or below 0.5 so probe sequences stay short
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mask = slots - 1;
+        keys = new long[slots];
+        lastSeen = new long[slots];
+        states = new byte[slots];
+        referenced = new boolean[slots];
+    }
+
+    /**
+     * Packs an IPv4 address and port into a flow key.
+     */
+    public static long key(int ip, int port) {
+        return ((ip & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    /**
+     * Looks up the state of a flow, marking it as seen.
+     *
+     * @param key The flow key.
+     * @param now The current time, in milliseconds.
+     * @return The flow's state, or UNKNOWN if the flow isn't in the table or has expired.
+     */
+    public int get(long key, long now) {
+        int slot = find(key);
+        if (slot < 0) {
+            return UNKNOWN;
+        }
+        if (now - lastSeen[slot] > ttlMillis) {
+            removeSlot(slot);
+            ++expiredEvictions;
+            return UNKNOWN;
+        }
+        lastSeen[slot] = Math.max(lastSeen[slot], now);
+        referenced[slot] = true;
+        return states[slot];
+    }
+
+    /**
+     * Sets the state of a flow, marking it as seen.
+     *
+     * @param key   The flow key.
+     * @param state The flow's new state. Setting UNKNOWN removes the flow.
+     * @param now   The current time, in milliseconds.
+     */
+    public void put(long key, int state, long now) {
+        if (state == UNKNOWN) {
+            remove(key);
+            return;
+        }
+        if (state != BLACKLISTED && state != ACTIVE) {
+            throw new IllegalArgumentException("Unknown flow state " + state);
+        }
+        if (now - lastSweep > ttlMillis) {
+            evictExpired(now);
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            if (size == capacity) {
+                evictByClock(now);
+            }
+            slot = (int) mix(key) & mask;
+            while (states[slot] != UNKNOWN) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            referenced[slot] = false;
+            ++size;
+        } else {
+            referenced[slot] = true;
+        }
+        states[slot] = (byte) state;
+        lastSeen[slot] = now;
+    }
+
+    /**
+     * Removes a flow.
+     *
+     * @return true if the flow was in the table.
+     */
+    public boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Removes every flow that hasn't been seen within the time to live.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    public void evictExpired(long now) {
+        lastSweep = now;
+        int slot = 0;
+        while (slot < states.length) {
+            if (states[slot] != UNKNOWN && now - lastSeen[slot] > ttlMillis) {
+                //  Removal can shift a later entry into this slot, so look at it again
+                removeSlot(slot);
+                ++expiredEvictions;
+            } else {
+                ++slot;
+            }
+        }
+    }
+
+    /**
+     * Removes every flow.
+     */
+    public void clear() {
+        Arrays.fill(states, (byte) UNKNOWN);
+        size = 0;
+    }
+
+    private int find(long key) {
+        int slot = (int) mix(key) & mask;
+        while (states[slot] != UNKNOWN) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot, shifting back later entries of the probe sequence so lookups never need tombstones.
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (states[next] != UNKNOWN) {
+            int home = (int) mix(keys[next]) & mask;
+            //  Move the entry into the hole unless its home slot lies cyclically between the hole and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                lastSeen[hole] = lastSeen[next];
+                states[hole] = states[next];
+                referenced[hole] = referenced[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        states[hole] = UNKNOWN;
+        --size;
+    }
+
+    /**
+     * Moves the clock hand to the first entry that has expired or hasn't been seen since the hand last passed it, clearing the second
+     * chance of the entries it passes, and removes that entry. The hand goes round at most twice.
+     */
+    private void evictByClock(long now) {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) & mask;
+            if (states[slot] == UNKNOWN) {
+                continue;
+            }
+            if (now - lastSeen[slot] > ttlMillis) {
+                removeSlot(slot);
+                ++expiredEvictions;
+            } else if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            } else {
+                removeSlot(slot);
+                ++capacityEvictions;
+            }
+            //  Removal can shift a later entry into this slot, so the hand looks at it next time
+            hand = slot;
+            return;
+        }
+    }
+
+    /**
+     * Finalizer from MurmurHash3. Spreads keys that differ in only a few bits, such as sequential ports and addresses, over all 64
+     * bits, for anything that hashes flows into slots, shards or fingerprints.
+     */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Gets the number of flows in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the maximum number of flows held at once.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets how long a flow is kept after it was last seen, in milliseconds.
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Gets the fraction of the capacity in use, between 0 and 1.
+     */
+    public double getOccupancy() {
+        return size / (double) capacity;
+    }
+
+    /**
+     * Gets the number of flows removed because they weren't seen within the time to live.
+     */
+    public long getExpiredEvictions() {
+        return expiredEvictions;
+    }
+
+    /**
+     * Gets the number of flows removed early by the clock hand to make room because the table was full.
+     */
+    public long getCapacityEvictions() {
+        return capacityEvictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlowTable{size=%d, capacity=%d, occupancy=%.1f%%, expiredEvictions=%d, capacityEvictions=%d}",
+                size, capacity, getOccupancy() * 100D, expiredEvictions, capacityEvictions);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+/**
+ * Recognizes TCP segments that have already been seen recently, such as the same segment captured on a bridge and on its member
+ * interface, or on a VPN tunnel and the interface carrying it.
+ * <p>
+ * Segments are fingerprinted by connection, sequence number, payload length, TCP checksum and flags, and the fingerprints of recent segments are
+ * kept in a fixed size direct-mapped table along with when they were seen. A segment is a duplicate if the same fingerprint was seen
+ * within the window. Memory use is fixed and checks don't allocate. When two live segments share a slot the older one is forgotten, which
+ * can only let a duplicate through, never drop an original, and a duplicate that gets through looks like an ordinary retransmission to
+ * the reassembler.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Vincent Zhang
+ */
+public class SegmentDeduplicator {
+
+    /**
+     * Default number of fingerprints remembered.
+     */
+    public static final int DEFAULT_SLOTS = 1 << 16;
+    /**
+     * Default time within which a repeated segment counts as a duplicate, in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 1_000L;
+
+    private final long[] fingerprints;
+    private final long[] seenTimes;
+    private final int mask;
+    private final long windowNanos;
+    private long checked;
+    private long duplicates;
+
+    /**
+     * @param slots        The number of fingerprints remembered, rounded up to a power of two.
+     * @param windowMillis How long a segment is remembered, in milliseconds.
+     */
+    public SegmentDeduplicator(int slots, long windowMillis) {
+        if (slots < 1 || slots > 1 << 26) {
+            throw new IllegalArgumentException("Slots must be between 1 and 2^26");
+        }
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        int size = Integer.highestOneBit(slots * 2 - 1);
+        fingerprints = new long[size];
+        seenTimes = new long[size];
+        mask = size - 1;
+        windowNanos = windowMillis * 1_000_000L;
+    }
+
+    /**
+     * Checks whether a segment was already seen within the window, remembering it if it wasn't.
+     *
+     * @param packet The captured segment. Its capture time is used as the current time.
+     * @return true if the segment is a duplicate and should be dropped.
+     */
+    public boolean isDuplicate(TCPPacket packet) {
+        TCPConnectionInfo info = packet.connectionInfo;
+        return isDuplicate(info.sourceIPAddr, info.sourcePort, info.destinationIPAddr, info.destinationPort, packet.seqNumber,
+                packet.payloadLength, packet.checksum, packet.tcpFlags, packet.packetTimeNanos);
+    }
+
+    /**
+     * Checks whether a segment was already seen within the window, remembering it if it wasn't.
+     *
+     * @param timeNanos The segment's capture time, in nanoseconds.
+     * @return true if the segment is a duplicate and should be dropped.
+     */
+    public boolean isDuplicate(int sourceIp, int sourcePort, int destinationIp, int destinationPort, long seqNumber, int payloadLength,
+                               int checksum, int tcpFlags, long timeNanos) {
+        checked++;
+        long fingerprint = fingerprint(sourceIp, sourcePort, destinationIp, destinationPort, seqNumber, payloadLength, checksum, tcpFlags);
+        int slot = (int) (fingerprint >>> 32) & mask;
+        if (fingerprints[slot] == fingerprint && Math.abs(timeNanos - seenTimes[slot]) <= windowNanos) {
+            duplicates++;
+            return true;
+        }
+        fingerprints[slot] = fingerprint;
+        seenTimes[slot] = timeNanos;
+        return false;
+    }
+
+    /**
+     * Mixes the identifying fields of a segment into 64 bits.
+     */
+    static long fingerprint(int sourceIp, int sourcePort, int destinationIp, int destinationPort, long seqNumber, int payloadLength,
+                            int checksum, int tcpFlags) {
+        long h = FlowTable.mix(((sourceIp & 0xFFFFFFFFL) << 32) | (destinationIp & 0xFFFFFFFFL));
+        h = FlowTable.mix(h ^ (((long) sourcePort << 48) | ((long) destinationPort << 32) | (seqNumber & 0xFFFFFFFFL)));
+        h = FlowTable.mix(h ^ (((long) payloadLength << 32) | ((long) checksum << 8) | (tcpFlags & 0xFF)));
+        //  0 marks an empty slot
+        return h == 0L ? 1L : h;
+    }
+
+    /**
+     * Gets the number of segments checked.
+     */
+    public long getChecked() {
+        return checked;
+    }
+
+    /**
+     * Gets the number of segments found to be duplicates.
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentDeduplicator{" +
+                "slots=" + fingerprints.length +
+                ", windowMillis=" + windowNanos / 1_000_000L +
+                ", checked=" + checked +
+                ", duplicates=" + duplicates +
+                '}';
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the out of order segments of one direction of a TCP connection as non-overlapping intervals of the stream, and hands them out
+ * in stream order.
+ * <p>
+ * 32-bit sequence numbers are unwrapped into a 64-bit stream position relative to the next byte to be read, so streams can cross the
+ * sequence number wraparound. When a segment is added, bytes that were already read or are already held are trimmed off: a
+ * retransmission adds nothing, and a segment that partially overlaps held ones only adds the parts that fill gaps. Each addition costs
+ * O(log n) plus the number of held segments it overlaps, and since held intervals never overlap, the segment at the read position is
+ * always complete and ready to read.
+ * <p>
+ * Each held interval keeps a reference to its segment (see {@link TCPPacket#retain()}). Segments handed out by {@link #poll()} and
+ * {@link #dropFirst()} pass that reference on to the caller, who must release it once done with the bytes.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Vincent Zhang
+ */
+public class SegmentStore {
+
+    /**
+     * A run of stream bytes backed by part of a segment's payload.
+     */
+    public static final class Segment {
+
+        /**
+         * The segment holding the bytes.
+         */
+        public final TCPPacket packet;
+        /**
+         * The index of the first byte within the segment's payload.
+         */
+        public final int offset;
+        /**
+         * The number of bytes.
+         */
+        public final int length;
+        /**
+         * The stream position of the first byte.
+         */
+        public final long position;
+
+        Segment(TCPPacket packet, int offset, int length, long position) {
+            this.packet = packet;
+            this.offset = offset;
+            this.length = length;
+            this.position = position;
+        }
+    }
+
+    private static final long SEQ_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Held intervals keyed by stream position.
+     */
+    private final TreeMap<Long, Segment> segments;
+    /**
+     * Stream position of the next byte to read, or -1 before the first segment.
+     */
+    private long nextPosition;
+    private long startPosition;
+    private long heldBytes;
+    private long bytesTrimmed;
+
+    public SegmentStore() {
+        segments = new TreeMap<>();
+        nextPosition = -1L;
+    }
+
+    /**
+     * Starts the stream at a sequence number, if it hasn't started yet.
+     */
+    public void start(long seqNumber) {
+        if (nextPosition < 0L) {
+            nextPosition = seqNumber & SEQ_MASK;
+            startPosition = nextPosition;
+        }
+    }
+
+    /**
+     * Gets whether or not the stream has started.
+     */
+    public boolean isStarted() {
+        return nextPosition >= 0L;
+    }
+
+    /**
+     * Converts a 32-bit sequence number to a stream position, taking the position nearest to the next byte to read.
+     */
+    public long position(long seqNumber) {
+        return nextPosition + (int) (seqNumber - (nextPosition & SEQ_MASK));
+    }
+
+    /**
+     * Holds whatever part of a segment hasn't already been read or held. The stream starts at the first segment added.
+     *
+     * @return The number of bytes held from the segment, which is 0 for a retransmission.
+     */
+    public int add(TCPPacket packet) {
+        int length = packet.payloadLength;
+        if (length == 0) {
+            return 0;
+        }
+        start(packet.seqNumber);
+        long start = position(packet.seqNumber);
+        long end = start + length;
+        long from = Math.max(start, nextPosition);
+        //  An interval starting before this one can only overlap its start
+        Map.Entry<Long, Segment> before = segments.floorEntry(from);
+        if (before != null) {
+            from = Math.max(from, before.getKey() + before.getValue().length);
+        }
+        int added = 0;
+        while (from < end) {
+            Map.Entry<Long, Segment> next = segments.ceilingEntry(from);
+            long to = next == null ? end : Math.min(end, next.getKey());
+            if (to > from) {
+                segments.put(from, new Segment(packet.retain(), (int) (from - start), (int) (to - from), from));
+                added += (int) (to - from);
+            }
+            if (next == null || next.getKey() >= end) {
+                break;
+            }
+            from = next.getKey() + next.getValue().length;
+        }
+        heldBytes += added;
+        bytesTrimmed += length - added;
+        return added;
+    }
+
+    /**
+     * Takes the held segment at the read position, moving the read position past it. The caller must release the segment's packet once
+     * done with it.
+     *
+     * @return The segment, or null if the next bytes haven't arrived.
+     */
+    public Segment poll() {
+        Map.Entry<Long, Segment> first;
+        while ((first = segments.firstEntry()) != null && first.getKey() <= nextPosition) {
+            segments.pollFirstEntry();
+            Segment segment = first.getValue();
+            heldBytes -= segment.length;
+            int skip = (int) (nextPosition - segment.position);
+            if (skip >= segment.length) {
+                //  Already read past by an in order segment that wasn't held
+                bytesTrimmed += segment.length;
+                segment.packet.release();
+                continue;
+            }
+            if (skip > 0) {
+                bytesTrimmed += skip;
+                segment = new Segment(segment.packet, segment.offset + skip, segment.length - skip, nextPosition);
+            }
+            nextPosition += segment.length;
+            return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the read position past bytes that were read without being held, such as an in order segment handed on straight away.
+     * Held bytes that this passes over are trimmed off by the next {@link #poll()}.
+     */
+    public void advance(long length) {
+        nextPosition += length;
+    }
+
+    /**
+     * Gives up on the bytes between the read position and the first held segment.
+     *
+     * @return The number of bytes skipped, or 0 if nothing is held.
+     */
+    public long skipHole() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        if (first == null) {
+            return 0L;
+        }
+        long lost = Math.max(0L, first.getKey() - nextPosition);
+        nextPosition += lost;
+        return lost;
+    }
+
+    /**
+     * Removes the held segment that is earliest in the stream, without moving the read position. The caller must release the segment's
+     * packet.
+     *
+     * @return The segment, or null if nothing is held.
+     */
+    public Segment dropFirst() {
+        Map.Entry<Long, Segment> first = segments.pollFirstEntry();
+        if (first == null) {
+            return null;
+        }
+        heldBytes -= first.getValue().length;
+        return first.getValue();
+    }
+
+    /**
+     * Gets the held segment that is earliest in the stream without removing it, or null if nothing is held.
+     */
+    public Segment peekFirst() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    /**
+     * Drops every held segment.
+     */
+    public void clear() {
+        for (Segment segment : segments.values()) {
+            segment.packet.release();
+        }
+        segments.clear();
+        heldBytes = 0L;
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Gets the stream position of the next byte to read, or -1 before the first segment.
+     */
+    public long getNextPosition() {
+        return nextPosition;
+    }
+
+    /**
+     * Gets the number of stream bytes read so far, including skipped ones.
+     */
+    public long getBytesRead() {
+        return nextPosition < 0L ? 0L : nextPosition - startPosition;
+    }
+
+    /**
+     * Gets the number of held intervals.
+     */
+    public int getHeldSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the number of bytes held.
+     */
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * Gets the number of retransmitted or overlapping bytes trimmed off added segments.
+     */
+    public long getBytesTrimmed() {
+        return bytesTrimmed;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link TCPStreamAssembler} reads when the stream skips over bytes that were never captured. The bytes read before it are
+ * followed directly by the bytes read after it, so whatever was being read across the gap is incomplete.
+ *
+ * @author Vincent Zhang
+ */
+public class StreamGapException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+
+    public StreamGapException(long length) {
+        super("Lost " + length + " bytes of the stream");
+        this.length = length;
+    }
+
+    /**
+     * Gets the number of bytes lost.
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -26,10 +26,6 @@ package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
 
 import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
 
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
 /**
  * Contains information about a TCP connection, namely the TCPAddressPortPairs of both the source and destinations.
  */
@@ -51,13 +47,43 @@ public class TCPConnectionInfo {
      * The port that this packet is being sent to.
      */
     public final int destinationPort;
+    //  Classified once per connection rather than on every query
+    private final boolean sourceRemote;
+    private final boolean destinationRemote;
 
     public TCPConnectionInfo(int sourceIPAddr, int sourcePort, int destinationIPAddr, int destinationPort) {
+        this(sourceIPAddr, sourcePort, destinationIPAddr, destinationPort, AddressClassifier.getDefault());
+    }
+
+    /**
+     * Creates connection info, using the given classifier to decide which ends are remote.
+     */
+    public TCPConnectionInfo(int sourceIPAddr, int sourcePort, int destinationIPAddr, int destinationPort, AddressClassifier classifier) {
+        this(sourceIPAddr, sourcePort, destinationIPAddr, destinationPort, classifier.isRemote(sourceIPAddr), classifier.isRemote(destinationIPAddr));
+    }
+
+    private TCPConnectionInfo(int sourceIPAddr, int sourcePort, int destinationIPAddr, int destinationPort, boolean sourceRemote, boolean destinationRemote) {
         this.sourceIPAddr = sourceIPAddr;
         this.sourcePort = sourcePort;
         this.destinationIPAddr = destinationIPAddr;
         this.destinationPort = destinationPort;
+        this.sourceRemote = sourceRemote;
+        this.destinationRemote = destinationRemote;
+    }
 
+    /**
+     * Gets the connection info for packets travelling in the opposite direction.
+     */
+    public TCPConnectionInfo reverse() {
+        return new TCPConnectionInfo(destinationIPAddr, destinationPort, sourceIPAddr, sourcePort, destinationRemote, sourceRemote);
+    }
+
+    /**
+     * Checks whether or not this connection is the same as another connection but in the opposite direction.
+     */
+    public boolean isReverseOf(TCPConnectionInfo other) {
+        return sourceIPAddr == other.destinationIPAddr && sourcePort == other.destinationPort &&
+                destinationIPAddr == other.sourceIPAddr && destinationPort == other.sourcePort;
     }
 
     /**
@@ -73,33 +99,42 @@ public class TCPConnectionInfo {
         }
     }
 
+    /**
+     * Get the {@link FlowTable} key of the remote end of the connection, or the key of NO_REMOTE_ADDRESS if there is no remote end.
+     * Unlike {@link #getRemoteAddress()}, this doesn't allocate.
+     */
+    public long getRemoteAddressKey() {
+        if (isSourceRemote()) {
+            return FlowTable.key(sourceIPAddr, sourcePort);
+        } else if (isDestinationRemote()) {
+            return FlowTable.key(destinationIPAddr, destinationPort);
+        } else {
+            return FlowTable.key(0, 0);
+        }
+    }
+
     /**
      * Returns whether or not the source is the remote address.
      */
     public boolean isSourceRemote() {
-        return isRemote(sourceIPAddr);
+        return sourceRemote;
     }
 
     /**
      * Returns whether or not the destination is the remote address.
      */
     public boolean isDestinationRemote() {
-        return isRemote(destinationIPAddr);
+        return destinationRemote;
     }
 
     /**
-     * Checks if a given IP address represents a remote location.
+     * Checks if a given IP address represents a remote location, according to the default {@link AddressClassifier}.
      *
      * @param ip An IPv4 address in a 32-bit integer, network endian.
      * @return true if the address is remote, false if it is a local, loopback, or site local address.
      */
     public static boolean isRemote(int ip) {
-        try {
-            InetAddress dstAddr = Inet4Address.getByAddress(IP4Utils.ipToByteArray(ip));
-            return !(dstAddr.isSiteLocalAddress() || dstAddr.isAnyLocalAddress() || dstAddr.isLoopbackAddress());
-        } catch (UnknownHostException e) {
-            throw new RuntimeException("ipToByteArray returned an invalid array!");
-        }
+        return AddressClassifier.getDefault().isRemote(ip);
     }
 
     @Override
@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+
+import java.util.Arrays;
+
+/**
+ * A reusable IPv4/TCP header parser that reads addresses, ports, sequence numbers and flags straight from the captured bytes at fixed
+ * offsets.
+ * <p>
+ * Parsing does not allocate, and the payload is described as an offset and length within the parsed bytes, so callers can look at
+ * a segment and throw it away without creating any objects. A TCPPacket is only created once the caller decides to keep the segment.
+ *
+ * @author Vincent Zhang
+ */
+public class TCPHeaderParser {
+
+    private static final int IP_PROTOCOL_TCP = 6;
+    private static final int IP4_MIN_HEADER_LENGTH = 20;
+    private static final int TCP_MIN_HEADER_LENGTH = 20;
+
+    private int sourceIp;
+    private int destinationIp;
+    private int sourcePort;
+    private int destinationPort;
+    private long seqNumber;
+    private long ackNumber;
+    private int tcpFlags;
+    private int checksum;
+    private int payloadOffset;
+    private int payloadLength;
+    /**
+     * Connection info of the last packet created, reused while consecutive packets belong to the same connection.
+     */
+    private TCPConnectionInfo lastConnectionInfo;
+    private AddressClassifier classifier = AddressClassifier.getDefault();
+
+    /**
+     * Parses the IPv4 and TCP headers of a datagram.
+     *
+     * @param data          The buffer containing the datagram.
+     * @param offset        The offset of the IPv4 header within data.
+     * @param headerBytes   The number of bytes available in data from offset onwards. The IPv4 and TCP headers must fit in these.
+     * @param capturedBytes The number of bytes of the datagram that were captured, which may be more than headerBytes if only the start of
+     *                      the frame was copied into data.
+     * @return true if the datagram is an unfragmented IPv4 TCP segment, false otherwise.
+     */
+    public boolean parse(byte[] data, int offset, int headerBytes, int capturedBytes) {
+        if (headerBytes < IP4_MIN_HEADER_LENGTH || (data[offset] & 0xF0) != 0x40 || Byte.toUnsignedInt(data[offset + 9]) != IP_PROTOCOL_TCP) {
+            return false;
+        }
+        //  Non-first fragments have no TCP header, and we don't reassemble fragments
+        if ((getUShort(data, offset + 6) & 0x3FFF) != 0) {
+            return false;
+        }
+        int ipHeaderLength = (data[offset] & 0x0F) * 4;
+        if (ipHeaderLength < IP4_MIN_HEADER_LENGTH || ipHeaderLength + TCP_MIN_HEADER_LENGTH > headerBytes) {
+            return false;
+        }
+        int tcpOffset = offset + ipHeaderLength;
+        int tcpHeaderLength = ((data[tcpOffset + 12] & 0xF0) >> 4) * 4;
+        if (tcpHeaderLength < TCP_MIN_HEADER_LENGTH || ipHeaderLength + tcpHeaderLength > headerBytes) {
+            return false;
+        }
+        //  Segmentation offload can leave the total length as 0 in locally captured packets, and frames can carry link layer padding
+        int totalLength = getUShort(data, offset + 2);
+        int end = totalLength == 0 ? capturedBytes : Math.min(totalLength, capturedBytes);
+        sourceIp = getInt(data, offset + 12);
+        destinationIp = getInt(data, offset + 16);
+        sourcePort = getUShort(data, tcpOffset);
+        destinationPort = getUShort(data, tcpOffset + 2);
+        seqNumber = getInt(data, tcpOffset + 4) & 0xFFFFFFFFL;
+        ackNumber = getInt(data, tcpOffset + 8) & 0xFFFFFFFFL;
+        tcpFlags = Byte.toUnsignedInt(data[tcpOffset + 13]);
+        checksum = getUShort(data, tcpOffset + 16);
+        payloadOffset = tcpOffset + tcpHeaderLength;
+        payloadLength = Math.max(0, offset + end - payloadOffset);
+        return true;
+    }
+
+    /**
+     * Checks whether or not either end of the parsed segment is the given address and port.
+     */
+    public boolean hasEndpoint(int ip, int port) {
+        return (sourceIp == ip && sourcePort == port) || (destinationIp == ip && destinationPort == port);
+    }
+
+    /**
+     * Creates a TCPPacket for the parsed segment around a buffer that already holds its payload.
+     *
+     * @param data            The buffer holding the payload. The packet keeps a reference to it, so it must not be reused.
+     * @param offset          The offset of the payload within data.
+     * @param packetTimeNanos The time at which the segment was captured, in nanoseconds since the epoch.
+     */
+    public TCPPacket toPacket(byte[] data, int offset, long packetTimeNanos) {
+        return new TCPPacket(packetTimeNanos, connectionInfo(), seqNumber, ackNumber, tcpFlags, checksum, data, offset, payloadLength);
+    }
+
+    /**
+     * Creates a TCPPacket for the parsed segment around a pooled buffer that already holds its payload.
+     *
+     * @param buffer          The buffer holding the payload. The packet takes over the caller's reference to it.
+     * @param offset          The offset of the payload within the buffer.
+     * @param packetTimeNanos The time at which the segment was captured, in nanoseconds since the epoch.
+     */
+    public TCPPacket toPacket(BufferPool.Buffer buffer, int offset, long packetTimeNanos) {
+        return new TCPPacket(packetTimeNanos, connectionInfo(), seqNumber, ackNumber, tcpFlags, checksum, buffer, offset, payloadLength);
+    }
+
+    /**
+     * Creates a TCPPacket for the parsed segment, copying its payload out of the buffer that was parsed so that the buffer can be reused.
+     *
+     * @param parsed          The buffer that was passed to {@link #parse(byte[], int, int, int)}.
+     * @param packetTimeNanos The time at which the segment was captured, in nanoseconds since the epoch.
+     */
+    public TCPPacket copyPacket(byte[] parsed, long packetTimeNanos) {
+        byte[] payload = payloadLength == 0 ? TCPPacket.NO_PAYLOAD : Arrays.copyOfRange(parsed, payloadOffset, payloadOffset + payloadLength);
+        return toPacket(payload, 0, packetTimeNanos);
+    }
+
+    private TCPConnectionInfo connectionInfo() {
+        TCPConnectionInfo info = lastConnectionInfo;
+        if (info == null || info.sourceIPAddr != sourceIp || info.sourcePort != sourcePort ||
+                info.destinationIPAddr != destinationIp || info.destinationPort != destinationPort) {
+            info = new TCPConnectionInfo(sourceIp, sourcePort, destinationIp, destinationPort, classifier);
+            lastConnectionInfo = info;
+        }
+        return info;
+    }
+
+    /**
+     * Sets the classifier used to decide which end of each connection is remote.
+     */
+    public void setClassifier(AddressClassifier classifier) {
+        this.classifier = classifier;
+        lastConnectionInfo = null;
+    }
+
+    public int getSourceIp() {
+        return sourceIp;
+    }
+
+    public int getDestinationIp() {
+        return destinationIp;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public long getSeqNumber() {
+        return seqNumber;
+    }
+
+    public long getAckNumber() {
+        return ackNumber;
+    }
+
+    public int getTcpFlags() {
+        return tcpFlags;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * The offset of the TCP payload within the parsed buffer.
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * The length of the captured TCP payload.
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    private static int getUShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -24,21 +24,34 @@
 
 package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
 
-import org.jnetpcap.nio.JBuffer;
-import org.jnetpcap.nio.JMemory;
-import org.jnetpcap.packet.PcapPacket;
-import org.jnetpcap.protocol.network.Ip4;
-import org.jnetpcap.protocol.tcpip.Tcp;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.Arrays;
 
+/**
+ * A captured TCP segment. The payload is a view of an offset and length within a byte array, which may be larger than the payload.
+ * <p>
+ * The array may be a pooled {@link BufferPool.Buffer}. The capture thread holds one reference while handing the packet on, and
+ * releases it once the call returns, so anything that keeps the packet longer must {@link #retain()} it and {@link #release()} it once
+ * done with the payload. Both do nothing for packets whose array isn't pooled.
+ */
 public class TCPPacket implements Comparable<TCPPacket> {
 
-    public final Instant packetTime;
+    /**
+     * Shared payload for segments that carry no data.
+     */
+    public static final byte[] NO_PAYLOAD = new byte[0];
+
+    /**
+     * The time at which this packet was captured, in nanoseconds since the epoch.
+     */
+    public final long packetTimeNanos;
 
     public final TCPConnectionInfo connectionInfo;
     /**
-     * @see org.jnetpcap.protocol.tcpip.Tcp#flags()
+     * The TCP flags byte (FIN = 0x01, SYN = 0x02, RST = 0x04, PSH = 0x08, ACK = 0x10).
      */
     public final int tcpFlags;
     /**
@@ -46,25 +59,151 @@ public class TCPPacket implements Comparable<TCPPacket> {
      */
     public final long seqNumber;
     public final long ackNumber;
-    public final byte[] payload;
-
-    public TCPPacket(PcapPacket packet) {
-        packetTime = Instant.now();
-        Ip4 ip4 = packet.getHeader(new Ip4());
-        Tcp tcp = packet.getHeader(new Tcp());
-        connectionInfo = new TCPConnectionInfo(ip4.sourceToInt(), tcp.source(), ip4.destinationToInt(), tcp.destination());
-        seqNumber = tcp.seq();
-        ackNumber = tcp.ack();
-        tcpFlags = tcp.flags();
-        JBuffer storage = new JBuffer(JMemory.Type.POINTER);
-        JBuffer packetPayload = tcp.peerPayloadTo(storage);
-        payload = new byte[packetPayload.size()];
-        packetPayload.getByteArray(0, payload);
+    /**
+     * The offset of the payload within the data array.
+     */
+    public final int payloadOffset;
+    /**
+     * The length of the payload in bytes.
+     */
+    public final int payloadLength;
+    /**
+     * The TCP checksum as captured, or 0 if unknown. Outgoing packets captured on the sending host may carry a checksum that the network
+     * card hasn't filled in yet.
+     */
+    public final int checksum;
+    private final byte[] data;
+    /**
+     * The pooled buffer holding the data array, or null if it isn't pooled.
+     */
+    private final BufferPool.Buffer buffer;
+
+    public TCPPacket(long packetTimeNanos, TCPConnectionInfo connectionInfo, long seqNumber, long ackNumber, int tcpFlags,
+                     byte[] data, int payloadOffset, int payloadLength) {
+        this(packetTimeNanos, connectionInfo, seqNumber, ackNumber, tcpFlags, 0, data, payloadOffset, payloadLength);
+    }
+
+    public TCPPacket(long packetTimeNanos, TCPConnectionInfo connectionInfo, long seqNumber, long ackNumber, int tcpFlags, int checksum,
+                     byte[] data, int payloadOffset, int payloadLength) {
+        this(packetTimeNanos, connectionInfo, seqNumber, ackNumber, tcpFlags, checksum, data, null, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Creates a packet whose payload is held in a pooled buffer. The packet takes over the caller's reference to the buffer.
+     */
+    public TCPPacket(long packetTimeNanos, TCPConnectionInfo connectionInfo, long seqNumber, long ackNumber, int tcpFlags, int checksum,
+                     BufferPool.Buffer buffer, int payloadOffset, int payloadLength) {
+        this(packetTimeNanos, connectionInfo, seqNumber, ackNumber, tcpFlags, checksum, buffer.array(), buffer, payloadOffset, payloadLength);
+    }
+
+    private TCPPacket(long packetTimeNanos, TCPConnectionInfo connectionInfo, long seqNumber, long ackNumber, int tcpFlags, int checksum,
+                      byte[] data, BufferPool.Buffer buffer, int payloadOffset, int payloadLength) {
+        if (payloadOffset < 0 || payloadLength < 0 || payloadOffset + payloadLength > data.length) {
+            throw new IndexOutOfBoundsException("Payload " + payloadOffset + "+" + payloadLength + " outside of " + data.length + " byte array");
+        }
+        this.packetTimeNanos = packetTimeNanos;
+        this.connectionInfo = connectionInfo;
+        this.seqNumber = seqNumber;
+        this.ackNumber = ackNumber;
+        this.tcpFlags = tcpFlags;
+        this.checksum = checksum;
+        this.data = data;
+        this.buffer = buffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    public TCPPacket(long packetTimeNanos, TCPConnectionInfo connectionInfo, long seqNumber, long ackNumber, int tcpFlags, byte[] payload) {
+        this(packetTimeNanos, connectionInfo, seqNumber, ackNumber, tcpFlags, payload, 0, payload.length);
+    }
+
+    /**
+     * Gets the time at which this packet was captured.
+     */
+    public Instant getPacketTime() {
+        return Instant.ofEpochSecond(packetTimeNanos / 1_000_000_000L, packetTimeNanos % 1_000_000_000L);
+    }
+
+    /**
+     * Gets a byte of the payload.
+     *
+     * @param index The index of the byte within the payload.
+     * @return The unsigned value of the byte.
+     */
+    public int getPayloadByte(int index) {
+        if (index < 0 || index >= payloadLength) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside of payload length " + payloadLength);
+        }
+        return Byte.toUnsignedInt(data[payloadOffset + index]);
+    }
+
+    /**
+     * Gets a copy of the payload.
+     */
+    public byte[] getPayload() {
+        return Arrays.copyOfRange(data, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    /**
+     * Copies part of the payload into an array.
+     *
+     * @param index     The index of the first byte to copy within the payload.
+     * @param dest      The array to copy into.
+     * @param destIndex The index within dest to copy the first byte to.
+     * @param length    The number of bytes to copy.
+     */
+    public void copyPayload(int index, byte[] dest, int destIndex, int length) {
+        if (index < 0 || length < 0 || index + length > payloadLength) {
+            throw new IndexOutOfBoundsException("Range " + index + "+" + length + " outside of payload length " + payloadLength);
+        }
+        System.arraycopy(data, payloadOffset + index, dest, destIndex, length);
+    }
+
+    /**
+     * Copies part of the payload into a buffer, advancing its position.
+     *
+     * @param index  The index of the first byte to copy within the payload.
+     * @param dest   The buffer to copy into.
+     * @param length The number of bytes to copy.
+     */
+    public void copyPayload(int index, ByteBuffer dest, int length) {
+        if (index < 0 || length < 0 || index + length > payloadLength) {
+            throw new IndexOutOfBoundsException("Range " + index + "+" + length + " outside of payload length " + payloadLength);
+        }
+        dest.put(data, payloadOffset + index, length);
+    }
+
+    /**
+     * Takes another reference to the pooled buffer holding the payload, for keeping this packet past the call it was handed over in.
+     *
+     * @return This packet.
+     */
+    public TCPPacket retain() {
+        if (buffer != null) {
+            buffer.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Gives back a reference to the pooled buffer holding the payload. The payload must not be read once the last reference is gone.
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Gets whether or not the payload is held in a pooled buffer.
+     */
+    public boolean isPooled() {
+        return buffer != null;
     }
 
     public long nextExpectedSeqNumber() {
         //  If the ACK flag is set then SEQ must advance by at least one, otherwise SEQ is not incremented.
-        return seqNumber + ((tcpFlags & 0x10) != 0 ? Math.max(1, payload.length) : 0);
+        return seqNumber + ((tcpFlags & 0x10) != 0 ? Math.max(1, payloadLength) : 0);
     }
 
     @Override
@@ -75,9 +214,9 @@ public class TCPPacket implements Comparable<TCPPacket> {
     public int getByte(long byteNum) {
         long internByte = byteNum - seqNumber;
         boolean greater = internByte >= 0;
-        boolean less = internByte < payload.length;
+        boolean less = internByte < payloadLength;
         if (greater && less) {
-            return Byte.toUnsignedInt(payload[(int) internByte]);
+            return Byte.toUnsignedInt(data[payloadOffset + (int) internByte]);
         }
         if (!greater) {
             return -1;
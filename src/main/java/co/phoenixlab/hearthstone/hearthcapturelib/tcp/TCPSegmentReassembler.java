@@ -0,0 +1,301 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+
+/**
+ * Reorders the segments of one direction of a TCP connection and pushes their bytes to a sink in stream order, on the thread that accepts
+ * the segments, as soon as they are contiguous.
+ * <p>
+ * Unlike {@link TCPStreamAssembler} nothing blocks: segments that arrive early are held in a {@link SegmentStore} until the gap before
+ * them fills, retransmitted bytes are dropped and partial overlaps are trimmed so every byte reaches the sink exactly once. Sequence
+ * numbers are unwrapped into a 64-bit stream position, so streams can cross the 32-bit sequence number wraparound.
+ * <p>
+ * With a timer, a gap that hasn't filled by the hole deadline is given up on: the sink is told how many bytes were lost and delivery
+ * carries on from the next held segment, so a segment that is never retransmitted doesn't stall the stream for good.
+ * <p>
+ * This class is not thread safe. It is meant to be owned by a single capture or worker thread.
+ *
+ * @author Vincent Zhang
+ */
+public class TCPSegmentReassembler {
+
+    /**
+     * Receives stream bytes in order.
+     */
+    public interface Sink {
+
+        /**
+         * Receives the next bytes of the stream.
+         *
+         * @param packet The segment holding the bytes. The sink must copy out anything it wants to keep.
+         * @param offset The index of the first byte within the segment's payload.
+         * @param length The number of bytes.
+         */
+        void accept(TCPPacket packet, int offset, int length);
+
+        /**
+         * Called when bytes are skipped because their segments never arrived. The next bytes accepted follow the gap.
+         *
+         * @param length The number of bytes lost.
+         */
+        default void gap(long length) {
+        }
+    }
+
+    /**
+     * Default time to wait for a missing segment before skipping it, in milliseconds.
+     */
+    public static final long DEFAULT_HOLE_TIMEOUT = 30_000L;
+
+    private final Sink sink;
+    private final HashedWheelTimer timer;
+    private final long holeTimeout;
+    private final MemoryBudget.Account account;
+    private HashedWheelTimer.Timeout holeDeadline;
+    /**
+     * Segments waiting for a gap before them to fill.
+     */
+    private final SegmentStore pending;
+    private long holesSkipped;
+    private long bytesSkipped;
+
+    /**
+     * Creates a reassembler that waits for missing segments forever.
+     */
+    public TCPSegmentReassembler(Sink sink) {
+        this(sink, null, 0L);
+    }
+
+    /**
+     * @param sink        Receives the stream bytes.
+     * @param timer       The timer for hole deadlines, owned by the same thread as this reassembler, or null to wait forever.
+     * @param holeTimeout How long to wait for a missing segment before skipping it, in milliseconds.
+     */
+    public TCPSegmentReassembler(Sink sink, HashedWheelTimer timer, long holeTimeout) {
+        this(sink, timer, holeTimeout, null);
+    }
+
+    /**
+     * @param sink        Receives the stream bytes.
+     * @param timer       The timer for hole deadlines, owned by the same thread as this reassembler, or null to wait forever.
+     * @param holeTimeout How long to wait for a missing segment before skipping it, in milliseconds.
+     * @param account     The account to charge held segments to, or null to hold any amount. When the budget runs out under the
+     *                    DROP_OLDEST policy the current hole is given up on early.
+     */
+    public TCPSegmentReassembler(Sink sink, HashedWheelTimer timer, long holeTimeout, MemoryBudget.Account account) {
+        this.sink = sink;
+        this.timer = timer;
+        this.holeTimeout = holeTimeout;
+        this.account = account;
+        pending = new SegmentStore();
+    }
+
+    /**
+     * Accepts a segment, delivering its bytes and any held segments it makes contiguous.
+     */
+    @MThread("listener")
+    public void accept(TCPPacket packet) {
+        int length = packet.payloadLength;
+        if (length == 0) {
+            return;
+        }
+        pending.start(packet.seqNumber);
+        long nextPosition = pending.getNextPosition();
+        long start = pending.position(packet.seqNumber);
+        if (start + length <= nextPosition) {
+            //  Retransmission of bytes we already have
+            return;
+        }
+        if (start > nextPosition) {
+            if (account != null && !account.reserve(length, this::reclaim)) {
+                return;
+            }
+            //  The hole may have been given up on to make room
+            if (start <= pending.getNextPosition()) {
+                release(length);
+                accept(packet);
+                return;
+            }
+            //  Only the bytes not already held are kept
+            release(length - pending.add(packet));
+            if (timer != null && holeDeadline == null) {
+                holeDeadline = timer.schedule(this::skipHole, packet.packetTimeNanos / 1_000_000L + holeTimeout);
+            }
+            return;
+        }
+        //  In order, so hand it on without holding it
+        SegmentStore.Segment waiting = pending.peekFirst();
+        int skip = (int) (nextPosition - start);
+        pending.advance(length - skip);
+        deliver(packet, skip, length - skip);
+        drain();
+        if (holeDeadline != null) {
+            if (pending.isEmpty()) {
+                holeDeadline.cancel();
+                holeDeadline = null;
+            } else if (pending.peekFirst().position != waiting.position) {
+                //  The hole filled and delivery stopped at a later one, which gets its own full deadline as in skipHole
+                holeDeadline.cancel();
+                scheduleHole();
+            }
+        }
+    }
+
+    private void release(long bytes) {
+        if (account != null) {
+            account.release(bytes);
+        }
+    }
+
+    /**
+     * Gives up on the current hole early because the memory budget ran out.
+     */
+    private long reclaim() {
+        long before = pending.getHeldBytes();
+        if (holeDeadline != null) {
+            holeDeadline.cancel();
+        }
+        skipHole();
+        return before - pending.getHeldBytes();
+    }
+
+    /**
+     * Gives up on the bytes before the first held segment.
+     */
+    private void skipHole() {
+        holeDeadline = null;
+        if (pending.isEmpty()) {
+            return;
+        }
+        long lost = pending.skipHole();
+        holesSkipped++;
+        bytesSkipped += lost;
+        sink.gap(lost);
+        drain();
+        if (timer != null && !pending.isEmpty()) {
+            scheduleHole();
+        }
+    }
+
+    /**
+     * Gives the hole before the first held segment its own full deadline, measured from the segment that's waiting on it.
+     */
+    private void scheduleHole() {
+        TCPPacket waiting = pending.peekFirst().packet;
+        holeDeadline = timer.schedule(this::skipHole, waiting.packetTimeNanos / 1_000_000L + holeTimeout);
+    }
+
+    /**
+     * Drops every held segment and cancels the pending hole deadline, releasing the held bytes.
+     */
+    public void clear() {
+        release(pending.getHeldBytes());
+        pending.clear();
+        cancelTimeouts();
+    }
+
+    /**
+     * Cancels the pending hole deadline, if any.
+     */
+    public void cancelTimeouts() {
+        if (holeDeadline != null) {
+            holeDeadline.cancel();
+            holeDeadline = null;
+        }
+    }
+
+    private void drain() {
+        long held = pending.getHeldBytes();
+        while (true) {
+            SegmentStore.Segment segment = pending.poll();
+            //  Held bytes that an in order segment already delivered are trimmed off or discarded by poll, so release everything it
+            //  took rather than only what it returned
+            long nowHeld = pending.getHeldBytes();
+            release(held - nowHeld);
+            held = nowHeld;
+            if (segment == null) {
+                return;
+            }
+            try {
+                deliver(segment.packet, segment.offset, segment.length);
+            } finally {
+                segment.packet.release();
+            }
+        }
+    }
+
+    private void deliver(TCPPacket packet, int offset, int length) {
+        //  Ignore 6 byte packets - network noise, as TCPStreamAssembler does, but keep the stream position moving past them
+        if (packet.payloadLength != 6) {
+            sink.accept(packet, offset, length);
+        }
+    }
+
+    /**
+     * Gets the number of stream bytes delivered to the sink so far, including bytes skipped over.
+     */
+    public long getBytesDelivered() {
+        return pending.getBytesRead();
+    }
+
+    /**
+     * Gets the number of held intervals waiting for a gap to fill. A segment that partly overlaps held ones is held as more than one.
+     */
+    public int getPendingSegments() {
+        return pending.getHeldSegments();
+    }
+
+    /**
+     * Gets the number of payload bytes held waiting for a gap to fill.
+     */
+    public long getPendingBytes() {
+        return pending.getHeldBytes();
+    }
+
+    /**
+     * Gets the number of retransmitted or overlapping bytes of held segments that were trimmed off instead of held twice.
+     */
+    public long getBytesTrimmed() {
+        return pending.getBytesTrimmed();
+    }
+
+    /**
+     * Gets the number of gaps given up on after the hole deadline.
+     */
+    public long getHolesSkipped() {
+        return holesSkipped;
+    }
+
+    /**
+     * Gets the number of bytes lost in gaps given up on after the hole deadline.
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+}
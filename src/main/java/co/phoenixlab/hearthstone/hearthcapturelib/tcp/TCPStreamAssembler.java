@@ -25,129 +25,290 @@
 package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
 
 import co.phoenixlab.hearthstone.hearthcapturelib.util.MThread;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
 
 /**
  * A TCP/IP packet assembler, readable as an InputStream.
  * <p>
  * This class accepts TCP/IP packets, collects them, and orders them to create a continuous stream of bytes that can be read from as an InputStream.
+ * Packets are held in a {@link SegmentStore}, so retransmitted and overlapping bytes are trimmed off as they arrive, every byte is read
+ * exactly once, and the stream can cross the 32-bit sequence number wraparound.
+ * <p>
+ * Payload bytes waiting to be read are charged to a {@link MemoryBudget} account, if one is given. Packets that the budget refuses are
+ * dropped.
+ * <p>
+ * With a hole timeout, a gap in the stream is given up on once a segment captured that long after the first segment waiting on it
+ * has arrived. Time is measured by capture timestamps, as in {@link TCPSegmentReassembler}. The read that reaches the gap then throws a
+ * {@link StreamGapException} and reading carries on after the gap.
  *
  * @author Vincent Zhang
  */
 public class TCPStreamAssembler
         extends InputStream {
 
-    /*
-    TODO Fix packet ordering corner cases.
-    Packet ordering can be a little bit wonky when we get packets out of order in a certain way that causes the ordering system to dispose of a packet
-    even though it hasn't been read yet, causing the consuming side to wait forever for a packet that has already been skipped.
+    /**
+     * Segments waiting to be read. Guarded by notifyObject.
      */
-
-    private PriorityBlockingQueue<TCPPacket> pendingPackets;
+    private final SegmentStore pendingSegments;
+    private final MemoryBudget.Account account;
+    private final long holeTimeoutNanos;
     private final Object notifyObject;
-    private final AtomicBoolean notifyAck;
-    private long startingSeqNumber;
-    private long currentSeqNumber;
-    private long nextExpectedSeqNumber;
-    private long currentByteIndex;
+    private boolean finished;
+    private volatile boolean closed;
+    /**
+     * Capture time of the latest segment accepted, which the hole deadline is measured against. Guarded by notifyObject.
+     */
+    private long latestTimeNanos;
+    private long holesSkipped;
+    private long bytesSkipped;
     /**
      * Number of bytes read from the stream. Also indicates the index of the next byte to be read.
      */
     private long bytesRead; //  if we've read byte 0, bytesRead = 1, index of the next byte is 1.
-    private TCPPacket workingPacket;
+    /**
+     * The segment being read from, and the index of the next byte within it.
+     */
+    private SegmentStore.Segment workingSegment;
+    private int workingIndex;
+    /**
+     * Capture time of the packet that the last byte read came from.
+     */
+    private long lastByteTimeNanos;
 
     public TCPStreamAssembler() {
-        pendingPackets = new PriorityBlockingQueue<>();
-        currentSeqNumber = -1L;
-        startingSeqNumber = -1L;
+        this(null);
+    }
+
+    /**
+     * Creates an assembler that waits for missing segments forever.
+     *
+     * @param account The account to charge pending bytes to, or null to hold any amount.
+     */
+    public TCPStreamAssembler(MemoryBudget.Account account) {
+        this(account, 0L);
+    }
+
+    /**
+     * @param account     The account to charge pending bytes to, or null to hold any amount.
+     * @param holeTimeout How long to wait for a missing segment before skipping it, in milliseconds, or 0 to wait forever.
+     */
+    public TCPStreamAssembler(MemoryBudget.Account account, long holeTimeout) {
+        this.account = account;
+        holeTimeoutNanos = holeTimeout * 1_000_000L;
+        pendingSegments = new SegmentStore();
         bytesRead = 0L;
-        currentByteIndex = -1L;
         notifyObject = new Object();
-        notifyAck = new AtomicBoolean(false);
     }
 
     @MThread("listener")
     public void acceptTCPPacket(TCPPacket packet) {
-        //  Ignore 6 byte packets - network noise
-        if (packet.payload.length == 6) {
+        int length = packet.payloadLength;
+        if (length == 0 || closed) {
+            return;
+        }
+        if (account != null && !account.reserve(length, this::dropOldest)) {
             return;
         }
-        if (startingSeqNumber == -1L) {
-            startingSeqNumber = packet.seqNumber;
-            currentSeqNumber = startingSeqNumber;
-            nextExpectedSeqNumber = packet.nextExpectedSeqNumber();
-            bytesRead = 0L;
-            currentByteIndex = currentSeqNumber;
+        int added;
+        synchronized (notifyObject) {
+            added = closed ? 0 : pendingSegments.add(packet);
+            latestTimeNanos = Math.max(latestTimeNanos, packet.packetTimeNanos);
+            //  Even if nothing was added, the reader may be waiting on a hole whose deadline has now passed
+            if (added > 0 || (holeTimeoutNanos > 0L && !pendingSegments.isEmpty())) {
+                notifyObject.notifyAll();
+            }
+        }
+        //  Retransmitted and overlapping bytes aren't held
+        if (account != null && added < length) {
+            account.release(length - added);
         }
+    }
+
+    /**
+     * Signals that no more packets will be accepted. Once every pending byte up to the first hole has been read the stream reports end
+     * of stream.
+     */
+    @MThread("listener")
+    public void finish() {
         synchronized (notifyObject) {
-            pendingPackets.add(packet);
+            finished = true;
             notifyObject.notifyAll();
-            notifyAck.set(true);
         }
     }
 
-    @MThread("user")
-    private int getNextByte() throws InterruptedException {
-        if (Thread.interrupted()) {
-            throw new InterruptedException();
+    /**
+     * Drops the pending segment that is earliest in the stream, for when the memory budget runs out.
+     */
+    @MThread("listener")
+    private long dropOldest() {
+        SegmentStore.Segment oldest;
+        synchronized (notifyObject) {
+            oldest = pendingSegments.dropFirst();
         }
-        while (workingPacket == null) {
-            nextWorkingPacket();
+        if (oldest == null) {
+            return 0L;
         }
-        int i = workingPacket.getByte(currentByteIndex);
-        if (i >= 0) {
-            currentByteIndex++;
-            bytesRead++;
-            return i;
+        oldest.packet.release();
+        account.release(oldest.length);
+        return oldest.length;
+    }
+
+    /**
+     * Discards everything pending and ends the stream straight away, releasing the pending bytes.
+     */
+    @MThread("listener")
+    public void abort() {
+        synchronized (notifyObject) {
+            finished = true;
+            pendingSegments.clear();
+            notifyObject.notifyAll();
         }
-        //  End of stream
-        if (i == -1) {
-            //  Used to be we had a hole that was impossible but actually is EOS
-            return -1;
+        if (account != null) {
+            account.close();
         }
-        //  Need next packet
-        if (i == -2) {
-            //  Get next and retry
-            workingPacket = null;
-            return getNextByte();
+    }
+
+    @MThread("user")
+    private int getNextByte() throws InterruptedException, StreamGapException {
+        int index = nextIndex();
+        if (index < 0) {
+            return -1;
         }
-        throw new IllegalStateException("Should not be able to hit here!");
+        int i = workingSegment.packet.getPayloadByte(index);
+        advance(1);
+        return i;
     }
 
+    /**
+     * Waits until the next byte of the stream is in the working segment.
+     *
+     * @return The index of the next byte within the working segment's payload, or -1 at end of stream.
+     */
     @MThread("user")
-    private void nextWorkingPacket() throws InterruptedException {
-        workingPacket = pendingPackets.take();
-        //  Retransmission
-        if (currentSeqNumber == workingPacket.seqNumber) {
-            nextExpectedSeqNumber = workingPacket.nextExpectedSeqNumber();
-            return;
+    private int nextIndex() throws InterruptedException, StreamGapException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
         }
-        //  Hole
-        if (nextExpectedSeqNumber < workingPacket.seqNumber) {
-            pendingPackets.add(workingPacket);
-            //  If a packet snuck in between us checking with isNextByteAvailableFromWorkingPacket, go ahead and get it,
-            //  otherwise wait for it.
-            if (!notifyAck.getAndSet(false)) {
-                synchronized (notifyObject) {
+        while (workingSegment == null || workingIndex >= workingSegment.length) {
+            if (workingSegment != null) {
+                //  Done with it
+                releaseWorkingSegment();
+            }
+            SegmentStore.Segment segment;
+            synchronized (notifyObject) {
+                while ((segment = pendingSegments.poll()) == null) {
+                    //  Everything before the hole has been read, so give up on it once the segment after it has waited long enough
+                    SegmentStore.Segment waiting = pendingSegments.peekFirst();
+                    if (holeTimeoutNanos > 0L && waiting != null &&
+                            latestTimeNanos - waiting.packet.packetTimeNanos >= holeTimeoutNanos) {
+                        long lost = pendingSegments.skipHole();
+                        holesSkipped++;
+                        bytesSkipped += lost;
+                        throw new StreamGapException(lost);
+                    }
+                    //  Nothing more is coming, so there's no point waiting on holes
+                    if (finished) {
+                        //  Anything past a hole will never be read
+                        pendingSegments.clear();
+                        if (account != null) {
+                            //  Nothing more will be read, so nothing still held will ever be released by reading
+                            account.close();
+                        }
+                        return -1;
+                    }
                     notifyObject.wait();
                 }
             }
-            //  Take the new one.
-            workingPacket = pendingPackets.take();
+            //  The read position only moves by polling or skipping to a held segment, so poll never trims held bytes here and the
+            //  whole of what it took is released with the working segment
+            workingSegment = segment;
+            workingIndex = 0;
+            //  Ignore 6 byte packets - network noise
+            if (segment.packet.payloadLength == 6) {
+                releaseWorkingSegment();
+            }
+        }
+        return workingSegment.offset + workingIndex;
+    }
+
+    @MThread("user")
+    private void releaseWorkingSegment() {
+        if (account != null) {
+            account.release(workingSegment.length);
+        }
+        workingSegment.packet.release();
+        workingSegment = null;
+    }
+
+    /**
+     * Lets go of the segment being read and everything pending, for when the reader stops reading. Packets accepted afterwards are
+     * dropped.
+     */
+    @Override
+    @MThread("user")
+    public void close() {
+        if (workingSegment != null) {
+            releaseWorkingSegment();
+        }
+        long held;
+        synchronized (notifyObject) {
+            closed = true;
+            finished = true;
+            held = pendingSegments.getHeldBytes();
+            pendingSegments.clear();
+            notifyObject.notifyAll();
+        }
+        if (account != null) {
+            account.release(held);
+        }
+    }
 
-        } else if (nextExpectedSeqNumber > workingPacket.seqNumber) {
-            //  Awkward overlap? Just get the next packet.
+    @MThread("user")
+    private void advance(int length) {
+        workingIndex += length;
+        bytesRead += length;
+        lastByteTimeNanos = workingSegment.packet.packetTimeNanos;
+    }
 
-        } else {
-            currentSeqNumber = workingPacket.seqNumber;
-            nextExpectedSeqNumber = workingPacket.nextExpectedSeqNumber();
+    /**
+     * Gets the number of bytes left in the working segment, starting at the given payload index.
+     */
+    @MThread("user")
+    private int remaining(int index) {
+        return workingSegment.offset + workingSegment.length - index;
+    }
+
+    /**
+     * Gets the number of gaps given up on after the hole deadline.
+     */
+    public long getHolesSkipped() {
+        synchronized (notifyObject) {
+            return holesSkipped;
         }
     }
 
+    /**
+     * Gets the number of bytes lost in gaps given up on after the hole deadline.
+     */
+    public long getBytesSkipped() {
+        synchronized (notifyObject) {
+            return bytesSkipped;
+        }
+    }
+
+    /**
+     * Gets the capture time of the TCP packet that the most recently read byte came from, in nanoseconds since the epoch.
+     */
+    @MThread("user")
+    public long getLastByteTimeNanos() {
+        return lastByteTimeNanos;
+    }
+
     @Override
     @MThread("user")
     public int read() throws IOException {
@@ -157,4 +318,89 @@ public class TCPStreamAssembler
             throw new IOException(e);
         }
     }
+
+    /**
+     * Reads up to {@code length} bytes, copying the contiguous run left in the current TCP packet in one go. Blocks until at least one
+     * byte is available, but doesn't wait for the next packet once some bytes have been read.
+     *
+     * @throws StreamGapException If the read reached a gap that was given up on. No bytes are read, and the next read starts after the
+     *                            gap.
+     */
+    @Override
+    @MThread("user")
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || length > b.length - offset) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside of array length " + b.length);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        try {
+            int index = nextIndex();
+            if (index < 0) {
+                return -1;
+            }
+            int n = Math.min(length, remaining(index));
+            workingSegment.packet.copyPayload(index, b, offset, n);
+            advance(n);
+            return n;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads up to the buffer's remaining bytes into it, like {@link #read(byte[], int, int)}.
+     *
+     * @return The number of bytes read, or -1 at end of stream.
+     */
+    @MThread("user")
+    public int read(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (buffer.hasArray()) {
+            int n = read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            return n;
+        }
+        try {
+            int index = nextIndex();
+            if (index < 0) {
+                return -1;
+            }
+            int n = Math.min(buffer.remaining(), remaining(index));
+            workingSegment.packet.copyPayload(index, buffer, n);
+            advance(n);
+            return n;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Fills the buffer's remaining bytes, blocking as needed.
+     *
+     * @throws EOFException If the stream ends first.
+     */
+    @MThread("user")
+    public void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes that can be read without blocking, which is what's left of the current TCP packet.
+     */
+    @Override
+    @MThread("user")
+    public int available() {
+        SegmentStore.Segment segment = workingSegment;
+        return segment == null ? 0 : Math.max(0, segment.length - workingIndex);
+    }
 }
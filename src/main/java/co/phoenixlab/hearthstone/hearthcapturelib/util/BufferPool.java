@@ -0,0 +1,331 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Reference counted byte buffers drawn from size classed pools, so that captured payloads don't need a new array for every segment.
+ * <p>
+ * Sizes are rounded up to a power of two between {@link #MIN_SIZE} and {@link #MAX_SIZE}, and each size class keeps up to a fixed
+ * number of bytes worth of free buffers. A buffer starts with one reference. Whoever keeps hold of it past the call it was handed over
+ * in takes another with {@link Buffer#retain()}, and every reference is given back with {@link Buffer#release()}. The last release
+ * returns the buffer to its pool, or leaves it to the garbage collector if the pool is full. Larger requests and pools with no room
+ * get plain buffers that are never pooled.
+ * <p>
+ * In debug mode, the stack that acquired each buffer is recorded, and buffers that are garbage collected without having been released
+ * are logged as leaks with that stack. Releasing a buffer more times than it was retained always throws.
+ * <p>
+ * Buffers can be acquired and released from any thread.
+ *
+ * @author Vincent Zhang
+ */
+public class BufferPool {
+
+    /**
+     * Smallest size class, in bytes.
+     */
+    public static final int MIN_SIZE = 64;
+    /**
+     * Largest size class, in bytes, which fits the largest TCP payload.
+     */
+    public static final int MAX_SIZE = 65536;
+    /**
+     * Default number of bytes of free buffers kept per size class.
+     */
+    public static final long DEFAULT_BYTES_PER_CLASS = 4L * 1024L * 1024L;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private static volatile BufferPool defaultPool = new BufferPool(
+            Long.getLong("phoenixlab.hearthstone.pool.bytes", DEFAULT_BYTES_PER_CLASS),
+            Boolean.getBoolean("phoenixlab.hearthstone.pool.debug"));
+
+    private final ArrayBlockingQueue<Buffer>[] classes;
+    private final boolean debug;
+    private final AtomicLong acquired;
+    private final AtomicLong allocated;
+    private final AtomicLong released;
+    private final AtomicLong leaks;
+    /**
+     * Trackers of buffers handed out in debug mode, kept reachable until their buffer is released or found leaked.
+     */
+    private final Set<LeakTracker> trackers;
+    private final ReferenceQueue<Buffer> collected;
+
+    /**
+     * @param bytesPerClass The number of bytes of free buffers to keep in each size class, or 0 to not pool at all.
+     * @param debug         Whether to record where buffers were acquired and report buffers that are never released.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long bytesPerClass, boolean debug) {
+        if (bytesPerClass < 0) {
+            throw new IllegalArgumentException("Bytes per class can't be negative");
+        }
+        classes = new ArrayBlockingQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            int count = (int) Math.min(Integer.MAX_VALUE, bytesPerClass >> (MIN_SHIFT + i));
+            //  A class too big for even one buffer isn't pooled
+            classes[i] = count == 0 ? null : new ArrayBlockingQueue<>(count);
+        }
+        this.debug = debug;
+        acquired = new AtomicLong();
+        allocated = new AtomicLong();
+        released = new AtomicLong();
+        leaks = new AtomicLong();
+        trackers = ConcurrentHashMap.newKeySet();
+        collected = new ReferenceQueue<>();
+    }
+
+    /**
+     * Gets the pool shared by captures that aren't given one, configured by the {@code phoenixlab.hearthstone.pool.bytes} and
+     * {@code phoenixlab.hearthstone.pool.debug} system properties.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Sets the pool used by captures started from now on.
+     */
+    public static void setDefault(BufferPool pool) {
+        if (pool == null) {
+            throw new NullPointerException("pool");
+        }
+        defaultPool = pool;
+    }
+
+    /**
+     * Takes a buffer of at least the given size, holding one reference.
+     */
+    public Buffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size can't be negative");
+        }
+        acquired.incrementAndGet();
+        int sizeClass = sizeClass(size);
+        ArrayBlockingQueue<Buffer> free = sizeClass < 0 ? null : classes[sizeClass];
+        Buffer buffer = free == null ? null : free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new Buffer(free == null ? new byte[size] : new byte[MIN_SIZE << sizeClass], free);
+        }
+        buffer.references.set(1);
+        if (debug) {
+            reportLeaks();
+            buffer.tracker = new LeakTracker(buffer, collected, buffer.array.length);
+            trackers.add(buffer.tracker);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets the size class for a size, or -1 if it's too big to pool.
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Logs every buffer that has been garbage collected without being released since the last check. Called on every acquisition in
+     * debug mode.
+     *
+     * @return The number of leaks found.
+     */
+    public int reportLeaks() {
+        int found = 0;
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) collected.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                found++;
+                leaks.incrementAndGet();
+                HCapUtils.logger.log(Level.WARNING, "A " + tracker.size + " byte buffer was garbage collected without being released",
+                        tracker.acquiredAt);
+            }
+        }
+        return found;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Gets the number of buffers handed out.
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * Gets the number of buffers that had to be newly allocated because none of the right size was free.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Gets the number of buffers handed out that haven't been fully released yet.
+     */
+    public long getOutstanding() {
+        return acquired.get() - released.get();
+    }
+
+    /**
+     * Gets the number of leaked buffers found in debug mode.
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * Gets the number of bytes of free buffers held across all size classes.
+     */
+    public long getPooledBytes() {
+        long bytes = 0L;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            if (classes[i] != null) {
+                bytes += (long) classes[i].size() << (MIN_SHIFT + i);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" +
+                "acquired=" + acquired.get() +
+                ", allocated=" + allocated.get() +
+                ", outstanding=" + getOutstanding() +
+                ", pooledBytes=" + getPooledBytes() +
+                ", leaks=" + leaks.get() +
+                '}';
+    }
+
+    /**
+     * A reference counted byte array. The array may be larger than the size asked for.
+     */
+    public class Buffer {
+
+        private final byte[] array;
+        /**
+         * The size class to go back to, or null if this buffer isn't pooled.
+         */
+        private final ArrayBlockingQueue<Buffer> home;
+        private final AtomicInteger references;
+        private volatile LeakTracker tracker;
+
+        private Buffer(byte[] array, ArrayBlockingQueue<Buffer> home) {
+            this.array = array;
+            this.home = home;
+            references = new AtomicInteger();
+        }
+
+        /**
+         * Gets the backing array. It must not be used after the last reference has been released.
+         */
+        public byte[] array() {
+            return array;
+        }
+
+        /**
+         * Takes another reference to this buffer.
+         *
+         * @throws IllegalStateException If the buffer has already been released.
+         */
+        public Buffer retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Buffer retained after being released");
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Gives back a reference to this buffer, returning it to the pool once no references are left.
+         *
+         * @throws IllegalStateException If the buffer has been released more times than it was retained.
+         */
+        public void release() {
+            int count = references.decrementAndGet();
+            if (count > 0) {
+                return;
+            }
+            if (count < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("Buffer released more times than it was retained");
+            }
+            released.incrementAndGet();
+            LeakTracker leakTracker = tracker;
+            if (leakTracker != null) {
+                tracker = null;
+                trackers.remove(leakTracker);
+                leakTracker.clear();
+            }
+            if (home != null) {
+                home.offer(this);
+            }
+        }
+
+        /**
+         * Gets the number of references held.
+         */
+        public int getReferenceCount() {
+            return references.get();
+        }
+    }
+
+    /**
+     * Remembers where a buffer was acquired, and is enqueued if the buffer is garbage collected without being released.
+     */
+    private static class LeakTracker extends PhantomReference<Buffer> {
+
+        private final Throwable acquiredAt;
+        private final int size;
+
+        LeakTracker(Buffer buffer, ReferenceQueue<Buffer> queue, int size) {
+            super(buffer, queue);
+            acquiredAt = new Throwable("Buffer acquired here");
+            this.size = size;
+        }
+    }
+}
@@ -32,6 +32,10 @@ public class HCapUtils {
 
     public static final Logger logger = Logger.getLogger("HSCaptureLib");
     private static final DateFormat format;
+    /**
+     * Offset from System.nanoTime() to nanoseconds since the epoch, fixed at startup.
+     */
+    private static final long EPOCH_NANO_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
 
     static {
         format = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
@@ -47,4 +51,12 @@ public class HCapUtils {
         logger.addHandler(handler);
     }
 
+    /**
+     * Gets the current time in nanoseconds since the epoch, with System.nanoTime() precision, for comparison against packet capture
+     * timestamps.
+     */
+    public static long currentTimeNanos() {
+        return EPOCH_NANO_OFFSET + System.nanoTime();
+    }
+
 }
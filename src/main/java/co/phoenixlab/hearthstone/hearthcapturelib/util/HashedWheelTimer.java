@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import java.util.logging.Level;
+
+/**
+ * A hashed timing wheel for the many coarse timeouts a capture thread keeps, such as idle sessions, reassembly holes and blacklist
+ * entries.
+ * <p>
+ * Timeouts are kept in a ring of buckets, one per tick. Scheduling and cancelling only link or unlink a node from its bucket, so both
+ * are O(1) no matter how many timeouts are pending, and advancing the wheel only touches the buckets for the ticks that passed.
+ * Deadlines are rounded up to the next tick, so a timeout fires at most one tick late.
+ * <p>
+ * The wheel has no thread of its own. The owning thread advances it with the current time, usually capture timestamps, and expired
+ * tasks run on that thread, so they can touch the same state as the rest of the capture code without locking. This class is not
+ * thread safe.
+ *
+ * @author Vincent Zhang
+ */
+public class HashedWheelTimer {
+
+    /**
+     * A scheduled task, which can be cancelled until it runs.
+     */
+    public static final class Timeout {
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean expired;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Gets the time this timeout was scheduled for, in milliseconds.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Checks whether the task has run.
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Checks whether the timeout is still waiting to run.
+         */
+        public boolean isPending() {
+            return bucket != null;
+        }
+
+        /**
+         * Cancels the timeout so its task never runs.
+         *
+         * @return true if the timeout was pending, false if it already ran or was already cancelled.
+         */
+        public boolean cancel() {
+            if (bucket == null) {
+                return false;
+            }
+            bucket.remove(this);
+            timer.pending--;
+            return true;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list of the timeouts that hash to one tick.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    /**
+     * The next tick to process. Every tick before it has been processed.
+     */
+    private long currentTick;
+    private int pending;
+    private long expiredCount;
+
+    /**
+     * Creates a timer.
+     *
+     * @param tickMillis The length of a tick in milliseconds, which is also how late a timeout can fire.
+     * @param wheelSize  The number of buckets, rounded up to a power of two. Timeouts further away than a full turn of the wheel wait for
+     *                   more than one turn.
+     * @param startTime  The current time in milliseconds.
+     */
+    public HashedWheelTimer(long tickMillis, int wheelSize, long startTime) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        if (wheelSize < 1 || wheelSize > 1 << 24) {
+            throw new IllegalArgumentException("Wheel size must be between 1 and 2^24");
+        }
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(wheelSize * 2 - 1);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Schedules a task to run once the wheel has been advanced to the deadline. Deadlines in the past run on the next advance.
+     *
+     * @param task     The task to run.
+     * @param deadline The time to run the task at, in milliseconds.
+     * @return A handle that can cancel the task.
+     */
+    public Timeout schedule(Runnable task, long deadline) {
+        Timeout timeout = new Timeout(this, task, deadline);
+        //  Round up so that a timeout never fires early
+        long tick = Math.max(currentTick, Math.floorDiv(deadline - startTime + tickMillis - 1, tickMillis));
+        timeout.remainingRounds = (tick - currentTick) / wheel.length;
+        wheel[(int) (tick & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel to the given time, running every task whose deadline has passed. Times earlier than a previous advance are
+     * ignored. Tasks may schedule or cancel other timeouts.
+     *
+     * @param now The current time in milliseconds.
+     * @return The number of tasks run.
+     */
+    public int advance(long now) {
+        long targetTick = Math.floorDiv(now - startTime, tickMillis);
+        int ran = 0;
+        while (currentTick <= targetTick) {
+            if (pending == 0) {
+                //  Nothing to run, skip straight to the target
+                currentTick = targetTick + 1;
+                break;
+            }
+            Bucket bucket = wheel[(int) (currentTick & mask)];
+            //  Unlink this tick's expired timeouts before running any, so tasks can freely change the wheel
+            Timeout expiredHead = null;
+            Timeout expiredTail = null;
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    bucket.remove(timeout);
+                    pending--;
+                    if (expiredTail == null) {
+                        expiredHead = timeout;
+                    } else {
+                        expiredTail.next = timeout;
+                    }
+                    expiredTail = timeout;
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            currentTick++;
+            while (expiredHead != null) {
+                Timeout next = expiredHead.next;
+                expiredHead.next = null;
+                expiredHead.expired = true;
+                expiredCount++;
+                ran++;
+                try {
+                    expiredHead.task.run();
+                } catch (RuntimeException e) {
+                    HCapUtils.logger.log(Level.WARNING, "Timer task failed", e);
+                }
+                expiredHead = next;
+            }
+        }
+        return ran;
+    }
+
+    /**
+     * Gets the number of timeouts waiting to run.
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Gets the total number of tasks that have run.
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Gets the length of a tick in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelTimer{" +
+                "tickMillis=" + tickMillis +
+                ", wheelSize=" + wheel.length +
+                ", pending=" + pending +
+                ", expired=" + expiredCount +
+                '}';
+    }
+}
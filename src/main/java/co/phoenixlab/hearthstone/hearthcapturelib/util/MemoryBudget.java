@@ -0,0 +1,445 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A process-wide limit on the bytes held in reassembly buffers and decoded packet queues, with an account per capture session.
+ * <p>
+ * Buffers reserve bytes from their session's account before holding data and release them once the data has been consumed or dropped.
+ * When a reservation would go over the limit the budget's policy decides what gives:
+ * <ul>
+ * <li>{@link Policy#DROP_OLDEST}: the session making the reservation drops its own oldest buffered data until the new data fits. The
+ * session keeps going but has lost data.</li>
+ * <li>{@link Policy#EVICT_SESSION}: the session holding the most bytes is evicted, and its owner ends it and releases everything it
+ * held. Other sessions are unaffected.</li>
+ * <li>{@link Policy#BLOCK}: the capture thread waits for consumers to release bytes, for up to the block timeout, after which the new
+ * data is dropped. Backpressure shows up as kernel drops.</li>
+ * </ul>
+ * Either way a single stalled consumer or a hole that never fills can't grow memory without bound.
+ *
+ * @author Vincent Zhang
+ */
+public class MemoryBudget {
+
+    /**
+     * What to do when a reservation would go over the limit.
+     */
+    public enum Policy {
+        DROP_OLDEST,
+        EVICT_SESSION,
+        BLOCK
+    }
+
+    /**
+     * Frees the oldest data held by one buffer, on the thread making a reservation.
+     */
+    public interface Reclaimer {
+
+        /**
+         * Drops the oldest data this buffer holds, releasing its bytes from the account.
+         *
+         * @return The number of bytes released, or 0 if there was nothing to drop.
+         */
+        long dropOldest();
+    }
+
+    /**
+     * Default limit, in bytes.
+     */
+    public static final long DEFAULT_LIMIT = 256L * 1024L * 1024L;
+    /**
+     * Default time a reservation waits under the BLOCK policy, in milliseconds.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 1_000L;
+
+    private static volatile MemoryBudget defaultBudget = new MemoryBudget(
+            Long.getLong("phoenixlab.hearthstone.budget.bytes", DEFAULT_LIMIT),
+            Policy.valueOf(System.getProperty("phoenixlab.hearthstone.budget.policy", Policy.EVICT_SESSION.name())),
+            Long.getLong("phoenixlab.hearthstone.budget.block", DEFAULT_BLOCK_TIMEOUT));
+
+    private final long limit;
+    private final Policy policy;
+    private final long blockTimeout;
+    private final AtomicLong used;
+    private final AtomicLong peak;
+    private final AtomicLong droppedBytes;
+    private final AtomicLong evictions;
+    private final Set<Account> accounts;
+    private final Object releaseLock = new Object();
+
+    /**
+     * @param limit        The maximum number of bytes held across all accounts.
+     * @param policy       What to do when a reservation would go over the limit.
+     * @param blockTimeout How long a reservation waits under the BLOCK policy, in milliseconds.
+     */
+    public MemoryBudget(long limit, Policy policy, long blockTimeout) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.limit = limit;
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+        used = new AtomicLong();
+        peak = new AtomicLong();
+        droppedBytes = new AtomicLong();
+        evictions = new AtomicLong();
+        accounts = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Gets the budget shared by captures that aren't given one, configured by the {@code phoenixlab.hearthstone.budget.bytes},
+     * {@code phoenixlab.hearthstone.budget.policy} and {@code phoenixlab.hearthstone.budget.block} system properties.
+     */
+    public static MemoryBudget getDefault() {
+        return defaultBudget;
+    }
+
+    /**
+     * Sets the budget used by captures started from now on.
+     */
+    public static void setDefault(MemoryBudget budget) {
+        if (budget == null) {
+            throw new NullPointerException("budget");
+        }
+        defaultBudget = budget;
+    }
+
+    /**
+     * Opens an account for one session.
+     *
+     * @param name A name for the account in metrics, such as the session's connection.
+     */
+    public Account open(String name) {
+        Account account = new Account(name);
+        accounts.add(account);
+        return account;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the number of bytes currently held across all accounts.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Gets the most bytes held at once across all accounts.
+     */
+    public long getPeakUsed() {
+        return peak.get();
+    }
+
+    /**
+     * Gets the number of bytes dropped because the budget was exhausted, including data dropped by the DROP_OLDEST policy.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * Gets the number of sessions evicted by the EVICT_SESSION policy.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the open accounts, largest first.
+     */
+    public List<Account> getAccounts() {
+        List<Account> list = new ArrayList<>(accounts);
+        list.sort(Collections.reverseOrder((a, b) -> Long.compare(a.getHeld(), b.getHeld())));
+        return list;
+    }
+
+    private boolean tryTake(long bytes) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        updatePeak(current + bytes);
+        return true;
+    }
+
+    private void updatePeak(long value) {
+        long currentPeak;
+        while (value > (currentPeak = peak.get()) && !peak.compareAndSet(currentPeak, value)) {
+            //  Retry
+        }
+    }
+
+    private void give(long bytes) {
+        used.addAndGet(-bytes);
+        if (policy == Policy.BLOCK) {
+            synchronized (releaseLock) {
+                releaseLock.notifyAll();
+            }
+        }
+    }
+
+    private Account largestAccount() {
+        Account largest = null;
+        for (Account account : accounts) {
+            if (!account.evicted && (largest == null || account.getHeld() > largest.getHeld())) {
+                largest = account;
+            }
+        }
+        return largest;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget{" +
+                "policy=" + policy +
+                ", used=" + used.get() +
+                ", limit=" + limit +
+                ", peak=" + peak.get() +
+                ", accounts=" + accounts.size() +
+                ", droppedBytes=" + droppedBytes.get() +
+                ", evictions=" + evictions.get() +
+                '}';
+    }
+
+    /**
+     * The bytes held by one session. Reservations are made by the session's capture thread and releases can come from any thread.
+     */
+    public class Account {
+
+        private final String name;
+        private final AtomicLong held;
+        private final AtomicLong dropped;
+        private volatile boolean evicted;
+        private volatile boolean closed;
+        private volatile boolean closeWhenEmpty;
+        private volatile Runnable evictionHandler;
+
+        private Account(String name) {
+            this.name = name;
+            held = new AtomicLong();
+            dropped = new AtomicLong();
+        }
+
+        /**
+         * Reserves bytes for data about to be buffered, applying the budget's policy if they don't fit.
+         *
+         * @param bytes     The number of bytes to reserve.
+         * @param reclaimer Drops the calling buffer's oldest data under the DROP_OLDEST policy, or null if it has nothing to drop.
+         * @return true if the bytes were reserved and the data may be buffered, or false if the data must be dropped.
+         */
+        @MThread("listener")
+        public boolean reserve(long bytes, Reclaimer reclaimer) {
+            if (evicted || closed) {
+                return false;
+            }
+            if (!tryTake(bytes)) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        if (!reclaim(bytes, reclaimer)) {
+                            return drop(bytes);
+                        }
+                        break;
+                    case EVICT_SESSION:
+                        Account victim = largestAccount();
+                        if (victim == null || victim == this || victim.getHeld() < bytes) {
+                            //  Nobody else holds more than this would add, so this session is the one to go
+                            evict();
+                            return drop(bytes);
+                        }
+                        victim.evict();
+                        //  Go over the limit until the victim's owner releases its bytes, rather than punishing this session too
+                        updatePeak(used.addAndGet(bytes));
+                        break;
+                    case BLOCK:
+                        if (!await(bytes)) {
+                            return drop(bytes);
+                        }
+                        break;
+                }
+            }
+            held.addAndGet(bytes);
+            return true;
+        }
+
+        private boolean reclaim(long bytes, Reclaimer reclaimer) {
+            if (reclaimer == null) {
+                return false;
+            }
+            while (!tryTake(bytes)) {
+                long freed = reclaimer.dropOldest();
+                if (freed <= 0) {
+                    return false;
+                }
+                dropped.addAndGet(freed);
+                droppedBytes.addAndGet(freed);
+            }
+            return true;
+        }
+
+        private boolean await(long bytes) {
+            long deadline = System.currentTimeMillis() + blockTimeout;
+            synchronized (releaseLock) {
+                while (!tryTake(bytes)) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0 || closed) {
+                        return false;
+                    }
+                    try {
+                        releaseLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean drop(long bytes) {
+            dropped.addAndGet(bytes);
+            droppedBytes.addAndGet(bytes);
+            return false;
+        }
+
+        private void evict() {
+            if (evicted) {
+                return;
+            }
+            evicted = true;
+            evictions.incrementAndGet();
+            HCapUtils.logger.warning("Memory budget exhausted, evicting " + name + " holding " + held.get() + " bytes");
+            Runnable handler = evictionHandler;
+            if (handler != null) {
+                try {
+                    handler.run();
+                } catch (RuntimeException e) {
+                    HCapUtils.logger.log(Level.WARNING, "Eviction handler failed for " + name, e);
+                }
+            }
+        }
+
+        /**
+         * Sets what to do when this account is evicted. The handler runs on whichever thread made the reservation that caused the
+         * eviction, so it must be safe to call from any thread, and should close the session's queues so its data is released.
+         */
+        public void setEvictionHandler(Runnable evictionHandler) {
+            this.evictionHandler = evictionHandler;
+        }
+
+        /**
+         * Releases bytes of data that has been consumed or dropped.
+         */
+        public void release(long bytes) {
+            long current;
+            long released;
+            do {
+                current = held.get();
+                //  Anything still held after close was already given back
+                released = Math.min(current, bytes);
+                if (released <= 0) {
+                    return;
+                }
+            } while (!held.compareAndSet(current, current - released));
+            give(released);
+            if (closeWhenEmpty && current == released) {
+                close();
+            }
+        }
+
+        /**
+         * Closes this account once everything it holds has been released, for sessions that have ended but whose consumer is still
+         * reading. The account can still be evicted until then.
+         */
+        public void closeWhenEmpty() {
+            closeWhenEmpty = true;
+            if (held.get() == 0) {
+                close();
+            }
+        }
+
+        /**
+         * Releases everything this account holds and removes it from the budget. Later reservations fail.
+         */
+        public void close() {
+            closed = true;
+            accounts.remove(this);
+            long remaining = held.getAndSet(0L);
+            if (remaining > 0) {
+                give(remaining);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the number of bytes this session currently holds.
+         */
+        public long getHeld() {
+            return held.get();
+        }
+
+        /**
+         * Gets the number of bytes this session has dropped because the budget was exhausted.
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Checks whether the budget has asked the owner to end this session.
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{held=" + held.get() + ", dropped=" + dropped.get() + (evicted ? ", evicted" : "") + "}";
+        }
+    }
+}
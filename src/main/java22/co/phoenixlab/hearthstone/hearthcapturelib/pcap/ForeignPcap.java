@@ -0,0 +1,540 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.CaptureOptions;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.AddressClassifier;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HCapUtils;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * A libpcap capture handle called through the Foreign Function &amp; Memory API instead of jNetPcap, which avoids a JNI transition per
+ * packet and the {@code PcapPacket}/{@code JBuffer} wrappers. As in {@code NetInterfaceListener}, the start of each frame is copied out
+ * of libpcap's buffer into a scratch array and parsed with {@link LinkLayer} and {@link TCPHeaderParser}, and each payload is copied
+ * once, straight into a buffer from the default {@link BufferPool}.
+ * <p>
+ * Frames are read with {@code pcap_next_ex}, a plain downcall, so no upcall stub is needed. libpcap is looked up as {@code wpcap} on
+ * Windows, {@code libpcap.dylib} on macOS and {@code libpcap.so.1} elsewhere, or from the phoenixlab.hearthstone.ffm.library system
+ * property. Run with {@code --enable-native-access=ALL-UNNAMED} to avoid the restricted method warning.
+ *
+ * @author Vincent Zhang
+ */
+public final class ForeignPcap implements AutoCloseable {
+
+    private static final int PCAP_ERRBUF_SIZE = 256;
+    private static final int NEXT_EX_OK = 1;
+    private static final int NEXT_EX_TIMEOUT = 0;
+    private static final int NEXT_EX_EOF = -2;
+    private static final ValueLayout.OfInt HOST_INT = ValueLayout.JAVA_INT_UNALIGNED;
+
+    private final Arena arena;
+    private final MemorySegment handle;
+    private final MemorySegment headerOut;
+    private final MemorySegment dataOut;
+    private final int linkType;
+    private final BufferPool pool;
+    private final byte[] headers = new byte[LinkLayer.MAX_HEADER_BYTES];
+    private final TCPHeaderParser parser = new TCPHeaderParser();
+    private long packetsRead;
+    private long bytesRead;
+    private volatile boolean broken;
+    private boolean closed;
+
+    private ForeignPcap(Arena arena, MemorySegment handle) {
+        this.arena = arena;
+        this.handle = handle;
+        headerOut = arena.allocate(ADDRESS);
+        dataOut = arena.allocate(ADDRESS);
+        linkType = Native.datalink(handle);
+        pool = BufferPool.getDefault();
+    }
+
+    /**
+     * Gets whether this backend can be used, which needs Java 22 or later, native access enabled and libpcap (or Npcap) installed.
+     */
+    public static boolean isSupported() {
+        try {
+            return Native.NEXT_EX != null;
+        } catch (LinkageError | RuntimeException e) {
+            HCapUtils.logger.log(Level.FINE, "libpcap foreign function backend unavailable", e);
+            return false;
+        }
+    }
+
+    /**
+     * Opens a pcap or pcapng file with {@code pcap_open_offline}.
+     *
+     * @param file The capture file.
+     * @throws java.io.IOException                    If libpcap could not open the file.
+     * @throws java.lang.UnsupportedOperationException If this backend is not supported on this runtime.
+     */
+    public static ForeignPcap openOffline(Path file) throws IOException {
+        checkSupported();
+        Arena arena = Arena.ofShared();
+        MemorySegment errorBuffer = arena.allocate(PCAP_ERRBUF_SIZE);
+        MemorySegment handle = Native.openOffline(cString(arena, file.toString()), errorBuffer);
+        if (handle.address() == 0L) {
+            String error = fromCString(errorBuffer);
+            arena.close();
+            throw new IOException("Unable to open " + file + ": " + error);
+        }
+        return new ForeignPcap(arena, handle);
+    }
+
+    /**
+     * Opens and activates a network interface with the given options.
+     *
+     * @param device  The libpcap name of the interface.
+     * @param options The snapshot length, promiscuous mode, read timeout and kernel buffer size to use.
+     * @throws java.io.IOException                    If the interface could not be opened or activated.
+     * @throws java.lang.UnsupportedOperationException If this backend is not supported on this runtime.
+     */
+    public static ForeignPcap openLive(String device, CaptureOptions options) throws IOException {
+        checkSupported();
+        Arena arena = Arena.ofShared();
+        MemorySegment errorBuffer = arena.allocate(PCAP_ERRBUF_SIZE);
+        MemorySegment handle = Native.create(cString(arena, device), errorBuffer);
+        if (handle.address() == 0L) {
+            String error = fromCString(errorBuffer);
+            arena.close();
+            throw new IOException("Unable to open " + device + ": " + error);
+        }
+        //  Settings can only be changed between create and activate
+        if (Native.setSnaplen(handle, options.getSnaplen()) != 0 ||
+                Native.setPromisc(handle, options.isPromiscuous() ? 1 : 0) != 0 ||
+                Native.setTimeout(handle, options.getEffectiveTimeout()) != 0 ||
+                (options.getBufferSize() > 0 && Native.setBufferSize(handle, options.getBufferSize()) != 0)) {
+            throw closeWithError(arena, handle, "Unable to configure " + device);
+        }
+        int activated = Native.activate(handle);
+        if (activated < 0) {
+            throw closeWithError(arena, handle, "Unable to activate " + device);
+        } else if (activated > 0) {
+            //  Activated, but something like promiscuous mode wasn't available
+            HCapUtils.logger.warning(String.format("%s activated with warning %d: %s", device, activated, lastError(handle)));
+        }
+        return new ForeignPcap(arena, handle);
+    }
+
+    /**
+     * Compiles and installs a capture filter.
+     *
+     * @return true if the filter was installed, false if it could not be compiled or set, in which case the previous filter stays.
+     */
+    public boolean setFilter(String expression) {
+        try (Arena scratch = Arena.ofConfined()) {
+            //  struct bpf_program is a length followed by a pointer
+            MemorySegment program = scratch.allocate(ADDRESS.byteSize() * 2, ADDRESS.byteAlignment());
+            if (Native.compile(handle, program, cString(scratch, expression), 1, 0) != 0) {
+                HCapUtils.logger.severe(String.format("Failed to compile filter \"%s\": %s", expression, lastError(handle)));
+                return false;
+            }
+            try {
+                if (Native.setFilter(handle, program) != 0) {
+                    HCapUtils.logger.severe(String.format("Failed to set filter \"%s\": %s", expression, lastError(handle)));
+                    return false;
+                }
+            } finally {
+                //  The kernel keeps its own copy of the program
+                Native.freecode(program);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the classifier used to decide which end of each connection is remote.
+     */
+    public void setClassifier(AddressClassifier classifier) {
+        parser.setClassifier(classifier);
+    }
+
+    /**
+     * Reads up to maxPackets frames, handing every IPv4 TCP segment among them to the sink. Returns early when the read timeout expires.
+     *
+     * @param maxPackets The maximum number of frames to read.
+     * @param sink       Called with each TCP segment, on the calling thread. The payload is in a pooled buffer that is released once the
+     *                   sink returns, so a sink that keeps the segment must {@link TCPPacket#retain() retain} it.
+     * @return The number of frames read, or -1 if the end of the file was reached or {@link #breakLoop()} was called.
+     * @throws java.io.IOException If libpcap reported an error.
+     */
+    public int dispatch(int maxPackets, Consumer<TCPPacket> sink) throws IOException {
+        int count = 0;
+        while (count < maxPackets) {
+            if (broken) {
+                broken = false;
+                return -1;
+            }
+            int result = Native.nextEx(handle, headerOut, dataOut);
+            if (result == NEXT_EX_TIMEOUT) {
+                break;
+            } else if (result == NEXT_EX_EOF) {
+                return count == 0 ? -1 : count;
+            } else if (result != NEXT_EX_OK) {
+                throw new IOException(lastError(handle));
+            }
+            count++;
+            packetsRead++;
+            //  Both point into libpcap's buffer and are only valid until the next call
+            MemorySegment header = headerOut.get(ADDRESS, 0L).reinterpret(Native.PKTHDR_SIZE);
+            int capturedBytes = header.get(HOST_INT, Native.PKTHDR_CAPLEN);
+            MemorySegment frame = dataOut.get(ADDRESS, 0L).reinterpret(capturedBytes);
+            bytesRead += capturedBytes;
+            TCPPacket packet = parse(frame, capturedBytes, timestampNanos(header));
+            if (packet != null) {
+                try {
+                    sink.accept(packet);
+                } finally {
+                    //  Anything that kept the packet has retained it
+                    packet.release();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the start of the frame into the scratch array to parse its headers, and the payload straight into a pooled buffer.
+     *
+     * @return The segment, or null if the frame isn't an unfragmented IPv4 TCP segment.
+     */
+    private TCPPacket parse(MemorySegment frame, int capturedBytes, long packetTimeNanos) {
+        int headerBytes = Math.min(capturedBytes, LinkLayer.MAX_HEADER_BYTES);
+        MemorySegment.copy(frame, JAVA_BYTE, 0L, headers, 0, headerBytes);
+        int ip4Offset = LinkLayer.ip4Offset(linkType, headers, headerBytes);
+        if (ip4Offset < 0 || !parser.parse(headers, ip4Offset, headerBytes - ip4Offset, capturedBytes - ip4Offset)) {
+            return null;
+        }
+        int payloadLength = parser.getPayloadLength();
+        if (payloadLength == 0) {
+            return parser.toPacket(TCPPacket.NO_PAYLOAD, 0, packetTimeNanos);
+        }
+        BufferPool.Buffer payload = pool.acquire(payloadLength);
+        MemorySegment.copy(frame, JAVA_BYTE, parser.getPayloadOffset(), payload.array(), 0, payloadLength);
+        return parser.toPacket(payload, 0, packetTimeNanos);
+    }
+
+    private static long timestampNanos(MemorySegment header) {
+        long seconds = Native.C_LONG_SIZE == 8 ? header.get(JAVA_LONG, 0L) : header.get(JAVA_INT, 0L);
+        long micros = Native.C_LONG_SIZE == 8 ? header.get(JAVA_LONG, 8L) : header.get(JAVA_INT, 4L);
+        return seconds * 1_000_000_000L + micros * 1_000L;
+    }
+
+    /**
+     * Makes a {@link #dispatch(int, Consumer)} in progress on another thread return -1 as soon as possible.
+     */
+    public void breakLoop() {
+        //  pcap_next_ex only honours pcap_breakloop on some platforms, so the flag covers the rest once the read timeout expires
+        broken = true;
+        Native.breakloop(handle);
+    }
+
+    /**
+     * Gets the link layer header type of the handle, one of the LINKTYPE_ constants in {@link PcapFileReader}.
+     */
+    public int getLinkType() {
+        return linkType;
+    }
+
+    /**
+     * Gets the number of frames read so far.
+     */
+    public long getPacketsRead() {
+        return packetsRead;
+    }
+
+    /**
+     * Gets the number of captured bytes read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Closes the native handle. Must not be called while another thread is in {@link #dispatch(int, Consumer)}.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            Native.close(handle);
+            arena.close();
+        }
+    }
+
+    private static MemorySegment cString(Arena arena, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        //  Allocated memory is zeroed, so the terminator is already there
+        MemorySegment segment = arena.allocate(bytes.length + 1L);
+        MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0L, bytes.length);
+        return segment;
+    }
+
+    private static String fromCString(MemorySegment segment) {
+        int length = 0;
+        while (length < segment.byteSize() && segment.get(JAVA_BYTE, length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(segment, JAVA_BYTE, 0L, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String lastError(MemorySegment handle) {
+        return fromCString(Native.geterr(handle).reinterpret(PCAP_ERRBUF_SIZE));
+    }
+
+    private static IOException closeWithError(Arena arena, MemorySegment handle, String message) {
+        IOException e = new IOException(message + ": " + lastError(handle));
+        Native.close(handle);
+        arena.close();
+        return e;
+    }
+
+    private static void checkSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("libpcap could not be loaded through the foreign function API");
+        }
+    }
+
+    /**
+     * Downcall handles for the libpcap functions used, bound on first use.
+     */
+    private static final class Native {
+
+        /**
+         * Size of a C long, which struct timeval uses for both fields: 4 bytes on Windows, pointer sized elsewhere.
+         */
+        static final long C_LONG_SIZE = System.getProperty("os.name", "").startsWith("Windows") ? 4L : ADDRESS.byteSize();
+        /**
+         * Offset of caplen and total size of struct pcap_pkthdr, a struct timeval followed by two 32 bit lengths.
+         */
+        static final long PKTHDR_CAPLEN = C_LONG_SIZE * 2;
+        static final long PKTHDR_SIZE = PKTHDR_CAPLEN + 8;
+
+        static final MethodHandle OPEN_OFFLINE;
+        static final MethodHandle CREATE;
+        static final MethodHandle SET_SNAPLEN;
+        static final MethodHandle SET_PROMISC;
+        static final MethodHandle SET_TIMEOUT;
+        static final MethodHandle SET_BUFFER_SIZE;
+        static final MethodHandle ACTIVATE;
+        static final MethodHandle DATALINK;
+        static final MethodHandle NEXT_EX;
+        static final MethodHandle COMPILE;
+        static final MethodHandle SET_FILTER;
+        static final MethodHandle FREECODE;
+        static final MethodHandle GETERR;
+        static final MethodHandle BREAKLOOP;
+        static final MethodHandle CLOSE;
+
+        static {
+            Linker linker = Linker.nativeLinker();
+            SymbolLookup lookup = SymbolLookup.libraryLookup(libraryName(), Arena.global());
+            OPEN_OFFLINE = bind(linker, lookup, "pcap_open_offline", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+            CREATE = bind(linker, lookup, "pcap_create", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+            SET_SNAPLEN = bind(linker, lookup, "pcap_set_snaplen", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            SET_PROMISC = bind(linker, lookup, "pcap_set_promisc", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            SET_TIMEOUT = bind(linker, lookup, "pcap_set_timeout", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            SET_BUFFER_SIZE = bind(linker, lookup, "pcap_set_buffer_size", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+            ACTIVATE = bind(linker, lookup, "pcap_activate", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+            DATALINK = bind(linker, lookup, "pcap_datalink", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+            NEXT_EX = bind(linker, lookup, "pcap_next_ex", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+            COMPILE = bind(linker, lookup, "pcap_compile", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_INT, JAVA_INT));
+            SET_FILTER = bind(linker, lookup, "pcap_setfilter", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+            FREECODE = bind(linker, lookup, "pcap_freecode", FunctionDescriptor.ofVoid(ADDRESS));
+            GETERR = bind(linker, lookup, "pcap_geterr", FunctionDescriptor.of(ADDRESS, ADDRESS));
+            BREAKLOOP = bind(linker, lookup, "pcap_breakloop", FunctionDescriptor.ofVoid(ADDRESS));
+            CLOSE = bind(linker, lookup, "pcap_close", FunctionDescriptor.ofVoid(ADDRESS));
+        }
+
+        private static String libraryName() {
+            String name = System.getProperty("phoenixlab.hearthstone.ffm.library");
+            if (name != null) {
+                return name;
+            }
+            String os = System.getProperty("os.name", "");
+            if (os.startsWith("Windows")) {
+                return "wpcap";
+            }
+            return os.startsWith("Mac") ? "libpcap.dylib" : "libpcap.so.1";
+        }
+
+        private static MethodHandle bind(Linker linker, SymbolLookup lookup, String name, FunctionDescriptor descriptor) {
+            MemorySegment symbol = lookup.find(name).orElseThrow(() -> new UnsatisfiedLinkError("libpcap has no " + name));
+            return linker.downcallHandle(symbol, descriptor);
+        }
+
+        static MemorySegment openOffline(MemorySegment path, MemorySegment errorBuffer) {
+            try {
+                return (MemorySegment) OPEN_OFFLINE.invokeExact(path, errorBuffer);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static MemorySegment create(MemorySegment device, MemorySegment errorBuffer) {
+            try {
+                return (MemorySegment) CREATE.invokeExact(device, errorBuffer);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int setSnaplen(MemorySegment handle, int snaplen) {
+            try {
+                return (int) SET_SNAPLEN.invokeExact(handle, snaplen);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int setPromisc(MemorySegment handle, int promisc) {
+            try {
+                return (int) SET_PROMISC.invokeExact(handle, promisc);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int setTimeout(MemorySegment handle, int timeout) {
+            try {
+                return (int) SET_TIMEOUT.invokeExact(handle, timeout);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int setBufferSize(MemorySegment handle, int bufferSize) {
+            try {
+                return (int) SET_BUFFER_SIZE.invokeExact(handle, bufferSize);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int activate(MemorySegment handle) {
+            try {
+                return (int) ACTIVATE.invokeExact(handle);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int datalink(MemorySegment handle) {
+            try {
+                return (int) DATALINK.invokeExact(handle);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int nextEx(MemorySegment handle, MemorySegment headerOut, MemorySegment dataOut) {
+            try {
+                return (int) NEXT_EX.invokeExact(handle, headerOut, dataOut);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int compile(MemorySegment handle, MemorySegment program, MemorySegment expression, int optimize, int netmask) {
+            try {
+                return (int) COMPILE.invokeExact(handle, program, expression, optimize, netmask);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static int setFilter(MemorySegment handle, MemorySegment program) {
+            try {
+                return (int) SET_FILTER.invokeExact(handle, program);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static void freecode(MemorySegment program) {
+            try {
+                FREECODE.invokeExact(program);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static MemorySegment geterr(MemorySegment handle) {
+            try {
+                return (MemorySegment) GETERR.invokeExact(handle);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static void breakloop(MemorySegment handle) {
+            try {
+                BREAKLOOP.invokeExact(handle);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        static void close(MemorySegment handle) {
+            try {
+                CLOSE.invokeExact(handle);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        private static RuntimeException rethrow(Throwable t) {
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            return new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet009TurnTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet168AuroraHandshake;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TestSegments;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureSessionManagerTest {
+
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+
+    @Test(timeout = 10_000L)
+    public void testConcurrentSessions() throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add);
+        int gameCount = 50;
+        for (int i = 0; i < gameCount; i++) {
+            manager.accept(TestSegments.packet(client(i), 50000 + i, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0])));
+        }
+        //  Not a game, should be ignored
+        manager.accept(TestSegments.packet(client(0), 40000, SERVER, 1119, 1L, TestFrames.PSH_ACK, new byte[]{1, 2, 3}));
+        for (int i = 0; i < gameCount; i++) {
+            byte[] turnTimer = TestFrames.hearthstoneFrame(9, new byte[]{0x08, (byte) i, 0x10, 0x03, 0x18, 0x01});
+            manager.accept(TestSegments.packet(SERVER, 3724, client(i), 50000 + i, 1000L, TestFrames.PSH_ACK, turnTimer));
+        }
+        assertEquals(gameCount, queues.size());
+        assertEquals(gameCount, manager.getActiveSessionCount());
+        for (int i = 0; i < gameCount; i++) {
+            CaptureQueue queue = queues.get(i);
+            assertTrue(queue.getOutboundPackets().next() instanceof Packet168AuroraHandshake);
+            CapturePacket inbound = queue.getInboundPackets().next();
+            assertTrue(inbound instanceof Packet009TurnTimer);
+            assertEquals(i, ((Packet009TurnTimer) inbound).getSeconds());
+        }
+        //  Teardown on FIN
+        manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, 1014L, TestFrames.FIN, new byte[0]));
+        assertEquals(gameCount - 1, manager.getActiveSessionCount());
+        try {
+            queues.get(0).getInboundPackets().next();
+            fail("Expected end of stream");
+        } catch (InterruptedException expected) {
+        }
+        assertFalse(queues.get(1).isClosed());
+        manager.finishAll();
+        assertEquals(0, manager.getActiveSessionCount());
+        assertEquals(gameCount, manager.getSessionsStarted());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testIdleSessionExpires() throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add);
+        long start = System.currentTimeMillis();
+        manager.accept(TestSegments.packet(client(0), 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0]), start));
+        manager.accept(TestSegments.packet(client(1), 50001, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0]), start));
+        //  Keep the second game busy past the first one's idle timeout
+        long later = start + CaptureSessionManager.DEFAULT_SESSION_IDLE_TIMEOUT - 1000L;
+        byte[] turnTimer = TestFrames.hearthstoneFrame(9, new byte[]{0x08, 0x01, 0x10, 0x03, 0x18, 0x01});
+        manager.accept(TestSegments.packet(SERVER, 3724, client(1), 50001, 1000L, TestFrames.PSH_ACK, turnTimer, later));
+        manager.tick(start + CaptureSessionManager.DEFAULT_SESSION_IDLE_TIMEOUT + 1000L);
+        assertEquals(1, manager.getActiveSessionCount());
+        assertEquals(1, manager.getSessionsExpired());
+        queues.get(0).getOutboundPackets().next();
+        try {
+            queues.get(0).getOutboundPackets().next();
+            fail("Expected end of stream");
+        } catch (InterruptedException expected) {
+        }
+        manager.tick(later + CaptureSessionManager.DEFAULT_SESSION_IDLE_TIMEOUT + 1000L);
+        assertEquals(0, manager.getActiveSessionCount());
+        assertEquals(2, manager.getSessionsExpired());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testPushDecodesOnCaptureThread() throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add);
+        manager.setPush(true);
+        manager.accept(TestSegments.packet(client(0), 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0])));
+        PacketQueue inbound = queues.get(0).getInboundPackets();
+        byte[] turnTimer = TestFrames.hearthstoneFrame(9, turnTimerBody(7));
+        int split = turnTimer.length / 2;
+        manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, 1000L, TestFrames.PSH_ACK, Arrays.copyOf(turnTimer, split)));
+        assertNull(inbound.peek());
+        //  Decoded by the time the segment completing the frame has been accepted, without a parse thread
+        manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, 1000L + split, TestFrames.PSH_ACK,
+                Arrays.copyOfRange(turnTimer, split, turnTimer.length)));
+        CapturePacket packet = inbound.peek();
+        assertTrue(packet instanceof Packet009TurnTimer);
+        assertEquals(7, ((Packet009TurnTimer) packet).getSeconds());
+        manager.finishAll();
+    }
+
+    @Test(timeout = 10_000L)
+    public void testAttachMidGame() throws Exception {
+        attachMidGame(false);
+        attachMidGame(true);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testResynchronizeAfterHole() throws Exception {
+        resynchronizeAfterHole(false);
+        resynchronizeAfterHole(true);
+    }
+
+    private void resynchronizeAfterHole(boolean push) throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add, push);
+        long start = System.currentTimeMillis();
+        manager.accept(TestSegments.packet(client(0), 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0]), start));
+        long seq = 1000L;
+        for (int i = 1; i <= 6; i++) {
+            byte[] turnTimer = TestFrames.hearthstoneFrame(9, turnTimerBody(i));
+            //  The second packet is never captured, and the hole deadline passes while the fourth is on its way
+            long time = i < 4 ? start : start + TCPSegmentReassembler.DEFAULT_HOLE_TIMEOUT + 1000L;
+            if (i != 2) {
+                manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, seq, TestFrames.PSH_ACK, turnTimer, time));
+            }
+            seq += turnTimer.length;
+        }
+        PacketQueue inbound = queues.get(0).getInboundPackets();
+        for (int i : new int[]{1, 3, 4, 5}) {
+            CapturePacket packet = inbound.next();
+            assertTrue(packet instanceof Packet009TurnTimer);
+            assertEquals(i, ((Packet009TurnTimer) packet).getSeconds());
+        }
+        assertEquals(1L, inbound.getPacketsLost());
+        assertEquals(TestFrames.hearthstoneFrame(9, turnTimerBody(2)).length, inbound.getBytesLost());
+        manager.finishAll();
+    }
+
+    @Test(timeout = 10_000L)
+    public void testResynchronizeAfterBadLength() throws Exception {
+        resynchronizeAfterBadLength(false);
+        resynchronizeAfterBadLength(true);
+    }
+
+    private void resynchronizeAfterBadLength(boolean push) throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add, push);
+        manager.accept(TestSegments.packet(client(0), 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0])));
+        //  A header claiming a body far larger than any real frame
+        byte[] garbage = {0x09, 0x00, 0x00, 0x00, (byte) 0xF0, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        long seq = 1000L;
+        for (int i = 1; i <= 4; i++) {
+            byte[] turnTimer = TestFrames.hearthstoneFrame(9, turnTimerBody(i));
+            manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, seq, TestFrames.PSH_ACK, turnTimer));
+            seq += turnTimer.length;
+            if (i == 1) {
+                manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, seq, TestFrames.PSH_ACK, garbage));
+                seq += garbage.length;
+            }
+        }
+        PacketQueue inbound = queues.get(0).getInboundPackets();
+        for (int i = 1; i <= 3; i++) {
+            CapturePacket packet = inbound.next();
+            assertTrue(packet instanceof Packet009TurnTimer);
+            assertEquals(i, ((Packet009TurnTimer) packet).getSeconds());
+        }
+        assertEquals(1L, inbound.getPacketsLost());
+        manager.finishAll();
+    }
+
+    private void attachMidGame(boolean push) throws Exception {
+        List<CaptureQueue> queues = new ArrayList<>();
+        CaptureSessionManager manager = new CaptureSessionManager(queues::add, push);
+        manager.setAttach(true);
+        //  Not on the game port, still ignored
+        manager.accept(TestSegments.packet(client(0), 40000, SERVER, 1119, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(9, turnTimerBody(1))));
+        //  Starts with the tail of a frame sent before the capture began
+        byte[] first = TestFrames.hearthstoneFrame(9, turnTimerBody(1));
+        byte[] second = TestFrames.hearthstoneFrame(9, turnTimerBody(2));
+        byte[] third = TestFrames.hearthstoneFrame(9, turnTimerBody(3));
+        byte[] tail = {0x22, 0x05, 0x0A, 0x03, 0x61, 0x62, 0x63};
+        byte[] segment = new byte[tail.length + first.length + second.length];
+        System.arraycopy(tail, 0, segment, 0, tail.length);
+        System.arraycopy(first, 0, segment, tail.length, first.length);
+        System.arraycopy(second, 0, segment, tail.length + first.length, second.length);
+        manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, 1000L, TestFrames.PSH_ACK, segment));
+        manager.accept(TestSegments.packet(SERVER, 3724, client(0), 50000, 1000L + segment.length, TestFrames.PSH_ACK, third));
+        assertEquals(1, queues.size());
+        assertEquals(1, manager.getSessionsAttached());
+        CaptureQueue queue = queues.get(0);
+        for (int i = 1; i <= 3; i++) {
+            CapturePacket inbound = queue.getInboundPackets().next();
+            assertTrue(inbound instanceof Packet009TurnTimer);
+            assertEquals(i, ((Packet009TurnTimer) inbound).getSeconds());
+        }
+        manager.finishAll();
+    }
+
+    private static byte[] turnTimerBody(int seconds) {
+        return new byte[]{0x08, (byte) seconds, 0x10, 0x03, 0x18, 0x01};
+    }
+
+    private static int client(int i) {
+        return IP4Utils.ipToInt("10.0.0.1") + i;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet009TurnTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet168AuroraHandshake;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class PcapFileCapturerTest {
+
+    private static final int CLIENT = IP4Utils.ipToInt("192.168.1.2");
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10_000L)
+    public void testReplay() throws Exception {
+        byte[] handshake = TestFrames.hearthstoneFrame(168, new byte[0]);
+        //  seconds = 30, turn = 3, visible = true
+        byte[] turnTimer = TestFrames.hearthstoneFrame(9, new byte[]{0x08, 0x1E, 0x10, 0x03, 0x18, 0x01});
+        List<byte[]> frames = new ArrayList<>();
+        //  Unrelated connection that should be ignored
+        frames.add(TestFrames.ethernetFrame(CLIENT, 50001, SERVER, 1119, 1L, TestFrames.PSH_ACK, new byte[]{1, 2, 3}));
+        frames.add(TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, handshake));
+        frames.add(TestFrames.ethernetFrame(SERVER, 3724, CLIENT, 50000, 1000L, TestFrames.PSH_ACK, turnTimer));
+        //  Deliver the second inbound frame split across two out of order segments
+        long seq = 1000L + turnTimer.length;
+        frames.add(TestFrames.ethernetFrame(SERVER, 3724, CLIENT, 50000, seq + 5, TestFrames.PSH_ACK, copyOfRange(turnTimer, 5, turnTimer.length)));
+        frames.add(TestFrames.ethernetFrame(SERVER, 3724, CLIENT, 50000, seq, TestFrames.PSH_ACK, copyOfRange(turnTimer, 0, 5)));
+        frames.add(TestFrames.ethernetFrame(SERVER, 3724, CLIENT, 50000, seq + turnTimer.length, TestFrames.FIN, new byte[0]));
+        Path path = folder.newFile("game.pcap").toPath();
+        TestFrames.writePcap(path, frames, 1_400_000_000_000_000_000L);
+
+        PcapFileCapturer capturer = new PcapFileCapturer(path);
+        CaptureQueue queue = capturer.listen();
+        CapturePacket outbound = queue.getOutboundPackets().next();
+        assertTrue(outbound instanceof Packet168AuroraHandshake);
+        for (int i = 0; i < 2; i++) {
+            CapturePacket inbound = queue.getInboundPackets().next();
+            assertTrue(inbound instanceof Packet009TurnTimer);
+            assertEquals(30, ((Packet009TurnTimer) inbound).getSeconds());
+            assertEquals(3, ((Packet009TurnTimer) inbound).getTurn());
+            assertTrue(inbound.isInbound());
+        }
+        try {
+            queue.getInboundPackets().next();
+            fail("Expected end of stream");
+        } catch (InterruptedException expected) {
+        }
+        assertTrue(queue.getInboundPackets().isClosed());
+        assertEquals(frames.size(), capturer.getPacketsRead());
+        assertTrue(capturer.isFinished());
+        //  The recording is from 2014, which would show up as years on the wire if it were counted
+        assertTrue(CaptureLatency.getWireToReassembled().getMax() < 60L * 60L * 1_000_000_000L);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testNoGame() throws Exception {
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(TestFrames.ethernetFrame(CLIENT, 50001, SERVER, 1119, 1L, TestFrames.PSH_ACK, new byte[]{1, 2, 3}));
+        Path path = folder.newFile("empty.pcap").toPath();
+        TestFrames.writePcap(path, frames, 0L);
+        new PcapFileCapturer(path).listen();
+    }
+
+    private static byte[] copyOfRange(byte[] data, int from, int to) {
+        return java.util.Arrays.copyOfRange(data, from, to);
+    }
+}
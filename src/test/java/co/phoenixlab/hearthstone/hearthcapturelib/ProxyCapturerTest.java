@@ -0,0 +1,135 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet009TurnTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet168AuroraHandshake;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ProxyCapturerTest {
+
+    @Test(timeout = 10_000L)
+    public void testRelayAndDecode() throws Exception {
+        int turns = 50;
+        byte[] handshake = TestFrames.hearthstoneFrame(168, new byte[0]);
+        //  The recorded server stream, written in awkward chunks so frames straddle reads
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        for (int i = 0; i < turns; i++) {
+            recorded.write(TestFrames.hearthstoneFrame(9, new byte[]{0x08, (byte) i, 0x10, 0x03, 0x18, 0x01}));
+        }
+        byte[] serverStream = recorded.toByteArray();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        AtomicReference<byte[]> serverReceived = new AtomicReference<>();
+        try (ServerSocket standIn = new ServerSocket(0, 1, loopback);
+             ProxyCapturer capturer = new ProxyCapturer(new InetSocketAddress(loopback, 0),
+                     new InetSocketAddress(loopback, standIn.getLocalPort()))) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = standIn.accept()) {
+                    byte[] received = new byte[handshake.length];
+                    new DataInputStream(socket.getInputStream()).readFully(received);
+                    serverReceived.set(received);
+                    OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < serverStream.length; i += 7) {
+                        out.write(serverStream, i, Math.min(7, serverStream.length - i));
+                        out.flush();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            server.start();
+            byte[] clientReceived;
+            AtomicReference<CaptureQueue> queue = new AtomicReference<>();
+            Thread listener = new Thread(() -> {
+                try {
+                    queue.set(capturer.listen());
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            listener.start();
+            try (Socket client = new Socket(loopback, capturer.getLocalPort())) {
+                client.getOutputStream().write(handshake);
+                client.shutdownOutput();
+                InputStream in = client.getInputStream();
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[256];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    received.write(buffer, 0, read);
+                }
+                clientReceived = received.toByteArray();
+            }
+            listener.join();
+            server.join();
+            //  Relayed untouched both ways
+            assertArrayEquals(handshake, serverReceived.get());
+            assertArrayEquals(serverStream, clientReceived);
+            assertEquals(handshake.length, capturer.getOutboundBytes());
+            assertEquals(serverStream.length, capturer.getInboundBytes());
+            //  And decoded
+            CaptureQueue captureQueue = queue.get();
+            assertTrue(captureQueue.getOutboundPackets().next() instanceof Packet168AuroraHandshake);
+            for (int i = 0; i < turns; i++) {
+                CapturePacket packet = captureQueue.getInboundPackets().next();
+                assertTrue(packet instanceof Packet009TurnTimer);
+                assertEquals(i, ((Packet009TurnTimer) packet).getSeconds());
+                assertTrue(packet.isInbound());
+            }
+            try {
+                captureQueue.getInboundPackets().next();
+                fail("Expected end of stream");
+            } catch (InterruptedException expected) {
+            }
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void testInterruptListen() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ProxyCapturer capturer = new ProxyCapturer(new InetSocketAddress(loopback, 0), new InetSocketAddress(loopback, 1))) {
+            Thread.currentThread().interrupt();
+            try {
+                capturer.listen();
+                fail("Expected interrupt");
+            } catch (InterruptedException expected) {
+            }
+        }
+    }
+}
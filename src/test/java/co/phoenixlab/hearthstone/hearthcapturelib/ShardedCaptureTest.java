@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet009TurnTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.Packet168AuroraHandshake;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TestSegments;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardedCaptureTest {
+
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+
+    @Test(timeout = 10_000L)
+    public void testShardedSessions() throws Exception {
+        List<CaptureQueue> queues = Collections.synchronizedList(new ArrayList<>());
+        int gameCount = 40;
+        ShardedCapture capture = new ShardedCapture(queues::add, 4);
+        for (int i = 0; i < gameCount; i++) {
+            capture.accept(TestSegments.packet(client(i), 50000 + i, SERVER, 3724, 1L, TestFrames.PSH_ACK, TestFrames.hearthstoneFrame(168, new byte[0])));
+        }
+        for (int i = 0; i < gameCount; i++) {
+            //  Split the frame over three segments, the last two delivered in reverse order
+            byte[] turnTimer = TestFrames.hearthstoneFrame(9, new byte[]{0x08, (byte) i, 0x10, 0x03, 0x18, 0x01});
+            capture.accept(TestSegments.packet(SERVER, 3724, client(i), 50000 + i, 1000L, TestFrames.PSH_ACK, Arrays.copyOfRange(turnTimer, 0, 3)));
+            capture.accept(TestSegments.packet(SERVER, 3724, client(i), 50000 + i, 1007L, TestFrames.PSH_ACK, Arrays.copyOfRange(turnTimer, 7, turnTimer.length)));
+            capture.accept(TestSegments.packet(SERVER, 3724, client(i), 50000 + i, 1003L, TestFrames.PSH_ACK, Arrays.copyOfRange(turnTimer, 3, 7)));
+        }
+        capture.close();
+        assertEquals(gameCount, queues.size());
+        assertEquals(gameCount, capture.getSessionsStarted());
+        assertEquals(0, capture.getActiveSessionCount());
+        Set<Integer> seconds = new HashSet<>();
+        for (CaptureQueue queue : queues) {
+            assertTrue(queue.getOutboundPackets().next() instanceof Packet168AuroraHandshake);
+            CapturePacket inbound = queue.getInboundPackets().next();
+            assertTrue(inbound instanceof Packet009TurnTimer);
+            assertTrue(inbound.isInbound());
+            seconds.add(((Packet009TurnTimer) inbound).getSeconds());
+            try {
+                queue.getInboundPackets().next();
+                fail("Expected end of stream");
+            } catch (InterruptedException expected) {
+            }
+        }
+        assertEquals(gameCount, seconds.size());
+        long total = 0;
+        for (long count : capture.getShardPacketCounts()) {
+            assertTrue("Every shard should get some games", count > 0);
+            total += count;
+        }
+        assertEquals(gameCount * 4, total);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testExpiredSessionsAreCountedAcrossShards() throws Exception {
+        int shardCount = 4;
+        int gameCount = 20;
+        ShardedCapture capture = new ShardedCapture(queue -> {}, shardCount);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < gameCount; i++) {
+            capture.accept(TestSegments.packet(client(i), 50000 + i, SERVER, 3724, 1L, TestFrames.PSH_ACK,
+                    TestFrames.hearthstoneFrame(168, new byte[0]), start));
+        }
+        //  A packet of some other connection on every shard moves its clock past the games' idle timeout
+        long later = start + CaptureSessionManager.DEFAULT_SESSION_IDLE_TIMEOUT + 1000L;
+        boolean[] ticked = new boolean[shardCount];
+        int remaining = shardCount;
+        for (int i = 1000; remaining > 0; i++) {
+            TCPConnectionInfo info = new TCPConnectionInfo(client(i), 40000, SERVER, 1119);
+            int shard = ShardedCapture.shardOf(info, shardCount);
+            if (!ticked[shard]) {
+                ticked[shard] = true;
+                remaining--;
+                capture.accept(TestSegments.packet(client(i), 40000, SERVER, 1119, 1L, TestFrames.PSH_ACK, new byte[10], later));
+            }
+        }
+        capture.close();
+        assertEquals(gameCount, capture.getSessionsStarted());
+        assertEquals(gameCount, capture.getSessionsExpired());
+        assertEquals(0L, capture.getSessionsEvicted());
+        assertEquals(0, capture.getActiveSessionCount());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testCloseWhileAccepting() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BYTES_PER_CLASS, false);
+        //  A tiny inbox, so the capture thread is usually blocked on it when the capture is closed
+        ShardedCapture capture = new ShardedCapture(queue -> {}, 2, 1);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread capturer = new Thread(() -> {
+            for (int i = 0; !stop.get(); i++) {
+                BufferPool.Buffer buffer = pool.acquire(100);
+                TCPPacket packet = new TCPPacket(0L, new TCPConnectionInfo(client(i & 0xFF), 40000, SERVER, 1119), 1L, 0L,
+                        TestFrames.PSH_ACK, 0, buffer, 0, 100);
+                capture.accept(packet);
+                packet.release();
+            }
+        });
+        capturer.start();
+        Thread.sleep(50L);
+        capture.close();
+        //  Accepting after close must neither block nor keep buffers
+        Thread.sleep(50L);
+        stop.set(true);
+        capturer.join();
+        assertEquals(0L, pool.getOutstanding());
+    }
+
+    @Test
+    public void testShardIsSymmetric() {
+        for (int i = 0; i < 1000; i++) {
+            TCPConnectionInfo info = new TCPConnectionInfo(client(i), 50000 + i, SERVER, 3724);
+            assertEquals(ShardedCapture.shardOf(info, 7), ShardedCapture.shardOf(info.reverse(), 7));
+        }
+    }
+
+    private static int client(int i) {
+        return IP4Utils.ipToInt("10.0.0.1") + i;
+    }
+}
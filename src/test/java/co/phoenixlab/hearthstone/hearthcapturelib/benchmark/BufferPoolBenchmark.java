@@ -0,0 +1,137 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.benchmark;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TestSegments;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures allocation and garbage collection per captured segment with payloads copied into new arrays, as before pooling, and into
+ * {@link BufferPool} buffers. Segments of random size go through a {@link TCPSegmentReassembler} with 1% of them held out of order,
+ * and the capture thread releases each one once it has been handed over, as {@code NetInterfaceListener} does.
+ * <p>
+ * Run with {@code java -cp target/classes:target/test-classes:<deps> ...benchmark.BufferPoolBenchmark [segments] [runs]}. Allocation
+ * is measured with the HotSpot thread allocation counter.
+ *
+ * @author Vincent Zhang
+ */
+public class BufferPoolBenchmark {
+
+    public static void main(String[] args) {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        byte[] wire = new byte[65536];
+        new Random(1L).nextBytes(wire);
+        System.out.printf("%d segments per run, %d runs%n", segments, runs);
+        System.out.println("buffers    bytes/segment    ns/segment    young GCs    GC ms");
+        for (int run = 0; run <= runs; run++) {
+            //  The first run of each warms up
+            report("new", run, measure(wire, segments, null));
+            report("pooled", run, measure(wire, segments, new BufferPool(BufferPool.DEFAULT_BYTES_PER_CLASS, false)));
+        }
+    }
+
+    private static void report(String name, int run, long[] result) {
+        if (run > 0) {
+            System.out.printf("%-7s %16.1f %13.1f %12d %8d%n", name, result[0] / (double) result[4], result[1] / (double) result[4],
+                    result[2], result[3]);
+        }
+    }
+
+    /**
+     * @return Bytes allocated, nanoseconds, collections, collection milliseconds and segments.
+     */
+    private static long[] measure(byte[] wire, int segments, BufferPool pool) {
+        long[] delivered = new long[1];
+        byte[] copy = new byte[65536];
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler((packet, offset, length) -> {
+            packet.copyPayload(offset, copy, 0, length);
+            delivered[0] += length;
+        });
+        Random random = new Random(2L);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long gcs = collections();
+        long gcMillis = collectionMillis();
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        long seq = 0L;
+        TCPPacket held = null;
+        for (int i = 0; i < segments; i++) {
+            //  Mostly full sized segments, with some small ones
+            int length = random.nextInt(4) == 0 ? 8 + random.nextInt(200) : 1448;
+            TCPPacket packet;
+            if (pool == null) {
+                byte[] payload = new byte[length];
+                System.arraycopy(wire, i & 0x7FFF, payload, 0, length);
+                packet = new TCPPacket(0L, TestSegments.FLOW, seq, 0L, 0x18, payload);
+            } else {
+                BufferPool.Buffer buffer = pool.acquire(length);
+                System.arraycopy(wire, i & 0x7FFF, buffer.array(), 0, length);
+                packet = new TCPPacket(0L, TestSegments.FLOW, seq, 0L, 0x18, 0, buffer, 0, length);
+            }
+            seq = (seq + length) & 0xFFFFFFFFL;
+            if (held == null && i > 0 && random.nextInt(100) == 0) {
+                //  Arrives after the next one
+                held = packet;
+                continue;
+            }
+            reassembler.accept(packet);
+            packet.release();
+            if (held != null) {
+                reassembler.accept(held);
+                held.release();
+                held = null;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        if (delivered[0] == 0L) {
+            throw new IllegalStateException("Nothing delivered");
+        }
+        return new long[]{allocated, nanos, collections() - gcs, collectionMillis() - gcMillis, segments};
+    }
+
+    private static long collections() {
+        long count = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0L, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
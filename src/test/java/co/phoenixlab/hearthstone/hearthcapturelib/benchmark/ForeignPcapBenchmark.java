@@ -0,0 +1,212 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.benchmark;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.ForeignPcap;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.LinkLayer;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapFileReader;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.PcapRecord;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+import org.jnetpcap.JBufferHandler;
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapHeader;
+import org.jnetpcap.nio.JBuffer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Compares reading an offline capture through jNetPcap, the way {@code NetInterfaceListener} handles each frame, against
+ * {@link ForeignPcap} with {@code pcap_open_offline}, and against the pure Java {@link PcapFileReader} as a baseline. Each backend turns
+ * every TCP segment into a {@link TCPPacket}, so the numbers cover header parsing and the payload copy but not reassembly. jNetPcap and
+ * {@link ForeignPcap} both copy payloads into the default {@link BufferPool}, as live capture does.
+ * <p>
+ * {@link ForeignPcap} is only implemented in the Java 22 section of the jar, so run this against the packaged jar on Java 22 or later:
+ * {@code java --enable-native-access=ALL-UNNAMED -cp target/HearthCaptureLib-1.0-SNAPSHOT.jar:target/test-classes:<deps>
+ * ...benchmark.ForeignPcapBenchmark CAPTURE_FILE [iterations]}. Backends that aren't available are skipped.
+ *
+ * @author Vincent Zhang
+ */
+public class ForeignPcapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ForeignPcapBenchmark CAPTURE_FILE [iterations]");
+            return;
+        }
+        Path file = Paths.get(args[0]);
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Backend[] backends = {new JNetPcapBackend(), new ForeignBackend(), new JavaBackend()};
+        for (Backend backend : backends) {
+            try {
+                //  Warm up before timing anything
+                backend.read(file);
+            } catch (UnsupportedOperationException | LinkageError e) {
+                System.out.printf("%-8s unavailable: %s%n", backend.name(), e.toString());
+                continue;
+            }
+            long nanos = 0L;
+            for (int i = 0; i < iterations; i++) {
+                backend.reset();
+                long start = System.nanoTime();
+                backend.read(file);
+                nanos += System.nanoTime() - start;
+            }
+            double seconds = nanos / 1e9;
+            System.out.printf("%-8s %,12d frames %,12d segments %10.0f frames/s %8.1f MB/s%n", backend.name(), backend.frames,
+                    backend.segments, backend.frames * iterations / seconds, backend.bytes * iterations / seconds / 1e6);
+        }
+    }
+
+    private abstract static class Backend {
+
+        long frames;
+        long segments;
+        long bytes;
+        /**
+         * Keeps the packets from being optimized away.
+         */
+        long checksum;
+
+        abstract String name();
+
+        abstract void read(Path file) throws IOException;
+
+        void reset() {
+            frames = 0L;
+            segments = 0L;
+            bytes = 0L;
+        }
+
+        void accept(TCPPacket packet) {
+            segments++;
+            checksum += packet.seqNumber + packet.payloadLength;
+        }
+    }
+
+    /**
+     * Copies the headers and then the payload out of each JBuffer into a pooled buffer, as NetInterfaceListener's dispatch handler does.
+     */
+    private static class JNetPcapBackend extends Backend implements JBufferHandler<Object> {
+
+        private static final int HEADER_BYTES = 160;
+
+        private final byte[] headers = new byte[HEADER_BYTES];
+        private final TCPHeaderParser parser = new TCPHeaderParser();
+        private final BufferPool pool = BufferPool.getDefault();
+        private int linkType;
+
+        @Override
+        String name() {
+            return "jnetpcap";
+        }
+
+        @Override
+        void read(Path file) throws IOException {
+            StringBuilder errorBuilder = new StringBuilder();
+            Pcap pcap = Pcap.openOffline(file.toString(), errorBuilder);
+            if (pcap == null) {
+                throw new IOException(errorBuilder.toString());
+            }
+            try {
+                linkType = pcap.datalink();
+                while (pcap.dispatch(64, this, null) > 0) {
+                }
+            } finally {
+                pcap.close();
+            }
+        }
+
+        @Override
+        public void nextPacket(PcapHeader header, JBuffer buffer, Object user) {
+            int capturedBytes = header.caplen();
+            frames++;
+            bytes += capturedBytes;
+            int headerBytes = Math.min(capturedBytes, HEADER_BYTES);
+            buffer.getByteArray(0, headers, 0, headerBytes);
+            int ip4Offset = LinkLayer.ip4Offset(linkType, headers, headerBytes);
+            if (ip4Offset < 0 || !parser.parse(headers, ip4Offset, headerBytes - ip4Offset, capturedBytes - ip4Offset)) {
+                return;
+            }
+            int payloadLength = parser.getPayloadLength();
+            if (payloadLength == 0) {
+                accept(parser.toPacket(TCPPacket.NO_PAYLOAD, 0, header.timestampInNanos()));
+                return;
+            }
+            BufferPool.Buffer payload = pool.acquire(payloadLength);
+            buffer.getByteArray(parser.getPayloadOffset(), payload.array(), 0, payloadLength);
+            TCPPacket packet = parser.toPacket(payload, 0, header.timestampInNanos());
+            accept(packet);
+            packet.release();
+        }
+    }
+
+    private static class ForeignBackend extends Backend {
+
+        @Override
+        String name() {
+            return "ffm";
+        }
+
+        @Override
+        void read(Path file) throws IOException {
+            try (ForeignPcap pcap = ForeignPcap.openOffline(file)) {
+                while (pcap.dispatch(64, this::accept) >= 0) {
+                }
+                frames += pcap.getPacketsRead();
+                bytes += pcap.getBytesRead();
+            }
+        }
+    }
+
+    private static class JavaBackend extends Backend {
+
+        private final TCPHeaderParser parser = new TCPHeaderParser();
+        private final PcapRecord record = new PcapRecord();
+
+        @Override
+        String name() {
+            return "java";
+        }
+
+        @Override
+        void read(Path file) throws IOException {
+            try (PcapFileReader reader = new PcapFileReader(file)) {
+                while (reader.next(record)) {
+                    frames++;
+                    bytes += record.getCapturedLength();
+                    int ip4Offset = LinkLayer.ip4Offset(record.getLinkType(), record.getData(), record.getCapturedLength());
+                    int datagramLength = record.getCapturedLength() - ip4Offset;
+                    if (ip4Offset >= 0 && parser.parse(record.getData(), ip4Offset, datagramLength, datagramLength)) {
+                        accept(parser.copyPacket(record.getData(), record.getTimestampNanos()));
+                    }
+                }
+            }
+        }
+    }
+}
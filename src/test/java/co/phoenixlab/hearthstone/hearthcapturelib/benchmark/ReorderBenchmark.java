@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.benchmark;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPSegmentReassembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPStreamAssembler;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TestSegments;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Measures reassembly throughput of {@link TCPSegmentReassembler} and {@link TCPStreamAssembler} on a synthetic stream with 0 to 5%
+ * of segments reordered, and the same share lost and retransmitted later as differently sized, overlapping segments. The stream
+ * starts just before the sequence number wraparound, and every run checks that the reassembled bytes match what was sent.
+ * <p>
+ * Run with {@code java -cp target/classes:target/test-classes:<deps> ...benchmark.ReorderBenchmark [megabytes] [runs]}.
+ *
+ * @author Vincent Zhang
+ */
+public class ReorderBenchmark {
+
+    private static final int MSS = 1400;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] data = new byte[megabytes << 20];
+        new Random(1L).nextBytes(data);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        long expected = crc.getValue();
+        System.out.printf("%d MB stream, %d byte segments, best of %d runs%n", megabytes, MSS, runs);
+        System.out.println("disorder   reassembler MB/s   stream assembler MB/s");
+        for (int percent = 0; percent <= 5; percent++) {
+            List<TCPPacket> packets = segments(data, percent / 100.0, new Random(percent));
+            long reassembler = Long.MAX_VALUE;
+            long stream = Long.MAX_VALUE;
+            //  The first run of each warms up
+            for (int run = 0; run <= runs; run++) {
+                long nanos = runReassembler(packets, expected);
+                long streamNanos = runStreamAssembler(packets, expected);
+                if (run > 0) {
+                    reassembler = Math.min(reassembler, nanos);
+                    stream = Math.min(stream, streamNanos);
+                }
+            }
+            System.out.printf("%7d%%   %17.0f   %21.0f%n", percent,
+                    data.length / 1048576.0 * 1e9 / reassembler, data.length / 1048576.0 * 1e9 / stream);
+        }
+    }
+
+    /**
+     * Cuts the stream into segments, then swaps {@code rate} of them with a later one, and drops {@code rate} of them, sending each
+     * dropped one again later as two segments that overlap the ones around it.
+     */
+    private static List<TCPPacket> segments(byte[] data, double rate, Random random) {
+        long start = 0xFFFFFFFFL - data.length / 2;
+        List<TCPPacket> packets = new ArrayList<>();
+        List<int[]> lost = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += MSS) {
+            int length = Math.min(MSS, data.length - offset);
+            //  The first segment always arrives first, since it starts the stream
+            if (offset > 0 && random.nextDouble() < rate) {
+                //  Retransmitted after a few more segments have gone by
+                lost.add(new int[]{offset, length, packets.size() + 4 + random.nextInt(16)});
+            } else {
+                packets.add(TestSegments.segment((start + offset) & 0xFFFFFFFFL, data, offset, length));
+            }
+            for (int i = 0; i < lost.size(); i++) {
+                int[] retransmit = lost.get(i);
+                if (retransmit[2] <= packets.size()) {
+                    int from = Math.max(0, retransmit[0] - MSS / 4);
+                    int split = retransmit[0] + retransmit[1] / 2;
+                    int to = Math.min(data.length, retransmit[0] + retransmit[1] + MSS / 4);
+                    packets.add(TestSegments.segment((start + from) & 0xFFFFFFFFL, data, from, split - from));
+                    packets.add(TestSegments.segment((start + split) & 0xFFFFFFFFL, data, split, to - split));
+                    lost.remove(i--);
+                }
+            }
+        }
+        for (int[] retransmit : lost) {
+            packets.add(TestSegments.segment((start + retransmit[0]) & 0xFFFFFFFFL, data, retransmit[0], retransmit[1]));
+        }
+        for (int i = 1; i < packets.size() - 1; i++) {
+            if (random.nextDouble() < rate) {
+                int j = Math.min(packets.size() - 1, i + 1 + random.nextInt(8));
+                packets.set(i, packets.set(j, packets.get(i)));
+            }
+        }
+        return packets;
+    }
+
+    private static long runReassembler(List<TCPPacket> packets, long expected) {
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[MSS * 2];
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler((packet, offset, length) -> {
+            packet.copyPayload(offset, payload, 0, length);
+            crc.update(payload, 0, length);
+        });
+        long start = System.nanoTime();
+        for (TCPPacket packet : packets) {
+            reassembler.accept(packet);
+        }
+        long nanos = System.nanoTime() - start;
+        check("TCPSegmentReassembler", crc.getValue(), expected);
+        return nanos;
+    }
+
+    private static long runStreamAssembler(List<TCPPacket> packets, long expected) throws InterruptedException {
+        CRC32 crc = new CRC32();
+        TCPStreamAssembler assembler = new TCPStreamAssembler();
+        Thread consumer = new Thread(() -> {
+            byte[] buffer = new byte[65536];
+            try {
+                int read;
+                while ((read = assembler.read(buffer, 0, buffer.length)) >= 0) {
+                    crc.update(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "Stream consumer");
+        long start = System.nanoTime();
+        consumer.start();
+        for (TCPPacket packet : packets) {
+            assembler.acceptTCPPacket(packet);
+        }
+        assembler.finish();
+        consumer.join();
+        long nanos = System.nanoTime() - start;
+        check("TCPStreamAssembler", crc.getValue(), expected);
+        return nanos;
+    }
+
+    private static void check(String name, long crc, long expected) {
+        if (crc != expected) {
+            throw new IllegalStateException(name + " reassembled the wrong bytes");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.benchmark;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.CaptureQueue;
+import co.phoenixlab.hearthstone.hearthcapturelib.PacketQueue;
+import co.phoenixlab.hearthstone.hearthcapturelib.ShardedCapture;
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPConnectionInfo;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how decode throughput of {@link ShardedCapture} scales from 1 shard up to one per processor, on synthetic games.
+ * <p>
+ * Run with {@code java -cp target/classes:target/test-classes:<deps> ...benchmark.ShardScalingBenchmark [games] [packetsPerGame] [maxShards]}.
+ *
+ * @author Vincent Zhang
+ */
+public class ShardScalingBenchmark {
+
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+
+    public static void main(String[] args) throws Exception {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int packetsPerGame = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int maxShards = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        List<TCPPacket> packets = buildGames(games, packetsPerGame);
+        System.out.printf("%d games, %d packets, up to %d shards%n", games, packets.size(), maxShards);
+        //  Warm up the decoders before timing anything
+        run(packets, maxShards);
+        for (int shards = 1; ; shards = Math.min(shards * 2, maxShards)) {
+            long nanos = run(packets, shards);
+            System.out.printf("%2d shards: %8.1f ms, %10.0f packets/s%n", shards, nanos / 1e6, packets.size() * 1e9 / nanos);
+            if (shards == maxShards) {
+                break;
+            }
+        }
+    }
+
+    private static long run(List<TCPPacket> packets, int shards) {
+        AtomicLong decoded = new AtomicLong();
+        List<Thread> consumers = Collections.synchronizedList(new ArrayList<>());
+        long start = System.nanoTime();
+        ShardedCapture capture = new ShardedCapture(queue -> consumers.add(drain(queue, decoded)), shards, 65536);
+        for (TCPPacket packet : packets) {
+            capture.accept(packet);
+        }
+        capture.close();
+        long nanos = System.nanoTime() - start;
+        for (Thread consumer : new ArrayList<>(consumers)) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return nanos;
+    }
+
+    private static Thread drain(CaptureQueue queue, AtomicLong decoded) {
+        Thread thread = new Thread(() -> {
+            drain(queue.getInboundPackets(), decoded);
+            drain(queue.getOutboundPackets(), decoded);
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void drain(PacketQueue queue, AtomicLong decoded) {
+        try {
+            while (queue.next() != null) {
+                decoded.incrementAndGet();
+            }
+        } catch (InterruptedException endOfStream) {
+        }
+    }
+
+    private static List<TCPPacket> buildGames(int games, int packetsPerGame) {
+        long now = System.currentTimeMillis() * 1_000_000L;
+        List<TCPPacket> packets = new ArrayList<>(games * (packetsPerGame + 1));
+        long[] seqs = new long[games];
+        for (int g = 0; g < games; g++) {
+            byte[] handshake = TestFrames.hearthstoneFrame(168, new byte[0]);
+            packets.add(new TCPPacket(now, flow(g).reverse(), 1L, 0L, TestFrames.PSH_ACK, handshake));
+            seqs[g] = 1000L;
+        }
+        //  Interleave the games the way a busy tap would see them
+        for (int p = 0; p < packetsPerGame; p++) {
+            for (int g = 0; g < games; g++) {
+                byte[] frame = TestFrames.hearthstoneFrame(9, new byte[]{0x08, (byte) p, 0x10, 0x03, 0x18, 0x01});
+                packets.add(new TCPPacket(now, flow(g), seqs[g], 0L, TestFrames.PSH_ACK, frame));
+                seqs[g] += frame.length;
+            }
+        }
+        return packets;
+    }
+
+    private static TCPConnectionInfo flow(int game) {
+        return new TCPConnectionInfo(SERVER, 3724, IP4Utils.ipToInt("10.0.0.1") + game, 50000 + game);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.benchmark;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.CaptureEngine;
+import co.phoenixlab.hearthstone.hearthcapturelib.CaptureQueue;
+import co.phoenixlab.hearthstone.hearthcapturelib.HearthCaptureLib;
+import co.phoenixlab.hearthstone.hearthcapturelib.InterfaceStatistics;
+import co.phoenixlab.hearthstone.hearthcapturelib.PcapFileCapturer;
+import co.phoenixlab.hearthstone.hearthcapturelib.packets.CapturePacket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long it takes to get going, cold and after {@link CaptureEngine#prepare()}. Every run is a fresh JVM, since class
+ * loading and reflection setup are most of what's being measured.
+ * <ul>
+ * <li>{@code file CAPTURE_FILE} replays a capture containing a game with {@link PcapFileCapturer} and times the first decoded packet,
+ * warm runs calling {@link HearthCaptureLib#prepareDecoders()} first.</li>
+ * <li>{@code live} times how long it takes for every interface to have an open, filtered capture handle, warm runs calling
+ * {@link CaptureEngine#prepare()} first. Needs the jNetPcap native library and capture permissions.</li>
+ * </ul>
+ * Usage: {@code StartupBenchmark file CAPTURE_FILE [runs]} or {@code StartupBenchmark live [runs]}. Prints the median of each phase in
+ * milliseconds, where "jvm" counts from JVM start and "prepare" is the time spent preparing in warm runs.
+ *
+ * @author Vincent Zhang
+ */
+public class StartupBenchmark {
+
+    private static final String RESULT = "RESULT ";
+    /**
+     * How long a live run waits for every interface to open, in milliseconds.
+     */
+    private static final long LIVE_TIMEOUT = 10_000L;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && "run".equals(args[0])) {
+            run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        boolean live = args.length >= 1 && "live".equals(args[0]);
+        if (args.length < 1 || (!live && (args.length < 2 || !"file".equals(args[0])))) {
+            System.err.println("Usage: StartupBenchmark file CAPTURE_FILE [runs] | live [runs]");
+            return;
+        }
+        int runs = Integer.parseInt(args.length > (live ? 1 : 2) ? args[live ? 1 : 2] : "5");
+        for (String mode : new String[]{"cold", "warm"}) {
+            List<long[]> results = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                List<String> command = new ArrayList<>(Arrays.asList(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        StartupBenchmark.class.getName(), "run", mode));
+                command.addAll(Arrays.asList(args));
+                results.add(fork(command));
+            }
+            System.out.printf("%s  prepare %7.1f ms  start %7.1f ms  jvm %7.1f ms%n", mode, median(results, 0) / 1e6,
+                    median(results, 1) / 1e6, median(results, 2) / 1e6);
+        }
+    }
+
+    private static long[] fork(List<String> command) throws Exception {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        long[] result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    String[] parts = line.substring(RESULT.length()).split(" ");
+                    result = new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("Benchmark run failed: " + String.join(" ", command));
+        }
+        return result;
+    }
+
+    private static long median(List<long[]> results, int index) {
+        List<Long> values = new ArrayList<>();
+        for (long[] result : results) {
+            values.add(result[index]);
+        }
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+
+    /**
+     * A single run in a fresh JVM. Prints the prepare time, the time from starting to capture until the milestone, and the time from
+     * JVM start until the milestone, all in nanoseconds.
+     */
+    private static void run(String[] args) throws Exception {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        boolean warm = "warm".equals(args[0]);
+        boolean live = "live".equals(args[1]);
+        long prepareStart = System.nanoTime();
+        CaptureEngine engine = live ? new CaptureEngine() : null;
+        if (warm) {
+            if (live) {
+                engine.prepare();
+            } else {
+                HearthCaptureLib.prepareDecoders();
+            }
+        }
+        long start = System.nanoTime();
+        if (live) {
+            engine.listenContinuously(queue -> {
+            });
+            //  Interfaces that can't be opened never will be, so don't wait on them forever
+            long deadline = System.currentTimeMillis() + LIVE_TIMEOUT;
+            while (!allOpen(engine.getStatistics()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1L);
+            }
+            engine.close();
+        } else {
+            CaptureQueue queue = new PcapFileCapturer(new File(args[2]).toPath()).listen();
+            CapturePacket first = queue.getOutboundPackets().next();
+            if (first == null) {
+                throw new IllegalStateException("No packets decoded");
+            }
+        }
+        long end = System.nanoTime();
+        long sinceJvmStart = (System.currentTimeMillis() - jvmStart) * 1_000_000L;
+        System.out.println(RESULT + (start - prepareStart) + " " + (end - start) + " " + sinceJvmStart);
+        System.exit(0);
+    }
+
+    private static boolean allOpen(List<InterfaceStatistics> statistics) {
+        for (InterfaceStatistics interfaceStatistics : statistics) {
+            if (!interfaceStatistics.open) {
+                return false;
+            }
+        }
+        return !statistics.isEmpty();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPHeaderParser;
+import co.phoenixlab.hearthstone.hearthcapturelib.tcp.TCPPacket;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PcapFileReaderTest {
+
+    private static final long START = 1_400_000_000_123_456_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] first = TestFrames.ethernetFrame(IP4Utils.ipToInt("192.168.1.2"), 50000, IP4Utils.ipToInt("12.130.244.193"), 3724,
+            0xFFFFFFF0L, TestFrames.PSH_ACK, new byte[]{(byte) 0xA8, 0, 0, 0});
+    private final byte[] second = TestFrames.ethernetFrame(IP4Utils.ipToInt("12.130.244.193"), 3724, IP4Utils.ipToInt("192.168.1.2"), 50000,
+            1000L, TestFrames.FIN, new byte[0]);
+
+    @Test
+    public void testReadPcap() throws Exception {
+        Path path = folder.newFile("test.pcap").toPath();
+        TestFrames.writePcap(path, Arrays.asList(first, second), START);
+        try (PcapFileReader reader = new PcapFileReader(path)) {
+            assertFalse(reader.isPcapng());
+            assertRecords(reader, 1_000L);
+        }
+    }
+
+    @Test
+    public void testReadPcapng() throws Exception {
+        Path path = folder.newFile("test.pcapng").toPath();
+        TestFrames.writePcapng(path, Arrays.asList(first, second), START);
+        try (PcapFileReader reader = new PcapFileReader(path)) {
+            assertTrue(reader.isPcapng());
+            assertRecords(reader, 1L);
+        }
+    }
+
+    private void assertRecords(PcapFileReader reader, long timestampStep) throws Exception {
+        PcapRecord record = new PcapRecord();
+        assertTrue(reader.next(record));
+        assertEquals(START, record.getTimestampNanos());
+        assertEquals(PcapFileReader.LINKTYPE_ETHERNET, record.getLinkType());
+        assertEquals(first.length, record.getCapturedLength());
+        assertArrayEquals(first, Arrays.copyOf(record.getData(), record.getCapturedLength()));
+        int offset = LinkLayer.ip4Offset(record.getLinkType(), record.getData(), record.getCapturedLength());
+        assertEquals(14, offset);
+        TCPHeaderParser parser = new TCPHeaderParser();
+        int datagramLength = record.getCapturedLength() - offset;
+        assertTrue(parser.parse(record.getData(), offset, datagramLength, datagramLength));
+        TCPPacket packet = parser.copyPacket(record.getData(), record.getTimestampNanos());
+        assertEquals(IP4Utils.ipToInt("192.168.1.2"), packet.connectionInfo.sourceIPAddr);
+        assertEquals(50000, packet.connectionInfo.sourcePort);
+        assertEquals(IP4Utils.ipToInt("12.130.244.193"), packet.connectionInfo.destinationIPAddr);
+        assertEquals(3724, packet.connectionInfo.destinationPort);
+        assertEquals(0xFFFFFFF0L, packet.seqNumber);
+        assertEquals(TestFrames.PSH_ACK, packet.tcpFlags);
+        assertArrayEquals(new byte[]{(byte) 0xA8, 0, 0, 0}, packet.getPayload());
+
+        assertTrue(reader.next(record));
+        assertEquals(START + timestampStep, record.getTimestampNanos());
+        assertArrayEquals(second, Arrays.copyOf(record.getData(), record.getCapturedLength()));
+        assertFalse(reader.next(record));
+    }
+}
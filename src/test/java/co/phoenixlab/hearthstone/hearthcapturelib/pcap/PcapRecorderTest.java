@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PcapRecorderTest {
+
+    private static final long START = 1_400_000_000_123_456_789L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 10_000L)
+    public void testRecordAndRotate() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("recordings");
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            frames.add(frame(i));
+        }
+        //  A small ring wraps many times, and small files rotate every few frames
+        PcapRecorder recorder = new PcapRecorder(directory, "eth0", PcapFileReader.LINKTYPE_ETHERNET, 65535, 4096, 1024, 0);
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            while (!recorder.record(START + i, frame, 0, frame.length, frame.length)) {
+                Thread.sleep(1L);
+            }
+        }
+        recorder.close();
+        assertEquals(frames.size(), recorder.getFramesRecorded());
+        assertFalse(recorder.record(START, frames.get(0), 0, frames.get(0).length, frames.get(0).length));
+        List<Path> files = files(directory);
+        assertTrue(files.size() > 1);
+        PcapRecord record = new PcapRecord();
+        int count = 0;
+        for (Path file : files) {
+            assertTrue(Files.size(file) <= 1024);
+            try (PcapFileReader reader = new PcapFileReader(file)) {
+                while (reader.next(record)) {
+                    assertEquals(START + count, record.getTimestampNanos());
+                    assertEquals(PcapFileReader.LINKTYPE_ETHERNET, record.getLinkType());
+                    assertArrayEquals(frames.get(count), Arrays.copyOf(record.getData(), record.getCapturedLength()));
+                    count++;
+                }
+            }
+        }
+        assertEquals(frames.size(), count);
+    }
+
+    @Test(timeout = 10_000L)
+    public void testOldFilesDeleted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (PcapRecorder recorder = new PcapRecorder(directory, "lo", PcapFileReader.LINKTYPE_ETHERNET, 65535, 1 << 16, 512, 3)) {
+            //  Frames bigger than the ring are dropped rather than written in part
+            byte[] huge = new byte[1 << 17];
+            assertFalse(recorder.record(START, huge, 0, huge.length, huge.length));
+            assertEquals(1, recorder.getFramesDropped());
+            for (int i = 0; i < 50; i++) {
+                byte[] frame = frame(i);
+                assertTrue(recorder.record(START + i, frame, 0, frame.length, frame.length));
+            }
+        }
+        List<Path> files = files(directory);
+        assertEquals(3, files.size());
+        //  The newest files are the ones kept
+        PcapRecord record = new PcapRecord();
+        Path last = files.get(files.size() - 1);
+        long lastTimestamp = 0L;
+        try (PcapFileReader reader = new PcapFileReader(last)) {
+            while (reader.next(record)) {
+                lastTimestamp = record.getTimestampNanos();
+            }
+        }
+        assertEquals(START + 49, lastTimestamp);
+    }
+
+    private static byte[] frame(int i) {
+        return TestFrames.ethernetFrame(IP4Utils.ipToInt("192.168.1.2"), 50000, IP4Utils.ipToInt("12.130.244.193"), 3724,
+                1000L + i, TestFrames.PSH_ACK, new byte[]{(byte) i, 1, 2, 3, 4, 5, 6, 7});
+    }
+
+    private static List<Path> files(Path directory) throws Exception {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.pcap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Builds synthetic Ethernet/IPv4/TCP frames and capture files for tests.
+ */
+public class TestFrames {
+
+    public static final int FIN = 0x01;
+    public static final int PSH_ACK = 0x18;
+
+    public static byte[] ethernetFrame(int sourceIp, int sourcePort, int destinationIp, int destinationPort, long seq, int flags, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(14 + 20 + 20 + payload.length).order(ByteOrder.BIG_ENDIAN);
+        //  Ethernet
+        buffer.put(new byte[12]);
+        buffer.putShort((short) 0x0800);
+        //  IPv4
+        buffer.put((byte) 0x45);
+        buffer.put((byte) 0);
+        buffer.putShort((short) (20 + 20 + payload.length));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0x4000);
+        buffer.put((byte) 64);
+        buffer.put((byte) 6);
+        buffer.putShort((short) 0);
+        buffer.putInt(sourceIp);
+        buffer.putInt(destinationIp);
+        //  TCP
+        buffer.putShort((short) sourcePort);
+        buffer.putShort((short) destinationPort);
+        buffer.putInt((int) seq);
+        buffer.putInt(0);
+        buffer.put((byte) 0x50);
+        buffer.put((byte) flags);
+        buffer.putShort((short) 0xFFFF);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Builds a Hearthstone frame: little endian packet ID and body length followed by the body.
+     */
+    public static byte[] hearthstoneFrame(int packetId, byte[] body) {
+        return ByteBuffer.allocate(8 + body.length).order(ByteOrder.LITTLE_ENDIAN).
+                putInt(packetId).
+                putInt(body.length).
+                put(body).
+                array();
+    }
+
+    public static void writePcap(Path path, List<byte[]> frames, long startNanos) throws IOException {
+        int size = 24;
+        for (byte[] frame : frames) {
+            size += 16 + frame.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(PcapFileReader.PCAP_MAGIC_MICROS);
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 4);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(65535);
+        buffer.putInt(PcapFileReader.LINKTYPE_ETHERNET);
+        long micros = startNanos / 1000L;
+        for (byte[] frame : frames) {
+            buffer.putInt((int) (micros / 1_000_000L));
+            buffer.putInt((int) (micros % 1_000_000L));
+            buffer.putInt(frame.length);
+            buffer.putInt(frame.length);
+            buffer.put(frame);
+            micros++;
+        }
+        Files.write(path, buffer.array());
+    }
+
+    public static void writePcapng(Path path, List<byte[]> frames, long startNanos) throws IOException {
+        int size = 28 + 32;
+        for (byte[] frame : frames) {
+            size += 32 + ((frame.length + 3) & ~3);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        //  Section header
+        buffer.putInt(PcapFileReader.PCAPNG_SECTION_HEADER);
+        buffer.putInt(28);
+        buffer.putInt(PcapFileReader.PCAPNG_BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putLong(-1L);
+        buffer.putInt(28);
+        //  Interface description with nanosecond resolution
+        buffer.putInt(PcapFileReader.PCAPNG_INTERFACE_DESCRIPTION);
+        buffer.putInt(32);
+        buffer.putShort((short) PcapFileReader.LINKTYPE_ETHERNET);
+        buffer.putShort((short) 0);
+        buffer.putInt(65535);
+        buffer.putShort((short) 9);
+        buffer.putShort((short) 1);
+        buffer.put((byte) 9);
+        buffer.put(new byte[3]);
+        buffer.putInt(0);
+        buffer.putInt(32);
+        long nanos = startNanos;
+        for (byte[] frame : frames) {
+            int padded = (frame.length + 3) & ~3;
+            buffer.putInt(PcapFileReader.PCAPNG_ENHANCED_PACKET);
+            buffer.putInt(32 + padded);
+            buffer.putInt(0);
+            buffer.putInt((int) (nanos >>> 32));
+            buffer.putInt((int) nanos);
+            buffer.putInt(frame.length);
+            buffer.putInt(frame.length);
+            buffer.put(frame);
+            buffer.put(new byte[padded - frame.length]);
+            buffer.putInt(32 + padded);
+            nanos++;
+        }
+        Files.write(path, buffer.array());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class AddressClassifierTest {
+
+    @Test
+    public void testBuiltIn() {
+        AddressClassifier classifier = AddressClassifier.builtIn();
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("10.1.2.3")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("172.16.0.1")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("172.31.255.255")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("192.168.1.2")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("127.0.0.1")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("169.254.10.20")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("100.64.0.1")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("0.0.0.0")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("172.32.0.1")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("100.128.0.1")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("12.130.244.193")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("255.255.255.255")));
+    }
+
+    @Test
+    public void testExtraRanges() {
+        AddressClassifier classifier = AddressClassifier.builtIn()
+                .withLocalRanges("25.0.0.0/8")
+                .withRemoteRanges("192.168.1.10")
+                .withLocalAddresses(Collections.singletonList(IP4Utils.ipToInt("203.0.113.7")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("25.4.5.6")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("203.0.113.7")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("203.0.113.8")));
+        assertTrue(classifier.isRemote(IP4Utils.ipToInt("192.168.1.10")));
+        assertFalse(classifier.isRemote(IP4Utils.ipToInt("192.168.1.11")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        AddressClassifier.builtIn().withLocalRanges("10.0.0.0/33");
+    }
+
+    @Test
+    public void testConnectionInfo() {
+        AddressClassifier classifier = AddressClassifier.builtIn().withLocalRanges("25.0.0.0/8");
+        TCPConnectionInfo info = new TCPConnectionInfo(IP4Utils.ipToInt("25.1.1.1"), 50000, IP4Utils.ipToInt("12.130.244.193"), 3724,
+                classifier);
+        assertFalse(info.isSourceRemote());
+        assertTrue(info.isDestinationRemote());
+        assertEquals(FlowTable.key(IP4Utils.ipToInt("12.130.244.193"), 3724), info.getRemoteAddressKey());
+        TCPConnectionInfo reverse = info.reverse();
+        assertTrue(reverse.isSourceRemote());
+        assertFalse(reverse.isDestinationRemote());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlowTableTest {
+
+    private static final long SERVER = FlowTable.key(IP4Utils.ipToInt("12.130.244.193"), 3724);
+    private static final long OTHER = FlowTable.key(IP4Utils.ipToInt("12.130.244.193"), 1119);
+
+    @Test
+    public void testPutGetRemove() {
+        FlowTable table = new FlowTable(16, 1000L);
+        assertEquals(FlowTable.UNKNOWN, table.get(SERVER, 0L));
+        table.put(SERVER, FlowTable.BLACKLISTED, 0L);
+        table.put(OTHER, FlowTable.ACTIVE, 0L);
+        assertEquals(FlowTable.BLACKLISTED, table.get(SERVER, 10L));
+        assertEquals(FlowTable.ACTIVE, table.get(OTHER, 10L));
+        assertEquals(2, table.size());
+        assertTrue(table.remove(SERVER));
+        assertFalse(table.remove(SERVER));
+        assertEquals(FlowTable.UNKNOWN, table.get(SERVER, 10L));
+        assertEquals(FlowTable.ACTIVE, table.get(OTHER, 10L));
+    }
+
+    @Test
+    public void testExpiry() {
+        FlowTable table = new FlowTable(16, 1000L);
+        table.put(SERVER, FlowTable.BLACKLISTED, 0L);
+        table.put(OTHER, FlowTable.BLACKLISTED, 0L);
+        //  Seeing a flow keeps it alive
+        assertEquals(FlowTable.BLACKLISTED, table.get(SERVER, 900L));
+        assertEquals(FlowTable.BLACKLISTED, table.get(SERVER, 1800L));
+        assertEquals(FlowTable.UNKNOWN, table.get(OTHER, 1800L));
+        assertEquals(1L, table.getExpiredEvictions());
+        table.evictExpired(5000L);
+        assertEquals(0, table.size());
+        assertEquals(2L, table.getExpiredEvictions());
+    }
+
+    @Test
+    public void testCapacityEviction() {
+        FlowTable table = new FlowTable(4, 1_000_000L);
+        for (int i = 0; i < 4; i++) {
+            table.put(FlowTable.key(i, 3724), FlowTable.BLACKLISTED, i);
+        }
+        assertEquals(1D, table.getOccupancy(), 0D);
+        //  Seen again, so each gets a second chance
+        for (int i = 1; i < 4; i++) {
+            assertEquals(FlowTable.BLACKLISTED, table.get(FlowTable.key(i, 3724), 5L));
+        }
+        table.put(SERVER, FlowTable.BLACKLISTED, 10L);
+        assertEquals(4, table.size());
+        assertEquals(1L, table.getCapacityEvictions());
+        //  The only flow not seen since it was added made room
+        assertEquals(FlowTable.UNKNOWN, table.get(FlowTable.key(0, 3724), 10L));
+        assertEquals(FlowTable.BLACKLISTED, table.get(SERVER, 10L));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(FlowTable.BLACKLISTED, table.get(FlowTable.key(i, 3724), 10L));
+        }
+    }
+
+    @Test
+    public void testClockPrefersExpired() {
+        FlowTable table = new FlowTable(4, 1000L);
+        for (int i = 0; i < 4; i++) {
+            table.put(FlowTable.key(i, 3724), FlowTable.BLACKLISTED, i == 2 ? 0L : 900L);
+        }
+        for (int i : new int[]{0, 1, 3}) {
+            table.get(FlowTable.key(i, 3724), 900L);
+        }
+        //  Recently swept, so only the clock hand can find the expired flow
+        table.evictExpired(900L);
+        table.put(SERVER, FlowTable.BLACKLISTED, 1500L);
+        assertEquals(4, table.size());
+        assertEquals(0L, table.getCapacityEvictions());
+        assertEquals(1L, table.getExpiredEvictions());
+        assertEquals(FlowTable.UNKNOWN, table.get(FlowTable.key(2, 3724), 1500L));
+    }
+
+    @Test
+    public void testMatchesMap() {
+        //  Random operations against a HashMap, to exercise probing and backward shift deletion
+        FlowTable table = new FlowTable(256, Long.MAX_VALUE / 4);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(1119L);
+        for (int i = 0; i < 100_000; i++) {
+            long key = FlowTable.key(random.nextInt(8), random.nextInt(64));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, table.remove(key));
+            } else if (expected.size() < 256 || expected.containsKey(key)) {
+                int state = random.nextBoolean() ? FlowTable.ACTIVE : FlowTable.BLACKLISTED;
+                table.put(key, state, 0L);
+                expected.put(key, state);
+            }
+            assertEquals(expected.size(), table.size());
+            assertEquals((int) expected.getOrDefault(key, FlowTable.UNKNOWN), table.get(key, 0L));
+        }
+    }
+}
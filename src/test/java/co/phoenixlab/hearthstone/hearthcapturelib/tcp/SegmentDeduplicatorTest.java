@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SegmentDeduplicatorTest {
+
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+    private static final int CLIENT = IP4Utils.ipToInt("192.168.1.20");
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    public void testDuplicateWithinWindow() {
+        SegmentDeduplicator deduplicator = new SegmentDeduplicator(1024, 1000L);
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x18, 0L));
+        //  Same segment seen on a second interface
+        assertTrue(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x18, 5 * MILLIS));
+        //  Different direction, sequence number, checksum or flags
+        assertFalse(deduplicator.isDuplicate(CLIENT, 50000, SERVER, 3724, 1000L, 100, 0xBEEF, 0x18, 5 * MILLIS));
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1100L, 100, 0xBEEF, 0x18, 5 * MILLIS));
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEE, 0x18, 5 * MILLIS));
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x19, 5 * MILLIS));
+        assertEquals(6, deduplicator.getChecked());
+        assertEquals(1, deduplicator.getDuplicates());
+    }
+
+    @Test
+    public void testExpiry() {
+        SegmentDeduplicator deduplicator = new SegmentDeduplicator(1024, 1000L);
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x18, 0L));
+        //  Past the window it's a genuine retransmit, which the reassembler deals with
+        assertFalse(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x18, 1001 * MILLIS));
+        assertTrue(deduplicator.isDuplicate(SERVER, 3724, CLIENT, 50000, 1000L, 100, 0xBEEF, 0x18, 1500 * MILLIS));
+    }
+
+    @Test
+    public void testPacket() {
+        SegmentDeduplicator deduplicator = new SegmentDeduplicator(SegmentDeduplicator.DEFAULT_SLOTS, SegmentDeduplicator.DEFAULT_WINDOW);
+        TCPConnectionInfo info = new TCPConnectionInfo(SERVER, 3724, CLIENT, 50000);
+        byte[] payload = {1, 2, 3, 4};
+        assertFalse(deduplicator.isDuplicate(new TCPPacket(0L, info, 1000L, 1L, 0x18, 0x1234, payload, 0, 4)));
+        assertTrue(deduplicator.isDuplicate(new TCPPacket(MILLIS, info, 1000L, 1L, 0x18, 0x1234, payload.clone(), 0, 4)));
+        assertFalse(deduplicator.isDuplicate(new TCPPacket(MILLIS, info, 1004L, 1L, 0x18, 0x1234, payload, 0, 4)));
+    }
+}
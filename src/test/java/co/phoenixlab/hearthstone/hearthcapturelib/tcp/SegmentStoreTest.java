@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+
+    @Test
+    public void testOverlapTrimming() {
+        byte[] data = TestSegments.bytes(100);
+        SegmentStore store = new SegmentStore();
+        store.start(0L);
+        assertEquals(20, store.add(TestSegments.segment(20L, data, 20, 20)));
+        assertEquals(20, store.add(TestSegments.segment(60L, data, 60, 20)));
+        //  Retransmission of a held segment
+        assertEquals(0, store.add(TestSegments.segment(20L, data, 20, 20)));
+        //  Spans both held segments, so only the gaps around them are kept
+        assertEquals(40, store.add(TestSegments.segment(10L, data, 10, 80)));
+        assertEquals(5, store.getHeldSegments());
+        assertEquals(80L, store.getHeldBytes());
+        assertEquals(60L, store.getBytesTrimmed());
+        assertNull(store.poll());
+        assertEquals(10, store.add(TestSegments.segment(0L, data, 0, 10)));
+        assertArrayEquals(Arrays.copyOf(data, 90), drain(store));
+        assertTrue(store.isEmpty());
+        assertEquals(90L, store.getBytesRead());
+        //  Already read
+        assertEquals(0, store.add(TestSegments.segment(50L, data, 50, 40)));
+    }
+
+    @Test
+    public void testAdvanceAndSkipHole() {
+        byte[] data = TestSegments.bytes(100);
+        SegmentStore store = new SegmentStore();
+        store.start(0L);
+        store.add(TestSegments.segment(20L, data, 20, 20));
+        store.add(TestSegments.segment(60L, data, 60, 20));
+        //  An in order segment read without being held, overlapping the first held one
+        store.advance(30L);
+        assertArrayEquals(Arrays.copyOfRange(data, 30, 40), drain(store));
+        assertEquals(20L, store.skipHole());
+        assertEquals(60L, store.getNextPosition());
+        assertArrayEquals(Arrays.copyOfRange(data, 60, 80), drain(store));
+        assertEquals(0L, store.skipHole());
+    }
+
+    @Test
+    public void testWraparound() {
+        byte[] data = TestSegments.bytes(300);
+        long start = 0xFFFFFF00L;
+        SegmentStore store = new SegmentStore();
+        store.add(TestSegments.segment(start, data, 0, 100));
+        //  Past the wraparound, out of order and overlapping the segment before it
+        store.add(TestSegments.segment((start + 200L) & 0xFFFFFFFFL, data, 200, 100));
+        store.add(TestSegments.segment(start + 50L, data, 50, 200));
+        assertArrayEquals(data, drain(store));
+        assertEquals(300L, store.getBytesRead());
+        assertEquals(start + 300L, store.getNextPosition());
+    }
+
+    private static byte[] drain(SegmentStore store) {
+        byte[] read = new byte[0];
+        SegmentStore.Segment segment;
+        while ((segment = store.poll()) != null) {
+            int at = read.length;
+            read = Arrays.copyOf(read, at + segment.length);
+            segment.packet.copyPayload(segment.offset, read, at, segment.length);
+        }
+        return read;
+    }
+}
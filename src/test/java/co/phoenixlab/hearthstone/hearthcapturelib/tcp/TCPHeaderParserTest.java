@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.IP4Utils;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TCPHeaderParserTest {
+
+    private static final int CLIENT = IP4Utils.ipToInt("192.168.1.2");
+    private static final int SERVER = IP4Utils.ipToInt("12.130.244.193");
+    private static final byte[] PAYLOAD = {(byte) 0xA8, 1, 2, 3, 4, 5, 6, 7};
+
+    private final TCPHeaderParser parser = new TCPHeaderParser();
+
+    @Test
+    public void testParse() {
+        byte[] frame = TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 0xFFFFFFF0L, TestFrames.PSH_ACK, PAYLOAD);
+        assertTrue(parser.parse(frame, 14, frame.length - 14, frame.length - 14));
+        assertEquals(CLIENT, parser.getSourceIp());
+        assertEquals(50000, parser.getSourcePort());
+        assertEquals(SERVER, parser.getDestinationIp());
+        assertEquals(3724, parser.getDestinationPort());
+        assertEquals(0xFFFFFFF0L, parser.getSeqNumber());
+        assertEquals(TestFrames.PSH_ACK, parser.getTcpFlags());
+        assertEquals(14 + 20 + 20, parser.getPayloadOffset());
+        assertEquals(PAYLOAD.length, parser.getPayloadLength());
+        assertTrue(parser.hasEndpoint(SERVER, 3724));
+        assertFalse(parser.hasEndpoint(SERVER, 1119));
+
+        TCPPacket packet = parser.toPacket(frame, parser.getPayloadOffset(), 5L);
+        assertEquals(0xA8, packet.getPayloadByte(0));
+        assertArrayEquals(PAYLOAD, packet.getPayload());
+        assertEquals(5L, packet.packetTimeNanos);
+    }
+
+    @Test
+    public void testParseHeadersOnly() {
+        //  Only the start of the frame is available, as in live capture, but the payload length still covers the whole segment
+        byte[] frame = TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, new byte[1000]);
+        byte[] headers = Arrays.copyOf(frame, 64);
+        assertTrue(parser.parse(headers, 14, headers.length - 14, frame.length - 14));
+        assertEquals(1000, parser.getPayloadLength());
+        assertFalse(parser.parse(headers, 14, 30, frame.length - 14));
+    }
+
+    @Test
+    public void testParseIgnoresPadding() {
+        byte[] frame = Arrays.copyOf(TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 1L, TestFrames.FIN, new byte[0]), 64);
+        assertTrue(parser.parse(frame, 14, frame.length - 14, frame.length - 14));
+        assertEquals(0, parser.getPayloadLength());
+    }
+
+    @Test
+    public void testParseRejectsNonTcp() {
+        byte[] frame = TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, PAYLOAD);
+        frame[14 + 9] = 17;
+        assertFalse(parser.parse(frame, 14, frame.length - 14, frame.length - 14));
+    }
+
+    @Test
+    public void testConnectionInfoReused() {
+        byte[] frame = TestFrames.ethernetFrame(CLIENT, 50000, SERVER, 3724, 1L, TestFrames.PSH_ACK, PAYLOAD);
+        byte[] reply = TestFrames.ethernetFrame(SERVER, 3724, CLIENT, 50000, 1L, TestFrames.PSH_ACK, PAYLOAD);
+        assertTrue(parser.parse(frame, 14, frame.length - 14, frame.length - 14));
+        TCPConnectionInfo first = parser.copyPacket(frame, 0L).connectionInfo;
+        assertTrue(parser.parse(frame, 14, frame.length - 14, frame.length - 14));
+        assertSame(first, parser.copyPacket(frame, 0L).connectionInfo);
+        assertTrue(parser.parse(reply, 14, reply.length - 14, reply.length - 14));
+        assertTrue(first.isReverseOf(parser.copyPacket(reply, 0L).connectionInfo));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.HashedWheelTimer;
+import co.phoenixlab.hearthstone.hearthcapturelib.util.MemoryBudget;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TCPSegmentReassemblerTest {
+
+    @Test
+    public void testOutOfOrder() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(sink(out));
+        byte[] data = TestSegments.bytes(30);
+        reassembler.accept(TestSegments.segment(100L, data, 0, 10));
+        reassembler.accept(TestSegments.segment(120L, data, 20, 10));
+        assertEquals(10, out.size());
+        assertEquals(1, reassembler.getPendingSegments());
+        assertEquals(10L, reassembler.getPendingBytes());
+        reassembler.accept(TestSegments.segment(110L, data, 10, 10));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, reassembler.getPendingSegments());
+        assertEquals(0L, reassembler.getPendingBytes());
+        assertEquals(30L, reassembler.getBytesDelivered());
+    }
+
+    @Test
+    public void testRetransmitAndOverlap() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(sink(out));
+        byte[] data = TestSegments.bytes(40);
+        reassembler.accept(TestSegments.segment(0L, data, 0, 10));
+        //  Full retransmit, then one overlapping the delivered bytes
+        reassembler.accept(TestSegments.segment(0L, data, 0, 10));
+        reassembler.accept(TestSegments.segment(5L, data, 5, 15));
+        //  Held segment overlapping one delivered while it was held
+        reassembler.accept(TestSegments.segment(30L, data, 30, 10));
+        reassembler.accept(TestSegments.segment(25L, data, 25, 10));
+        reassembler.accept(TestSegments.segment(20L, data, 20, 5));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, reassembler.getPendingSegments());
+    }
+
+    @Test
+    public void testSequenceWraparound() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(sink(out));
+        byte[] data = TestSegments.bytes(30);
+        long start = 0xFFFFFFFFL - 14L;
+        reassembler.accept(TestSegments.segment(start, data, 0, 10));
+        //  Arrives out of order after wrapping past zero
+        reassembler.accept(TestSegments.segment((start + 20L) & 0xFFFFFFFFL, data, 20, 10));
+        reassembler.accept(TestSegments.segment(start + 10L, data, 10, 10));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(30L, reassembler.getBytesDelivered());
+    }
+
+    @Test
+    public void testHoleDeadline() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] lost = new long[1];
+        HashedWheelTimer timer = new HashedWheelTimer(10L, 64, 0L);
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(new TCPSegmentReassembler.Sink() {
+            @Override
+            public void accept(TCPPacket packet, int offset, int length) {
+                out.write(packet.getPayload(), offset, length);
+            }
+
+            @Override
+            public void gap(long length) {
+                lost[0] += length;
+            }
+        }, timer, 1000L);
+        byte[] data = TestSegments.bytes(30);
+        reassembler.accept(TestSegments.segment(0L, data, 0, 10));
+        //  Bytes 10 to 20 never arrive
+        reassembler.accept(TestSegments.segment(20L, data, 20, 10));
+        timer.advance(999L);
+        assertEquals(10, out.size());
+        timer.advance(1000L);
+        assertEquals(10L, lost[0]);
+        assertEquals(1L, reassembler.getHolesSkipped());
+        assertEquals(20, out.size());
+        assertEquals(0, reassembler.getPendingSegments());
+        //  Too late now
+        reassembler.accept(TestSegments.segment(10L, data, 10, 10));
+        assertEquals(20, out.size());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testSuccessiveHolesEachGetTheirOwnDeadline() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HashedWheelTimer timer = new HashedWheelTimer(10L, 64, 0L);
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(sink(out), timer, 1000L);
+        byte[] data = TestSegments.bytes(50);
+        reassembler.accept(TestSegments.segment(0L, data, 0, 10, 0L));
+        //  Bytes 10 to 20 and 30 to 40 are late
+        reassembler.accept(TestSegments.segment(20L, data, 20, 10, 0L));
+        reassembler.accept(TestSegments.segment(40L, data, 40, 10, 500L));
+        timer.advance(800L);
+        reassembler.accept(TestSegments.segment(10L, data, 10, 10, 800L));
+        assertEquals(30, out.size());
+        //  Past the first hole's deadline but not the second's
+        timer.advance(1200L);
+        assertEquals(0L, reassembler.getHolesSkipped());
+        reassembler.accept(TestSegments.segment(30L, data, 30, 10, 1200L));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0L, reassembler.getHolesSkipped());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testBudgetReleasedWhenHeldBytesAreOverlapped() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryBudget budget = new MemoryBudget(1000L, MemoryBudget.Policy.DROP_OLDEST, 0L);
+        MemoryBudget.Account account = budget.open("test");
+        TCPSegmentReassembler reassembler = new TCPSegmentReassembler(sink(out), null, 0L, account);
+        byte[] data = TestSegments.bytes(400);
+        reassembler.accept(TestSegments.segment(1000L, data, 0, 100));
+        reassembler.accept(TestSegments.segment(1200L, data, 200, 100));
+        assertEquals(100L, account.getHeld());
+        //  Delivered in order straight away, passing over the held bytes
+        reassembler.accept(TestSegments.segment(1100L, data, 100, 300));
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(0, reassembler.getPendingSegments());
+        assertEquals(0L, account.getHeld());
+        assertEquals(0L, budget.getUsed());
+    }
+
+    private static TCPSegmentReassembler.Sink sink(ByteArrayOutputStream out) {
+        return (packet, offset, length) -> {
+            byte[] copy = new byte[length];
+            packet.copyPayload(offset, copy, 0, length);
+            out.write(copy, 0, length);
+        };
+    }
+}
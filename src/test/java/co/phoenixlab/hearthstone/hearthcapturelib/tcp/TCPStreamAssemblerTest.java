@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.util.BufferPool;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TCPStreamAssemblerTest {
+
+    @Test(timeout = 10_000L)
+    public void testBulkReads() throws Exception {
+        byte[] data = TestSegments.bytes(100);
+        TCPStreamAssembler assembler = new TCPStreamAssembler();
+        //  Out of order, with a retransmission
+        assembler.acceptTCPPacket(TestSegments.segment(1000L, data, 0, 30));
+        assembler.acceptTCPPacket(TestSegments.segment(1060L, data, 60, 40));
+        assembler.acceptTCPPacket(TestSegments.segment(1030L, data, 30, 30));
+        assembler.acceptTCPPacket(TestSegments.segment(1030L, data, 30, 30));
+        assembler.finish();
+        byte[] read = new byte[100];
+        //  A read doesn't go past the end of the segment it starts in
+        assertEquals(10, assembler.read(read, 0, 10));
+        assertEquals(20, assembler.available());
+        assertEquals(20, assembler.read(read, 10, 50));
+        int b = assembler.read();
+        assertEquals(data[30] & 0xFF, b);
+        read[30] = (byte) b;
+        ByteBuffer direct = ByteBuffer.allocateDirect(69);
+        assembler.readFully(direct);
+        direct.flip();
+        direct.get(read, 31, 69);
+        assertArrayEquals(data, read);
+        assertEquals(-1, assembler.read(read, 0, 1));
+        assertEquals(0, assembler.read(read, 0, 0));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testReadFully() throws Exception {
+        byte[] data = TestSegments.bytes(5000);
+        TCPStreamAssembler assembler = new TCPStreamAssembler();
+        for (int offset = 0; offset < data.length; offset += 1400) {
+            assembler.acceptTCPPacket(TestSegments.segment(offset, data, offset, Math.min(1400, data.length - offset)));
+        }
+        assembler.finish();
+        DataInputStream in = new DataInputStream(assembler);
+        byte[] read = new byte[data.length];
+        in.readFully(read);
+        assertArrayEquals(data, read);
+        try {
+            in.readFully(new byte[1]);
+            fail("Expected end of stream");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void testOverlapsAcrossWraparound() throws Exception {
+        byte[] data = TestSegments.bytes(3000);
+        long start = 0xFFFFFA00L;
+        TCPStreamAssembler assembler = new TCPStreamAssembler();
+        assembler.acceptTCPPacket(TestSegments.segment(start, data, 0, 1000));
+        //  Arrives before the segment it overlaps, and is resegmented differently when retransmitted
+        assembler.acceptTCPPacket(TestSegments.segment((start + 2000L) & 0xFFFFFFFFL, data, 2000, 1000));
+        assembler.acceptTCPPacket(TestSegments.segment(start + 500L, data, 500, 1000));
+        assembler.acceptTCPPacket(TestSegments.segment((start + 1200L) & 0xFFFFFFFFL, data, 1200, 1300));
+        assembler.finish();
+        byte[] read = new byte[data.length];
+        new DataInputStream(assembler).readFully(read);
+        assertArrayEquals(data, read);
+        assertEquals(-1, assembler.read());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testHoleTimeout() throws Exception {
+        byte[] data = TestSegments.bytes(100);
+        TCPStreamAssembler assembler = new TCPStreamAssembler(null, 1000L);
+        assembler.acceptTCPPacket(TestSegments.segment(0L, data, 0, 30));
+        assembler.acceptTCPPacket(TestSegments.segment(60L, data, 60, 20));
+        byte[] read = new byte[100];
+        assertEquals(30, assembler.read(read, 0, 100));
+        //  Captured a second after the segment waiting on the hole
+        assembler.acceptTCPPacket(new TCPPacket(1_000_000_000L, TestSegments.FLOW, 80L, 0L, 0x18, Arrays.copyOfRange(data, 80, 100)));
+        try {
+            assembler.read(read, 30, 70);
+            fail("Expected a gap");
+        } catch (StreamGapException expected) {
+            assertEquals(30L, expected.getLength());
+        }
+        assembler.finish();
+        new DataInputStream(assembler).readFully(read, 60, 40);
+        assertArrayEquals(Arrays.copyOfRange(data, 60, 100), Arrays.copyOfRange(read, 60, 100));
+        assertEquals(-1, assembler.read());
+        assertEquals(1L, assembler.getHolesSkipped());
+        assertEquals(30L, assembler.getBytesSkipped());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testPooledBuffersReturned() throws Exception {
+        byte[] data = TestSegments.bytes(5000);
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BYTES_PER_CLASS, false);
+        TCPStreamAssembler assembler = new TCPStreamAssembler();
+        //  Out of order and overlapping, then a segment past a hole that never fills
+        int[][] segments = {{0, 1400}, {2800, 1400}, {700, 1400}, {1400, 1400}, {2800, 700}, {4600, 400}};
+        for (int[] segment : segments) {
+            BufferPool.Buffer buffer = pool.acquire(segment[1]);
+            System.arraycopy(data, segment[0], buffer.array(), 0, segment[1]);
+            TCPPacket packet = new TCPPacket(0L, TestSegments.FLOW, segment[0], 0L, 0x18, 0, buffer, 0, segment[1]);
+            assembler.acceptTCPPacket(packet);
+            //  As the capture thread does once the packet has been handed on
+            packet.release();
+        }
+        assembler.finish();
+        byte[] read = new byte[4200];
+        new DataInputStream(assembler).readFully(read);
+        assertArrayEquals(Arrays.copyOf(data, 4200), read);
+        assertEquals(-1, assembler.read());
+        assertEquals(0L, pool.getOutstanding());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.tcp;
+
+import co.phoenixlab.hearthstone.hearthcapturelib.pcap.TestFrames;
+
+import java.util.Arrays;
+
+/**
+ * Builds synthetic TCP segments and payloads for tests and benchmarks.
+ */
+public class TestSegments {
+
+    /**
+     * One direction of a connection, for tests that only need a single stream.
+     */
+    public static final TCPConnectionInfo FLOW = new TCPConnectionInfo(1, 50000, 2, 3724);
+
+    /**
+     * Builds a segment of {@link #FLOW} carrying a copy of part of the data.
+     */
+    public static TCPPacket segment(long seq, byte[] data, int offset, int length) {
+        return segment(seq, data, offset, length, 0L);
+    }
+
+    public static TCPPacket segment(long seq, byte[] data, int offset, int length, long timeMillis) {
+        return new TCPPacket(timeMillis * 1_000_000L, FLOW, seq, 0L, TestFrames.PSH_ACK, Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    /**
+     * Builds a segment timestamped now.
+     */
+    public static TCPPacket packet(int sourceIp, int sourcePort, int destinationIp, int destinationPort, long seq, int flags, byte[] payload) {
+        return packet(sourceIp, sourcePort, destinationIp, destinationPort, seq, flags, payload, System.currentTimeMillis());
+    }
+
+    public static TCPPacket packet(int sourceIp, int sourcePort, int destinationIp, int destinationPort, long seq, int flags, byte[] payload,
+                                   long timeMillis) {
+        return new TCPPacket(timeMillis * 1_000_000L, new TCPConnectionInfo(sourceIp, sourcePort, destinationIp, destinationPort), seq, 0L,
+                flags, payload);
+    }
+
+    /**
+     * Builds a payload whose bytes differ from their neighbours, so misplaced bytes show up when compared.
+     */
+    public static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+}
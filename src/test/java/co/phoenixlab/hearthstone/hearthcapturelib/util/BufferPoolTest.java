@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BYTES_PER_CLASS, false);
+        BufferPool.Buffer buffer = pool.acquire(1400);
+        assertEquals(2048, buffer.array().length);
+        buffer.retain();
+        buffer.release();
+        assertEquals(1, pool.getOutstanding());
+        buffer.release();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(2048L, pool.getPooledBytes());
+        //  Same size class, so the same buffer comes back
+        assertSame(buffer, pool.acquire(1025));
+        assertEquals(64, pool.acquire(0).array().length);
+        //  Too big to pool
+        assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).array().length);
+        assertEquals(4, pool.getAcquired());
+        assertEquals(3, pool.getAllocated());
+        try {
+            buffer.release();
+            buffer.release();
+            fail("Expected a double release to be caught");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testNoPooling() {
+        BufferPool pool = new BufferPool(0L, false);
+        BufferPool.Buffer buffer = pool.acquire(100);
+        assertEquals(100, buffer.array().length);
+        buffer.release();
+        assertEquals(0L, pool.getPooledBytes());
+        assertNotSame(buffer, pool.acquire(100));
+    }
+
+    @Test(timeout = 10_000L)
+    public void testLeakDetection() throws Exception {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BYTES_PER_CLASS, true);
+        pool.acquire(100).release();
+        //  Never released
+        pool.acquire(100);
+        while (pool.getLeaks() == 0) {
+            System.gc();
+            Thread.sleep(10L);
+            pool.reportLeaks();
+        }
+        assertEquals(1, pool.getLeaks());
+    }
+}
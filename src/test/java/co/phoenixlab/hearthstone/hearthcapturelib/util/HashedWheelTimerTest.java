@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testFiresInOrderAndNeverEarly() {
+        HashedWheelTimer timer = new HashedWheelTimer(10L, 8, 1000L);
+        List<Long> fired = new ArrayList<>();
+        //  Beyond a full turn of the wheel, so these need more than one round
+        for (long deadline : new long[]{1500L, 1015L, 1090L, 1250L}) {
+            timer.schedule(() -> fired.add(deadline), deadline);
+        }
+        assertEquals(4, timer.getPendingCount());
+        assertEquals(0, timer.advance(1014L));
+        assertEquals(1, timer.advance(1020L));
+        assertEquals(0, timer.advance(1089L));
+        assertEquals(1, timer.advance(1090L));
+        assertEquals(0, timer.advance(1249L));
+        assertEquals(1, timer.advance(1260L));
+        assertEquals(0, timer.advance(1499L));
+        assertEquals(1, timer.advance(1500L));
+        assertEquals(4, fired.size());
+        assertEquals(Long.valueOf(1015L), fired.get(0));
+        assertEquals(Long.valueOf(1090L), fired.get(1));
+        assertEquals(Long.valueOf(1250L), fired.get(2));
+        assertEquals(Long.valueOf(1500L), fired.get(3));
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testCancel() {
+        HashedWheelTimer timer = new HashedWheelTimer(10L, 8, 0L);
+        int[] runs = new int[1];
+        HashedWheelTimer.Timeout first = timer.schedule(() -> runs[0]++, 50L);
+        HashedWheelTimer.Timeout second = timer.schedule(() -> runs[0]++, 50L);
+        HashedWheelTimer.Timeout third = timer.schedule(() -> runs[0]++, 50L);
+        assertTrue(second.cancel());
+        assertFalse(second.cancel());
+        assertEquals(2, timer.getPendingCount());
+        assertEquals(2, timer.advance(100L));
+        assertEquals(2, runs[0]);
+        assertTrue(first.isExpired());
+        assertFalse(second.isExpired());
+        assertFalse(third.cancel());
+    }
+
+    @Test
+    public void testRescheduleFromTask() {
+        HashedWheelTimer timer = new HashedWheelTimer(10L, 4, 0L);
+        List<Long> fired = new ArrayList<>();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add((long) fired.size());
+                if (fired.size() < 3) {
+                    //  Already due, must run on the next advance rather than a full turn later
+                    timer.schedule(this, 0L);
+                }
+            }
+        }, 5L);
+        timer.advance(10L);
+        assertEquals(1, fired.size());
+        timer.advance(20L);
+        assertEquals(2, fired.size());
+        timer.advance(30L);
+        assertEquals(3, fired.size());
+        assertEquals(0, timer.getPendingCount());
+    }
+
+    @Test
+    public void testManyTimeouts() {
+        HashedWheelTimer timer = new HashedWheelTimer(100L, 1024, 0L);
+        int count = 100_000;
+        int[] runs = new int[1];
+        List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            timeouts.add(timer.schedule(() -> runs[0]++, (i * 7919L) % 600_000L));
+        }
+        for (int i = 0; i < count; i += 2) {
+            timeouts.get(i).cancel();
+        }
+        timer.advance(600_000L);
+        assertEquals(count / 2, runs[0]);
+        assertEquals(0, timer.getPendingCount());
+        assertEquals(count / 2, timer.getExpiredCount());
+    }
+}
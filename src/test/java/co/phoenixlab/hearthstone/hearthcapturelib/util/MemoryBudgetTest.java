@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Vincent Zhang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package co.phoenixlab.hearthstone.hearthcapturelib.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testDropOldest() {
+        MemoryBudget budget = new MemoryBudget(100L, MemoryBudget.Policy.DROP_OLDEST, 0L);
+        MemoryBudget.Account account = budget.open("a");
+        Deque<Long> buffered = new ArrayDeque<>();
+        MemoryBudget.Reclaimer reclaimer = () -> {
+            Long oldest = buffered.pollFirst();
+            if (oldest == null) {
+                return 0L;
+            }
+            account.release(oldest);
+            return oldest;
+        };
+        for (int i = 0; i < 10; i++) {
+            assertTrue(account.reserve(30L, reclaimer));
+            buffered.addLast(30L);
+        }
+        assertEquals(90L, budget.getUsed());
+        assertEquals(90L, account.getHeld());
+        assertEquals(7 * 30L, account.getDropped());
+        //  Nothing left to drop that would make room
+        assertFalse(budget.open("b").reserve(200L, null));
+        account.close();
+        assertEquals(0L, budget.getUsed());
+        assertEquals(90L, budget.getPeakUsed());
+    }
+
+    @Test
+    public void testEvictLargest() {
+        MemoryBudget budget = new MemoryBudget(100L, MemoryBudget.Policy.EVICT_SESSION, 0L);
+        MemoryBudget.Account stalled = budget.open("stalled");
+        MemoryBudget.Account healthy = budget.open("healthy");
+        int[] evictions = new int[1];
+        stalled.setEvictionHandler(() -> {
+            evictions[0]++;
+            stalled.close();
+        });
+        assertTrue(stalled.reserve(80L, null));
+        assertTrue(healthy.reserve(10L, null));
+        assertTrue(healthy.reserve(20L, null));
+        assertTrue(stalled.isEvicted());
+        assertFalse(healthy.isEvicted());
+        assertEquals(1, evictions[0]);
+        assertEquals(30L, budget.getUsed());
+        assertFalse(stalled.reserve(1L, null));
+        //  A session that is itself the biggest user goes instead of anyone else
+        assertFalse(healthy.reserve(500L, null));
+        assertTrue(healthy.isEvicted());
+        assertEquals(2L, budget.getEvictions());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testBlockUntilReleased() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100L, MemoryBudget.Policy.BLOCK, 5_000L);
+        MemoryBudget.Account account = budget.open("a");
+        assertTrue(account.reserve(100L, null));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException ignore) {
+            }
+            account.release(60L);
+        });
+        consumer.start();
+        assertTrue(account.reserve(50L, null));
+        consumer.join();
+        assertEquals(90L, budget.getUsed());
+        //  Times out and drops when nothing is released
+        MemoryBudget quick = new MemoryBudget(10L, MemoryBudget.Policy.BLOCK, 10L);
+        MemoryBudget.Account other = quick.open("b");
+        assertTrue(other.reserve(10L, null));
+        assertFalse(other.reserve(1L, null));
+        assertEquals(1L, other.getDropped());
+    }
+
+    @Test
+    public void testCloseWhenEmpty() {
+        MemoryBudget budget = new MemoryBudget(100L, MemoryBudget.Policy.DROP_OLDEST, 0L);
+        MemoryBudget.Account account = budget.open("a");
+        assertTrue(account.reserve(40L, null));
+        account.closeWhenEmpty();
+        assertEquals(1, budget.getAccounts().size());
+        account.release(40L);
+        assertTrue(budget.getAccounts().isEmpty());
+        //  Late releases don't go negative
+        account.release(40L);
+        assertEquals(0L, budget.getUsed());
+    }
+}